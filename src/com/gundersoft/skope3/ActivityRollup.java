@@ -0,0 +1,387 @@
+package com.gundersoft.skope3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.TimeZone;
+
+/**
+ * Counts of events per minute, per hour and per day, so a viewer can show
+ * where the activity in a log is without reading the log itself. Every
+ * segment has a rollup beside it, "eventlog.dat.00000n.act", of 16 byte
+ * entries: the start of a bucket, its level and the number of events in
+ * it. Hours and days are counted in local time.
+ * <p>
+ * The Keylogger counts each flush into a rollup, and the LogStore appends
+ * it to the active segment's file once the flush is written, so the same
+ * bucket can have several entries; read() adds them up. The file is
+ * folded down to one entry per bucket when its segment is sealed. A
+ * segment written before rollups existed gets one from a scan of its
+ * tags the first time it is read. Like the time index, a rollup is only
+ * a hint: a torn or missing entry only leaves the counts short.
+ * @author Christian Gunderman
+ */
+public class ActivityRollup {
+    /** Level of per-minute buckets. */
+    public static final int LEVEL_MINUTE = 0;
+    /** Level of per-hour buckets. */
+    public static final int LEVEL_HOUR = 1;
+    /** Level of per-day buckets. */
+    public static final int LEVEL_DAY = 2;
+    /** Number of levels. */
+    public static final int LEVELS = 3;
+    /** Length of a bucket at each level. */
+    private static final long[] LEVEL_MILLIS = { 60000L, 3600000L, 86400000L };
+    /** Bytes of an entry in a rollup file. */
+    private static final int ENTRY_BYTES = 16;
+
+    /** Start time of every bucket, by level. */
+    private long[][] starts;
+    /** Events in every bucket, by level. */
+    private int[][] counts;
+    /** Number of buckets in use, by level. */
+    private int[] sizes;
+    /** Zone hours and days are counted in. */
+    private final TimeZone zone;
+
+    /**
+     * Creates an empty rollup that counts in the default time zone.
+     */
+    public ActivityRollup() {
+	this.starts = new long[LEVELS][4];
+	this.counts = new int[LEVELS][4];
+	this.sizes = new int[LEVELS];
+	this.zone = TimeZone.getDefault();
+    }
+
+    /**
+     * Counts an event.
+     * @param time Time of the event.
+     */
+    public void add(long time) {
+	add(time, 1);
+    }
+
+    /**
+     * Counts events into the buckets holding a time, at every level.
+     * @param time Time of the events.
+     * @param count Number of events.
+     */
+    public void add(long time, int count) {
+	int offset = this.zone.getOffset(time);
+	for(int level = 0; level < LEVELS; level++) {
+	    long size = LEVEL_MILLIS[level];
+	    long local = time + offset;
+	    long start = local - ((local % size) + size) % size - offset;
+	    int n = this.sizes[level];
+	    if(n > 0 && this.starts[level][n - 1] == start)
+		this.counts[level][n - 1] += count;
+	    else
+		append(level, start, count);
+	}
+    }
+
+    /**
+     * Adds every bucket of another rollup to this one.
+     * @param other The rollup to add.
+     */
+    public void addAll(ActivityRollup other) {
+	for(int level = 0; level < LEVELS; level++) {
+	    for(int i = 0; i < other.sizes[level]; i++) {
+		int n = this.sizes[level];
+		if(n > 0 && this.starts[level][n - 1] == other.starts[level][i])
+		    this.counts[level][n - 1] += other.counts[level][i];
+		else
+		    append(level, other.starts[level][i], other.counts[level][i]);
+	    }
+	}
+    }
+
+    /**
+     * Checks if anything has been counted.
+     * @return True if the rollup has no buckets.
+     */
+    public boolean isEmpty() {
+	return this.sizes[LEVEL_MINUTE] == 0;
+    }
+
+    /**
+     * Throws away every bucket.
+     */
+    public void clear() {
+	Arrays.fill(this.sizes, 0);
+    }
+
+    /**
+     * Gets the number of buckets at a level. After read(), buckets are in
+     * time order and each start appears once.
+     * @param level LEVEL_MINUTE, LEVEL_HOUR or LEVEL_DAY.
+     * @return The bucket count.
+     */
+    public int size(int level) {
+	return this.sizes[level];
+    }
+
+    /**
+     * Gets the start time of a bucket.
+     * @param level The bucket's level.
+     * @param i Number of the bucket.
+     * @return Its start in milliseconds.
+     */
+    public long getStart(int level, int i) {
+	return this.starts[level][i];
+    }
+
+    /**
+     * Gets the number of events in a bucket.
+     * @param level The bucket's level.
+     * @param i Number of the bucket.
+     * @return The event count.
+     */
+    public int getCount(int level, int i) {
+	return this.counts[level][i];
+    }
+
+    /**
+     * Spreads the events of a time range over equal bins, for drawing a
+     * density timeline. Uses the coarsest level whose buckets are no
+     * longer than a bin.
+     * @param from Start of the range.
+     * @param to End of the range.
+     * @param bins Number of bins.
+     * @return Events in each bin.
+     */
+    public int[] density(long from, long to, int bins) {
+	int[] density = new int[bins];
+	long span = Math.max(1, to - from);
+	int level = LEVEL_MINUTE;
+	while(level + 1 < LEVELS && LEVEL_MILLIS[level + 1] * bins <= span)
+	    level++;
+	for(int i = 0; i < this.sizes[level]; i++) {
+	    long start = this.starts[level][i];
+	    if(start + LEVEL_MILLIS[level] <= from || start > to)
+		continue;
+	    long bin = (Math.max(start, from) - from) * bins / span;
+	    density[(int)Math.min(bins - 1, bin)] += this.counts[level][i];
+	}
+	return density;
+    }
+
+    /**
+     * Finds the busiest bucket of a level within a time range.
+     * @param level LEVEL_MINUTE, LEVEL_HOUR or LEVEL_DAY.
+     * @param from Earliest bucket start.
+     * @param to Latest bucket start.
+     * @return Start of the bucket with the most events, -1 if there are
+     * none in the range.
+     */
+    public long busiest(int level, long from, long to) {
+	long busiest = -1;
+	int most = 0;
+	for(int i = 0; i < this.sizes[level]; i++) {
+	    long start = this.starts[level][i];
+	    if(start >= from && start <= to && this.counts[level][i] > most) {
+		busiest = start;
+		most = this.counts[level][i];
+	    }
+	}
+	return busiest;
+    }
+
+    /**
+     * Appends every bucket to a rollup file.
+     * @param channel Channel of the file, positioned at its end.
+     * @throws IOException Thrown if the file can't be written.
+     */
+    public void write(FileChannel channel) throws IOException {
+	int total = 0;
+	for(int level = 0; level < LEVELS; level++)
+	    total += this.sizes[level];
+	ByteBuffer entries = ByteBuffer.allocate(total * ENTRY_BYTES);
+	for(int level = 0; level < LEVELS; level++) {
+	    for(int i = 0; i < this.sizes[level]; i++)
+		entries.putLong(this.starts[level][i]).putInt(level).putInt(this.counts[level][i]);
+	}
+	entries.flip();
+	while(entries.hasRemaining())
+	    channel.write(entries);
+    }
+
+    /**
+     * Reads the rollups of every segment of a log.
+     * @param logFile The log file name.
+     * @return Every bucket of the log, in time order.
+     */
+    public static ActivityRollup read(String logFile) {
+	ActivityRollup rollup = new ActivityRollup();
+	for(File segment : new LogStore(new File(logFile)).getSegments())
+	    rollup.addAll(read(segment));
+	rollup.normalize();
+	return rollup;
+    }
+
+    /**
+     * Reads the rollup of a segment, scanning the segment for one if it
+     * has none. Entries with an unknown level are left out.
+     * @param segment A file from LogStore.getSegments().
+     * @return The segment's buckets, in time order, empty if neither the
+     * rollup nor the segment can be read.
+     */
+    public static ActivityRollup read(File segment) {
+	File file = LogStore.sidecarFile(segment, LogStore.ACTIVITY_SUFFIX);
+	if(!file.isFile()) {
+	    ActivityRollup scanned = new ActivityRollup();
+	    try {
+		scanned = scan(segment);
+		replace(file, scanned);
+	    } catch (IOException e) {
+		// counted again next time
+	    }
+	    return scanned;
+	}
+
+	ActivityRollup rollup = new ActivityRollup();
+	try {
+	    FileInputStream in = new FileInputStream(file);
+	    try {
+		FileChannel source = in.getChannel();
+		// a torn last entry from a crash is ignored
+		int count = (int)Math.min(Integer.MAX_VALUE / ENTRY_BYTES, source.size() / ENTRY_BYTES);
+		ByteBuffer entries = ByteBuffer.allocate(count * ENTRY_BYTES);
+		while(entries.hasRemaining() && source.read(entries) >= 0);
+		entries.flip();
+		while(entries.remaining() >= ENTRY_BYTES) {
+		    long start = entries.getLong();
+		    int level = entries.getInt();
+		    int events = entries.getInt();
+		    if(level >= 0 && level < LEVELS && events > 0)
+			rollup.append(level, start, events);
+		}
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException e) {
+	    // what was read so far is kept
+	}
+	rollup.normalize();
+	return rollup;
+    }
+
+    /**
+     * Counts the events of a segment by reading its tags, for a segment
+     * that has no rollup.
+     * @param segment A file from LogStore.getSegments().
+     * @return The segment's buckets.
+     * @throws IOException Thrown if the segment can't be read.
+     */
+    public static ActivityRollup scan(File segment) throws IOException {
+	ActivityRollup rollup = new ActivityRollup();
+	LogCursor cursor = new LogCursor(segment, 0, Long.MAX_VALUE);
+	try {
+	    while(cursor.advance())
+		rollup.add(cursor.getTime());
+	} finally {
+	    cursor.close();
+	}
+	rollup.normalize();
+	return rollup;
+    }
+
+    /**
+     * Folds a segment's rollup file down to one entry per bucket.
+     * @param segment A file from LogStore.getSegments().
+     * @throws IOException Thrown if the folded file can't be written.
+     */
+    public static void compact(File segment) throws IOException {
+	File file = LogStore.sidecarFile(segment, LogStore.ACTIVITY_SUFFIX);
+	if(file.isFile())
+	    replace(file, read(segment));
+    }
+
+    /**
+     * Writes a rollup beside its final name and renames it into place.
+     * @param file The rollup file.
+     * @param rollup What it is to hold.
+     * @throws IOException Thrown if the file can't be written.
+     */
+    static void replace(File file, ActivityRollup rollup) throws IOException {
+	File temp = new File(file.getPath() + ".tmp");
+	FileOutputStream out = new FileOutputStream(temp);
+	boolean written = false;
+	try {
+	    rollup.write(out.getChannel());
+	    written = true;
+	} finally {
+	    out.close();
+	    if(!written)
+		temp.delete();
+	}
+	Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Sorts every level by time and adds up the entries of each bucket.
+     */
+    private void normalize() {
+	for(int level = 0; level < LEVELS; level++) {
+	    int n = this.sizes[level];
+	    // entries are appended in time order, so this is usually sorted
+	    boolean sorted = true;
+	    for(int i = 1; i < n && sorted; i++)
+		sorted = this.starts[level][i - 1] <= this.starts[level][i];
+	    long[] starts = this.starts[level];
+	    int[] counts = this.counts[level];
+	    if(!sorted) {
+		long[][] pairs = new long[n][];
+		for(int i = 0; i < n; i++)
+		    pairs[i] = new long[] { starts[i], counts[i] };
+		Arrays.sort(pairs, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+			    return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+			}
+		    });
+		for(int i = 0; i < n; i++) {
+		    starts[i] = pairs[i][0];
+		    counts[i] = (int)pairs[i][1];
+		}
+	    }
+
+	    int m = 0;
+	    for(int i = 0; i < n; i++) {
+		if(m > 0 && starts[m - 1] == starts[i]) {
+		    counts[m - 1] += counts[i];
+		} else {
+		    starts[m] = starts[i];
+		    counts[m] = counts[i];
+		    m++;
+		}
+	    }
+	    this.sizes[level] = m;
+	}
+    }
+
+    /**
+     * Appends a bucket to a level, growing it if it is full.
+     * @param level The level.
+     * @param start Start of the bucket.
+     * @param count Events in it.
+     */
+    private void append(int level, long start, int count) {
+	int n = this.sizes[level];
+	if(n == this.starts[level].length) {
+	    this.starts[level] = Arrays.copyOf(this.starts[level], n * 2);
+	    this.counts[level] = Arrays.copyOf(this.counts[level], n * 2);
+	}
+	this.starts[level][n] = start;
+	this.counts[level][n] = count;
+	this.sizes[level] = n + 1;
+    }
+}
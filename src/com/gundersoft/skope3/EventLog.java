@@ -0,0 +1,554 @@
+package com.gundersoft.skope3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact in-memory log of keyboard activity. Every record is a single
+ * packed long in a growable array, so a key press and the character it
+ * typed cost 8 bytes together. The "typed text" and "pressed keys" views
+ * are only rendered when they are flushed or asked for.
+ * <p>
+ * Record layout, high bits first:
+ * <pre>
+ *  flags:4 | modifiers:4 | key code:16 | typed char:16 | delta millis:24
+ *  flags:4 (TIME)        | delta millis:60
+ * </pre>
+ * Deltas are measured from the previous record. A gap too big for 24 bits
+ * is stored as a separate TIME record.
+ * <p>
+ * Timed views, as older versions wrote them to two log files, start with
+ * a base tag, '\1'millis'\2', holding the time of the first event in
+ * decimal. Every
+ * event is then preceded by a delta tag: '\1' followed by the millis since
+ * the previous event as a little endian varint of 5 bit digits. Digits
+ * that are followed by more digits are written as DELTA_MORE + bits, the
+ * last digit as DELTA_LAST + bits, so a delta tag needs no end marker and
+ * never contains a decimal digit, '\1' or '\2'. Typed '\1' and '\2'
+ * characters are left out of the text view.
+ * <p>
+ * The log file now holds the events themselves, rendered by
+ * renderEvents() with the same tags, and both views are derived from it
+ * when it is read, so they can't drift apart. After its delta tag
+ * every event is a header byte, EVENT_HEADER plus the EVENT_ flags and
+ * the modifiers, then the key code, if a key was pressed, as three 6 bit
+ * digits from CODE_DIGIT up, then the typed char, if one was typed, in
+ * UTF-8. Surrogates are written one at a time. None of these bytes is
+ * '\1' or '\2', so each event is one snippet to LogCursor.
+ * @author Christian Gunderman
+ */
+public class EventLog {
+    /** Starts every tag in a timed view. */
+    public static final char TAG_START = '\1';
+    /** Ends a base tag. */
+    public static final char TAG_END = '\2';
+    /** Base of delta tag digits that have more digits after them. */
+    public static final char DELTA_MORE = 0x60;
+    /** Base of the last digit of a delta tag. */
+    public static final char DELTA_LAST = 0x40;
+    /** Bits of the delta held by each delta tag digit. */
+    public static final int DELTA_BITS = 5;
+    /** View of a log of text: each snippet's own text. */
+    public static final int VIEW_RAW = 0;
+    /** View of an event log: the typed text. */
+    public static final int VIEW_TEXT = 1;
+    /** View of an event log: the names of the pressed keys. */
+    public static final int VIEW_KEYS = 2;
+    /** How a typed backspace reads in the text view. */
+    public static final String BACKSPACE = "[Backspace]";
+    /** Written event header without flags or modifiers. */
+    private static final int EVENT_HEADER = 0x20;
+    /** Written event header flag: a key code follows. */
+    private static final int EVENT_PRESSED = 0x10;
+    /** Written event header flag: a typed char follows. */
+    private static final int EVENT_TYPED = 0x20;
+    /** Base of the 6 bit digits of a written key code. */
+    private static final int CODE_DIGIT = 0x30;
+    /** Record holds a key press. */
+    private static final long FLAG_PRESSED = 1L << 60;
+    /** Record holds a typed character. */
+    private static final long FLAG_TYPED = 2L << 60;
+    /** Record only moves the clock forward. */
+    private static final long FLAG_TIME = 8L << 60;
+    /** Largest delta that fits in a regular record. */
+    private static final long MAX_DELTA = (1L << 24) - 1;
+    /** Largest gap in millis for merging a typed char into its key press. */
+    private static final long MERGE_MILLIS = 50;
+    /** Only the keyboard modifiers (shift, ctrl, meta, alt) are kept. */
+    private static final int MODIFIER_MASK = 0xF;
+
+    /** The packed records. */
+    private long[] records;
+    /** Number of records in use. */
+    private int size;
+    /** Time of the first record. */
+    private long baseTime;
+    /** Time of the last record. */
+    private long lastTime;
+    /** Number of records that hold a typed character. */
+    private int typedCount;
+    /** Number of records that hold a key press. */
+    private int pressedCount;
+    /** Initial capacity, restored by clear() to give memory back. */
+    private final int initialCapacity;
+
+    /**
+     * Creates an empty log.
+     * @param initialCapacity Number of records to make room for up front.
+     */
+    public EventLog(int initialCapacity) {
+	this.initialCapacity = Math.max(16, initialCapacity);
+	this.records = new long[this.initialCapacity];
+	clear();
+    }
+
+    /**
+     * Records a key press.
+     * @param keyCode The native key code.
+     * @param modifiers The NativeInputEvent modifier mask.
+     * @param when Time of the press in milliseconds.
+     */
+    public void addPressed(int keyCode, int modifiers, long when) {
+	long delta = advance(when);
+	append(FLAG_PRESSED | ((long)(modifiers & MODIFIER_MASK) << 56)
+	       | ((long)(keyCode & 0xFFFF) << 40) | delta);
+	this.pressedCount++;
+    }
+
+    /**
+     * Records a typed character. If it follows the key press that
+     * produced it, it is folded into that press's record.
+     * @param key The typed character.
+     * @param modifiers The NativeInputEvent modifier mask.
+     * @param when Time the character was typed in milliseconds.
+     */
+    public void addTyped(char key, int modifiers, long when) {
+	if(this.size > 0) {
+	    long last = this.records[this.size - 1];
+	    if((last & (FLAG_PRESSED | FLAG_TYPED | FLAG_TIME)) == FLAG_PRESSED
+	       && when >= this.lastTime && when - this.lastTime <= MERGE_MILLIS) {
+		this.records[this.size - 1] = last | FLAG_TYPED | ((long)key << 24);
+		this.typedCount++;
+		return;
+	    }
+	}
+
+	long delta = advance(when);
+	append(FLAG_TYPED | ((long)(modifiers & MODIFIER_MASK) << 56)
+	       | ((long)key << 24) | delta);
+	this.typedCount++;
+    }
+
+    /**
+     * Checks if there are any records.
+     * @return True if the log is empty.
+     */
+    public boolean isEmpty() {
+	return this.size == 0;
+    }
+
+    /**
+     * Gets the number of records. A key press and the character it typed
+     * share one record.
+     * @return The record count.
+     */
+    public int size() {
+	return this.size;
+    }
+
+    /**
+     * Gets the number of typed characters in the log.
+     * @return The typed character count.
+     */
+    public int getTypedCount() {
+	return this.typedCount;
+    }
+
+    /**
+     * Gets the number of key presses in the log.
+     * @return The key press count.
+     */
+    public int getPressedCount() {
+	return this.pressedCount;
+    }
+
+    /**
+     * Gets the number of bytes taken up by the records in use.
+     * @return Record count times record size.
+     */
+    public long getRecordBytes() {
+	return (long)this.size * 8;
+    }
+
+    /**
+     * Gets the number of bytes of heap used by the records.
+     * @return The size of the backing array in bytes.
+     */
+    public long getMemoryUsage() {
+	return (long)this.records.length * 8;
+    }
+
+    /**
+     * Throws away all records. Shrinks the backing array back to its
+     * initial size if it had grown.
+     */
+    public void clear() {
+	if(this.records.length > this.initialCapacity)
+	    this.records = new long[this.initialCapacity];
+	this.size = 0;
+	this.baseTime = 0;
+	this.lastTime = 0;
+	this.typedCount = 0;
+	this.pressedCount = 0;
+    }
+
+    /**
+     * Renders the typed text view: every typed character, with backspace
+     * spelled out as [Backspace].
+     * @param out Receives the text.
+     * @param timed True to put a base tag in front of the view and a delta
+     * tag in front of every character.
+     * @return Time in the base tag, -1 if no base tag was written.
+     * @throws IOException Thrown if out can't be written to.
+     */
+    public long renderText(Appendable out, boolean timed) throws IOException {
+	long base = -1;
+	long time = this.baseTime;
+	long previous = -1;
+	for(int i = 0; i < this.size; i++) {
+	    long r = this.records[i];
+	    time += delta(r);
+	    if((r & FLAG_TYPED) == 0)
+		continue;
+	    char key = (char)((r >>> 24) & 0xFFFF);
+	    if(key == TAG_START || key == TAG_END)
+		continue;
+
+	    if(timed) {
+		if(previous < 0) {
+		    out.append(TAG_START).append(Long.toString(time)).append(TAG_END);
+		    previous = time;
+		    base = time;
+		}
+		out.append(TAG_START);
+		for(long d = time - previous; ; d >>>= DELTA_BITS) {
+		    if(d < (1 << DELTA_BITS)) {
+			out.append((char)(DELTA_LAST + d));
+			break;
+		    }
+		    out.append((char)(DELTA_MORE + (d & ((1 << DELTA_BITS) - 1))));
+		}
+		previous = time;
+	    }
+
+	    if(key == '\b')
+		out.append(BACKSPACE);
+	    else
+		out.append(key);
+	}
+	return base;
+    }
+
+    /**
+     * Renders the pressed keys view: the name of every key pressed,
+     * separated by semicolons.
+     * @param out Receives the encoded text.
+     * @param names The key name table.
+     * @param timed True to put a base tag in front of the view and a delta
+     * tag in front of every key.
+     * @return Time in the base tag, -1 if no base tag was written.
+     * @throws IOException Thrown if out can't be written to.
+     */
+    public long renderKeys(OutputStream out, KeyNames names, boolean timed) throws IOException {
+	long base = -1;
+	long time = this.baseTime;
+	long previous = -1;
+	for(int i = 0; i < this.size; i++) {
+	    long r = this.records[i];
+	    time += delta(r);
+	    if((r & FLAG_PRESSED) == 0)
+		continue;
+
+	    if(timed) {
+		if(previous < 0) {
+		    writeBase(out, time);
+		    previous = time;
+		    base = time;
+		}
+		writeDelta(out, time - previous);
+		previous = time;
+	    }
+
+	    out.write(names.get((int)((r >>> 40) & 0xFFFF)));
+	}
+	return base;
+    }
+
+    /**
+     * Renders the events themselves, as written to the log file: a base
+     * tag, then a delta tag and the encoded event for every key press and
+     * typed char. A key press and the char it typed are one event.
+     * @param out Receives the encoded events.
+     * @return Time in the base tag, -1 if there were no events.
+     * @throws IOException Thrown if out can't be written to.
+     */
+    public long renderEvents(OutputStream out) throws IOException {
+	long base = -1;
+	long time = this.baseTime;
+	long previous = -1;
+	for(int i = 0; i < this.size; i++) {
+	    long r = this.records[i];
+	    time += delta(r);
+	    int flags = 0;
+	    if((r & FLAG_PRESSED) != 0)
+		flags |= EVENT_PRESSED;
+	    char key = (char)((r >>> 24) & 0xFFFF);
+	    if((r & FLAG_TYPED) != 0 && key != TAG_START && key != TAG_END)
+		flags |= EVENT_TYPED;
+	    if((r & FLAG_TIME) != 0 || flags == 0)
+		continue;
+
+	    if(previous < 0) {
+		writeBase(out, time);
+		base = time;
+	    } else {
+		writeDelta(out, time - previous);
+	    }
+	    previous = time;
+
+	    out.write(EVENT_HEADER + flags + (int)((r >>> 56) & MODIFIER_MASK));
+	    if((flags & EVENT_PRESSED) != 0) {
+		int code = (int)((r >>> 40) & 0xFFFF);
+		out.write(CODE_DIGIT + (code >>> 12));
+		out.write(CODE_DIGIT + ((code >>> 6) & 0x3F));
+		out.write(CODE_DIGIT + (code & 0x3F));
+	    }
+	    if((flags & EVENT_TYPED) == 0)
+		continue;
+	    if(key < 0x80) {
+		out.write(key);
+	    } else if(key < 0x800) {
+		out.write(0xC0 | (key >>> 6));
+		out.write(0x80 | (key & 0x3F));
+	    } else {
+		out.write(0xE0 | (key >>> 12));
+		out.write(0x80 | ((key >>> 6) & 0x3F));
+		out.write(0x80 | (key & 0x3F));
+	    }
+	}
+	return base;
+    }
+
+    /**
+     * Counts the events renderEvents() writes into an activity rollup.
+     * @param activity Receives the events.
+     */
+    public void countActivity(ActivityRollup activity) {
+	long time = this.baseTime;
+	for(int i = 0; i < this.size; i++) {
+	    long r = this.records[i];
+	    time += delta(r);
+	    if((r & FLAG_TIME) != 0)
+		continue;
+	    char key = (char)((r >>> 24) & 0xFFFF);
+	    if((r & FLAG_PRESSED) != 0
+	       || ((r & FLAG_TYPED) != 0 && key != TAG_START && key != TAG_END))
+		activity.add(time);
+	}
+    }
+
+    /**
+     * Gets the key code of an event written by renderEvents().
+     * @param region Holds the event.
+     * @param start Offset of the event, after its tag.
+     * @param length Length of the event in bytes.
+     * @return The native key code, -1 if no key was pressed or it isn't
+     * an event.
+     */
+    public static int getKeyCode(ByteBuffer region, int start, int length) {
+	int header = length > 0 ? region.get(start) - EVENT_HEADER : 0;
+	if(header < EVENT_PRESSED || header > (EVENT_PRESSED | EVENT_TYPED | MODIFIER_MASK)
+	   || (header & EVENT_PRESSED) == 0 || length < 4)
+	    return -1;
+	return ((region.get(start + 1) - CODE_DIGIT) << 12)
+	    | ((region.get(start + 2) - CODE_DIGIT) << 6) | (region.get(start + 3) - CODE_DIGIT);
+    }
+
+    /**
+     * Gets the modifiers of an event written by renderEvents().
+     * @param region Holds the event.
+     * @param start Offset of the event, after its tag.
+     * @param length Length of the event in bytes.
+     * @return The NativeInputEvent modifier mask, -1 if it isn't an event.
+     */
+    public static int getModifiers(ByteBuffer region, int start, int length) {
+	int header = length > 0 ? region.get(start) - EVENT_HEADER : 0;
+	if(header < EVENT_PRESSED || header > (EVENT_PRESSED | EVENT_TYPED | MODIFIER_MASK))
+	    return -1;
+	return header & MODIFIER_MASK;
+    }
+
+    /**
+     * Renders an event written by renderEvents() as one of its views.
+     * @param out Receives the event's text in the view, null to only
+     * count it.
+     * @param region Holds the event.
+     * @param start Offset of the event, after its tag.
+     * @param length Length of the event in bytes.
+     * @param view VIEW_TEXT or VIEW_KEYS.
+     * @param names The key name table, for VIEW_KEYS.
+     * @return Number of chars the event has in the view, 0 if it isn't in
+     * the view or isn't an event.
+     */
+    public static int appendView(StringBuilder out, ByteBuffer region, int start, int length,
+				 int view, KeyNames names) {
+	int end = start + length;
+	int header = length > 0 ? region.get(start) - EVENT_HEADER : 0;
+	if(header < EVENT_PRESSED || header > (EVENT_PRESSED | EVENT_TYPED | MODIFIER_MASK))
+	    return 0;
+
+	int p = start + 1;
+	if((header & EVENT_PRESSED) != 0) {
+	    if(p + 3 > end)
+		return 0;
+	    if(view == VIEW_KEYS) {
+		int code = ((region.get(p) - CODE_DIGIT) << 12)
+		    | ((region.get(p + 1) - CODE_DIGIT) << 6) | (region.get(p + 2) - CODE_DIGIT);
+		String name = names.getText(code);
+		if(out != null)
+		    out.append(name);
+		return name.length();
+	    }
+	    p += 3;
+	}
+	if(view != VIEW_TEXT || (header & EVENT_TYPED) == 0 || p >= end)
+	    return 0;
+
+	// typed char, one to three bytes of UTF-8
+	int b = region.get(p) & 0xFF;
+	char key;
+	if(b < 0x80)
+	    key = (char)b;
+	else if(b < 0xE0 && p + 1 < end)
+	    key = (char)(((b & 0x1F) << 6) | (region.get(p + 1) & 0x3F));
+	else if(p + 2 < end)
+	    key = (char)(((b & 0x0F) << 12) | ((region.get(p + 1) & 0x3F) << 6)
+			 | (region.get(p + 2) & 0x3F));
+	else
+	    return 0;
+
+	if(key == '\b') {
+	    if(out != null)
+		out.append(BACKSPACE);
+	    return BACKSPACE.length();
+	}
+	if(out != null)
+	    out.append(key);
+	return 1;
+    }
+
+    /**
+     * Checks if a snippet is exactly one event written by renderEvents(),
+     * to tell an event log from a log of text.
+     * @param region Holds the snippet.
+     * @param start Offset of the snippet.
+     * @param length Length of the snippet in bytes.
+     * @return True if it is an event.
+     */
+    public static boolean isEvent(ByteBuffer region, int start, int length) {
+	int header = length > 0 ? region.get(start) - EVENT_HEADER : 0;
+	if(header < EVENT_PRESSED || header > (EVENT_PRESSED | EVENT_TYPED | MODIFIER_MASK))
+	    return false;
+
+	int p = start + 1;
+	int end = start + length;
+	if((header & EVENT_PRESSED) != 0) {
+	    for(int i = 0; i < 3; i++, p++) {
+		int digit = p < end ? region.get(p) - CODE_DIGIT : -1;
+		if(digit < 0 || digit > 0x3F)
+		    return false;
+	    }
+	}
+	if((header & EVENT_TYPED) == 0)
+	    return p == end;
+	if(p >= end)
+	    return false;
+	int b = region.get(p) & 0xFF;
+	return p + (b < 0x80 ? 1 : b < 0xE0 ? 2 : 3) == end;
+    }
+
+    /**
+     * Writes a base tag.
+     * @param out Receives the tag.
+     * @param time The time in the tag.
+     * @throws IOException Thrown if out can't be written to.
+     */
+    private static void writeBase(OutputStream out, long time) throws IOException {
+	out.write((TAG_START + Long.toString(time) + TAG_END).getBytes(KeyNames.CHARSET));
+    }
+
+    /**
+     * Writes a delta tag.
+     * @param out Receives the tag.
+     * @param delta Millis since the previous tag.
+     * @throws IOException Thrown if out can't be written to.
+     */
+    private static void writeDelta(OutputStream out, long delta) throws IOException {
+	out.write(TAG_START);
+	for(long d = delta; ; d >>>= DELTA_BITS) {
+	    if(d < (1 << DELTA_BITS)) {
+		out.write((int)(DELTA_LAST + d));
+		break;
+	    }
+	    out.write((int)(DELTA_MORE + (d & ((1 << DELTA_BITS) - 1))));
+	}
+    }
+
+    /**
+     * Moves the clock to the given time, storing a TIME record first if
+     * the gap is too big for a regular record.
+     * @param when The time of the record about to be added.
+     * @return The delta to store in that record.
+     */
+    private long advance(long when) {
+	if(this.size == 0) {
+	    this.baseTime = when;
+	    this.lastTime = when;
+	    return 0;
+	}
+
+	// clock went backwards, keep records in order
+	long delta = Math.max(0, when - this.lastTime);
+	this.lastTime += delta;
+	if(delta > MAX_DELTA) {
+	    append(FLAG_TIME | delta);
+	    return 0;
+	}
+	return delta;
+    }
+
+    /**
+     * Gets the delta stored in a record.
+     * @param r The record.
+     * @return The millis since the previous record.
+     */
+    private static long delta(long r) {
+	if((r & FLAG_TIME) != 0)
+	    return r & ~FLAG_TIME;
+	return r & MAX_DELTA;
+    }
+
+    /**
+     * Appends a record, growing the array if needed.
+     * @param r The record.
+     */
+    private void append(long r) {
+	if(this.size == this.records.length) {
+	    long[] bigger = new long[this.records.length * 2];
+	    System.arraycopy(this.records, 0, bigger, 0, this.size);
+	    this.records = bigger;
+	}
+	this.records[this.size++] = r;
+    }
+}
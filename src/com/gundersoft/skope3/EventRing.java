@@ -0,0 +1,128 @@
+package com.gundersoft.skope3;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size, lock-free ring of keyboard events shared by exactly one
+ * producer thread (the native hook dispatcher) and exactly one consumer
+ * thread (the Keylogger drain thread). All slots are allocated up front
+ * so publishing an event never allocates or blocks.
+ * @author Christian Gunderman
+ */
+public class EventRing {
+    /** Event type for a key being pressed. Code is the native key code. */
+    public static final int EVENT_PRESSED = 0;
+    /** Event type for a character being typed. Code is the typed char. */
+    public static final int EVENT_TYPED = 1;
+
+    /** Number of slots minus one. Capacity is always a power of two. */
+    private final int mask;
+    /** Type of the event in each slot. */
+    private final int[] types;
+    /** Key code or typed character of the event in each slot. */
+    private final int[] codes;
+    /** Modifier key mask of the event in each slot. */
+    private final int[] modifiers;
+    /** Time in milliseconds at which the event in each slot happened. */
+    private final long[] times;
+    /** Index of the next slot the consumer will read. */
+    private final AtomicLong readIndex;
+    /** Index of the next slot the producer will write. */
+    private final AtomicLong writeIndex;
+    /** Producer's last look at readIndex, saves a volatile read per event. */
+    private long cachedReadIndex;
+    /** Number of events thrown away because the ring was full. */
+    private volatile long dropped;
+
+    /**
+     * Creates a ring with room for at least the given number of events.
+     * @param capacity Minimum number of slots. Rounded up to a power of two.
+     */
+    public EventRing(int capacity) {
+	int size = 1;
+	while(size < capacity)
+	    size <<= 1;
+	this.mask = size - 1;
+	this.types = new int[size];
+	this.codes = new int[size];
+	this.modifiers = new int[size];
+	this.times = new long[size];
+	this.readIndex = new AtomicLong();
+	this.writeIndex = new AtomicLong();
+	this.cachedReadIndex = 0;
+	this.dropped = 0;
+    }
+
+    /**
+     * Publishes an event into the ring. Must only be called from the
+     * producer thread. Never blocks and never allocates.
+     * @param type EVENT_PRESSED or EVENT_TYPED.
+     * @param code The key code or typed character.
+     * @param modifiers The NativeInputEvent modifier mask.
+     * @param when Time of the event in milliseconds.
+     * @return True if the event was stored, false if the ring was full
+     * and the event was dropped.
+     */
+    public boolean publish(int type, int code, int modifiers, long when) {
+	long write = this.writeIndex.get();
+	if(write - this.cachedReadIndex > this.mask) {
+	    this.cachedReadIndex = this.readIndex.get();
+	    if(write - this.cachedReadIndex > this.mask) {
+		this.dropped++;
+		return false;
+	    }
+	}
+
+	int slot = (int)write & this.mask;
+	this.types[slot] = type;
+	this.codes[slot] = code;
+	this.modifiers[slot] = modifiers;
+	this.times[slot] = when;
+
+	// make slot contents visible before the new write index
+	this.writeIndex.lazySet(write + 1);
+	return true;
+    }
+
+    /**
+     * Hands every published event to the given handler, oldest first,
+     * then releases the slots back to the producer. Must only be called
+     * from the consumer thread.
+     * @param handler Receives each event.
+     * @return The number of events drained.
+     */
+    public int drain(Handler handler) {
+	long read = this.readIndex.get();
+	long write = this.writeIndex.get();
+	for(long i = read; i < write; i++) {
+	    int slot = (int)i & this.mask;
+	    handler.event(this.types[slot], this.codes[slot], this.modifiers[slot],
+			  this.times[slot]);
+	}
+	this.readIndex.lazySet(write);
+	return (int)(write - read);
+    }
+
+    /**
+     * Checks if there are events waiting to be drained.
+     * @return True if the ring is empty.
+     */
+    public boolean isEmpty() {
+	return this.readIndex.get() == this.writeIndex.get();
+    }
+
+    /**
+     * Gets the number of events lost because the consumer fell behind.
+     * @return Count of dropped events.
+     */
+    public long getDroppedCount() {
+	return this.dropped;
+    }
+
+    /**
+     * Receives events drained from the ring.
+     */
+    public interface Handler {
+	public void event(int type, int code, int modifiers, long when);
+    }
+}
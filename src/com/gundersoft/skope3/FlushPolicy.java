@@ -0,0 +1,149 @@
+package com.gundersoft.skope3;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides when the Keylogger flushes its event log. A flush happens on
+ * whichever comes first: the flush interval passing, the buffered data
+ * reaching a byte threshold, or the JVM running low on heap. Also holds
+ * the hard ceiling on how much unwritten data the log writers may keep,
+ * and counts how often each trigger fired.
+ * @author Christian Gunderman
+ */
+public class FlushPolicy {
+    /** No flush is due. */
+    public static final int TRIGGER_NONE = -1;
+    /** The flush interval passed. */
+    public static final int TRIGGER_TIME = 0;
+    /** The buffered data reached the byte threshold. */
+    public static final int TRIGGER_SIZE = 1;
+    /** Free heap fell below the low memory mark. */
+    public static final int TRIGGER_MEMORY = 2;
+    /** Someone called flushBuffers(). */
+    public static final int TRIGGER_REQUEST = 3;
+    /** Names of the triggers for the debug log, by trigger number. */
+    private static final String[] TRIGGER_NAMES = { "time", "size", "memory", "request" };
+    /** How often free heap is checked. */
+    private static final long MEMORY_CHECK_MILLIS = 1000;
+
+    /** Delay between timed flushes. */
+    private final long intervalMillis;
+    /** Buffered bytes that force a flush. */
+    private final long thresholdBytes;
+    /** Most unwritten bytes a log writer may hold before dropping data. */
+    private final long ceilingBytes;
+    /** Fraction of max heap that must stay free. */
+    private final double lowMemoryFraction;
+    /** Number of times each trigger fired. */
+    private final AtomicLongArray counts;
+    /** Time the next timed flush is due. */
+    private long nextFlushTime;
+    /** Time free heap is next checked. */
+    private long nextMemoryCheck;
+
+    /**
+     * Creates a flush policy.
+     * @param intervalMillis Delay between timed flushes.
+     * @param thresholdBytes Buffered bytes that force an early flush.
+     * @param ceilingBytes Most unwritten bytes a log writer may hold when
+     * its file can't be written.
+     * @param lowMemoryPercent Flush early when less than this percent of
+     * the max heap is free. Zero disables the check.
+     */
+    public FlushPolicy(long intervalMillis, long thresholdBytes, long ceilingBytes,
+		       int lowMemoryPercent) {
+	this.intervalMillis = intervalMillis;
+	this.thresholdBytes = thresholdBytes;
+	this.ceilingBytes = ceilingBytes;
+	this.lowMemoryFraction = lowMemoryPercent / 100.0;
+	this.counts = new AtomicLongArray(TRIGGER_NAMES.length);
+    }
+
+    /**
+     * Starts the timed schedule. The first timed flush is due right away.
+     * @param now The current time.
+     */
+    public void start(long now) {
+	this.nextFlushTime = now;
+	this.nextMemoryCheck = now;
+    }
+
+    /**
+     * Checks if a flush is due.
+     * @param now The current time.
+     * @param bufferedBytes Bytes waiting in the event log.
+     * @return The trigger that fired, or TRIGGER_NONE.
+     */
+    public int check(long now, long bufferedBytes) {
+	if(now >= this.nextFlushTime)
+	    return TRIGGER_TIME;
+	if(bufferedBytes >= this.thresholdBytes)
+	    return TRIGGER_SIZE;
+	if(bufferedBytes > 0 && this.lowMemoryFraction > 0 && now >= this.nextMemoryCheck) {
+	    this.nextMemoryCheck = now + MEMORY_CHECK_MILLIS;
+	    if(isMemoryLow())
+		return TRIGGER_MEMORY;
+	}
+	return TRIGGER_NONE;
+    }
+
+    /**
+     * Records that a flush happened. Every flush restarts the timed
+     * schedule so a size triggered flush isn't followed by a nearly
+     * empty timed one.
+     * @param trigger The trigger that caused the flush.
+     * @param now The current time.
+     */
+    public void flushed(int trigger, long now) {
+	this.counts.incrementAndGet(trigger);
+	this.nextFlushTime = now + this.intervalMillis;
+    }
+
+    /**
+     * Gets the time the next timed flush is due.
+     * @return The deadline in milliseconds.
+     */
+    public long getNextFlushTime() {
+	return this.nextFlushTime;
+    }
+
+    /**
+     * Gets the hard ceiling for unwritten data per log writer.
+     * @return The ceiling in bytes.
+     */
+    public long getCeilingBytes() {
+	return this.ceilingBytes;
+    }
+
+    /**
+     * Gets the number of times a trigger fired.
+     * @param trigger One of the TRIGGER_ constants.
+     * @return The count.
+     */
+    public long getCount(int trigger) {
+	return this.counts.get(trigger);
+    }
+
+    /**
+     * Gets the trigger counts as a single line for the debug log.
+     * @return The summary.
+     */
+    public String getStatistics() {
+	StringBuilder stats = new StringBuilder("flush triggers:");
+	for(int i = 0; i < TRIGGER_NAMES.length; i++)
+	    stats.append(' ').append(TRIGGER_NAMES[i]).append('=').append(this.counts.get(i));
+	return stats.toString();
+    }
+
+    /**
+     * Checks if free heap, counting room the heap can still grow into,
+     * is below the low memory mark.
+     * @return True if memory is low.
+     */
+    private boolean isMemoryLow() {
+	Runtime runtime = Runtime.getRuntime();
+	long max = runtime.maxMemory();
+	long used = runtime.totalMemory() - runtime.freeMemory();
+	return (max - used) < max * this.lowMemoryFraction;
+    }
+}
@@ -0,0 +1,863 @@
+package com.gundersoft.skope3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Appends rendered key log data to a LogStore through a FileChannel that
+ * stays open between flushes. Two preallocated batches of buffers are used:
+ * the owner fills the front batch while a task on the Scheduler's I/O pool
+ * drains the back batch to disk with one gathering write. Commits that
+ * arrive within the group commit window are merged into a single write.
+ * <p>
+ * Every commit is closed with a frame trailer holding its length and CRC,
+ * so a reader can tell a commit torn by a crash from a whole one. Every
+ * commit that carries a time is a candidate entry for the active
+ * segment's sparse time index, and the activity counted with it goes to
+ * the segment's activity rollup once it is written. Batches only go to
+ * the store whole, so the store can seal a segment between any two writes.
+ * <p>
+ * If the log file can't be written, batches spill to an overflow file next
+ * to it, which is merged back into the log by the next successful write.
+ * A write that fails part way is cut back off the segment, or the
+ * overflow file, and the batch goes again from its start, so no file
+ * ever holds the tail of a frame without its head.
+ * If neither can be written, unwritten data is held up to a hard ceiling
+ * and the oldest data is dropped past it.
+ * <p>
+ * Usage, from one filling thread:
+ * <pre>
+ *  OutputStream out = writer.begin();
+ *  try { ... write to out ... } finally { ticket = writer.commit(time); }
+ *  writer.await(ticket, timeout); // only if the caller must see it on disk
+ * </pre>
+ * @author Christian Gunderman
+ */
+public class FlushWriter {
+    /** Size of each buffer in a batch. */
+    private static final int CHUNK_SIZE = 16384;
+    /** Buffers preallocated per batch. */
+    private static final int INITIAL_CHUNKS = 2;
+
+    /** The segmented log file. */
+    private final LogStore store;
+    /** Where batches go when the log file can't be written. */
+    private final File overflowFile;
+    /** Most unwritten bytes held before the oldest are dropped. */
+    private final long ceilingBytes;
+    /** Time to wait after a commit for others to join the same write. */
+    private final long groupCommitMillis;
+    /** Guards the batches, tickets and statistics. */
+    private final ReentrantLock lock;
+    /** Signalled when a write finishes, successfully or not. */
+    private final Condition writtenCondition;
+    /** Serializes all use of the channel. */
+    private final Object ioLock;
+    /** Batch being filled by the owner. */
+    private Batch front;
+    /** Batch being written to disk. */
+    private Batch back;
+    /** Channel of the store's active segment, or null until the next write. */
+    private FileChannel channel;
+    /** Highest ticket handed out by commit(). */
+    private long committedTicket;
+    /** Highest ticket known to be on disk. */
+    private long writtenTicket;
+    /** Highest ticket whose write failed with lastError. */
+    private long failedTicket;
+    /** Error from the most recent failed write. */
+    private IOException lastError;
+    /** Time the oldest unwritten commit in the front batch was made. */
+    private long frontCommitNanos;
+    /** Pool the writes run on. */
+    private final Scheduler.Pool pool;
+    /** Runs queued writes on the pool. */
+    private final Runnable writeTask;
+    /** True while writeTask is queued or running. */
+    private boolean writeQueued;
+    /** Cleared by close(), after which commits are written right away. */
+    private boolean open;
+    /** Size of the front batch when begin() was called. */
+    private long frontStart;
+    /** Stream view of the front batch handed out by begin(). */
+    private final OutputStream frontStream;
+    /** CRC of the data written since begin(). */
+    private final CRC32 frameCrc;
+    /** Activity of batches in the overflow file, added once they are merged. */
+    private final ActivityRollup spilledActivity;
+    /** Force every write through to the disk before reporting it written. */
+    private volatile boolean forceWrites;
+
+    /** Number of commits. */
+    private long commitCount;
+    /** Number of gathering writes, each may hold several commits. */
+    private long writeCount;
+    /** Bytes written to the file. */
+    private long bytesWritten;
+    /** Time spent inside channel writes. */
+    private long writeNanos;
+    /** Time from commit to data written, summed over all writes. */
+    private long latencyNanos;
+    /** Commit to written latency of the most recent write. */
+    private long lastLatencyNanos;
+    /** Number of batches written to the overflow file. */
+    private long spillCount;
+    /** Bytes written to the overflow file. */
+    private long bytesSpilled;
+    /** Bytes thrown away because of the ceiling. */
+    private long bytesDropped;
+
+    /**
+     * Creates a writer for the given store. The store is not opened until
+     * there is something to write.
+     * @param store The log to append to.
+     * @param pool The pool that runs the writes.
+     * @param groupCommitMillis How long a write waits for more commits.
+     * @param ceilingBytes Most unwritten bytes to hold when neither the
+     * log nor the overflow file can be written.
+     */
+    public FlushWriter(LogStore store, Scheduler.Pool pool, long groupCommitMillis,
+		       long ceilingBytes) {
+	this.store = store;
+	this.overflowFile = new File(store.getBase().getPath() + ".overflow");
+	this.ceilingBytes = ceilingBytes;
+	this.groupCommitMillis = groupCommitMillis;
+	this.lock = new ReentrantLock();
+	this.writtenCondition = this.lock.newCondition();
+	this.ioLock = new Object();
+	this.front = new Batch();
+	this.back = new Batch();
+	this.spilledActivity = new ActivityRollup();
+	this.frontStream = new OutputStream() {
+		@Override
+		public void write(int b) {
+		    FlushWriter.this.front.put((byte)b);
+		    FlushWriter.this.frameCrc.update(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		    FlushWriter.this.front.put(b, off, len);
+		    FlushWriter.this.frameCrc.update(b, off, len);
+		}
+	    };
+	this.frameCrc = new CRC32();
+	this.pool = pool;
+	this.writeTask = new Runnable() {
+		@Override
+		public void run() {
+		    writeQueuedCommits();
+		}
+	    };
+	this.open = true;
+    }
+
+    /**
+     * Gets the store this writer appends to.
+     * @return The segmented log.
+     */
+    public LogStore getStore() {
+	return this.store;
+    }
+
+    /**
+     * Starts filling the front batch. Must be paired with commit().
+     * @return A stream that appends to the front batch.
+     */
+    public OutputStream begin() {
+	this.lock.lock();
+	this.frontStart = this.front.size();
+	this.frameCrc.reset();
+	return this.frontStream;
+    }
+
+    /**
+     * Finishes filling started by begin() and queues the data for writing.
+     * If the pool won't take the write, or the writer is closed, the data
+     * is written before this returns.
+     * @param time Time of the base tag the data starts with, -1 if it
+     * starts with none and can't be indexed.
+     * @return A ticket that can be passed to await().
+     */
+    public long commit(long time) {
+	return commit(time, null);
+    }
+
+    /**
+     * Finishes filling started by begin(), as commit(long), with the
+     * events the data holds counted for the activity rollup.
+     * @param time Time of the base tag the data starts with, -1 if it
+     * starts with none and can't be indexed.
+     * @param activity The data's events, or null. Copied, so the caller
+     * can reuse it.
+     * @return A ticket that can be passed to await().
+     */
+    public long commit(long time, ActivityRollup activity) {
+	long ticket;
+	boolean queue;
+	boolean writeNow;
+	try {
+	    // writes are failing and this is over the ceiling, the oldest
+	    // commits go but the one being made stays
+	    if(this.front.size() > this.ceilingBytes && this.frontStart > 0) {
+		this.bytesDropped += this.frontStart;
+		this.front.discard(this.frontStart);
+		this.frontStart = 0;
+		this.frontCommitNanos = 0;
+	    }
+	    if(this.front.size() > this.frontStart) {
+		byte[] trailer = LogStore.frameTrailer(this.front.size() - this.frontStart,
+						       this.frameCrc.getValue());
+		this.front.put(trailer, 0, trailer.length);
+	    }
+	    if(time >= 0 && this.front.size() > this.frontStart)
+		this.front.mark(time, this.frontStart);
+	    if(activity != null && this.front.size() > this.frontStart)
+		this.front.activity.addAll(activity);
+	    if(this.front.size() > 0 && this.frontCommitNanos == 0)
+		this.frontCommitNanos = System.nanoTime();
+	    this.commitCount++;
+	    ticket = ++this.committedTicket;
+	    queue = this.open && !this.writeQueued;
+	    writeNow = !this.open;
+	    if(queue)
+		this.writeQueued = true;
+	} finally {
+	    this.lock.unlock();
+	}
+
+	if(queue && !this.pool.execute(this.writeTask)) {
+	    this.lock.lock();
+	    try {
+		this.writeQueued = false;
+	    } finally {
+		this.lock.unlock();
+	    }
+	    writeNow = true;
+	}
+	if(writeNow)
+	    writeCommitted();
+	return ticket;
+    }
+
+    /**
+     * Waits until everything committed up to the given ticket is written.
+     * @param ticket A ticket from commit().
+     * @param timeoutMillis Longest time to wait.
+     * @throws IOException Thrown if the write failed or timed out.
+     */
+    public void await(long ticket, long timeoutMillis) throws IOException {
+	long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	this.lock.lock();
+	try {
+	    while(this.writtenTicket < ticket) {
+		if(this.failedTicket >= ticket)
+		    throw this.lastError;
+		if(remaining <= 0)
+		    throw new IOException("Timed out writing to " + this.store.getBase().getName());
+		remaining = this.writtenCondition.awaitNanos(remaining);
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted while writing to " + this.store.getBase().getName());
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Checks, without waiting, if everything committed up to the given
+     * ticket is written.
+     * @param ticket A ticket from commit().
+     * @return True if the data is in the file.
+     */
+    public boolean isWritten(long ticket) {
+	this.lock.lock();
+	try {
+	    return this.writtenTicket >= ticket;
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Sets whether writes are forced to the disk, so they survive an OS
+     * crash, before they count as written.
+     * @param forceWrites True to force every write.
+     */
+    public void setForceWrites(boolean forceWrites) {
+	this.forceWrites = forceWrites;
+    }
+
+    /**
+     * Closes the channel and deletes every segment of the log and any
+     * overflow file. Data committed but not yet written goes to a new
+     * segment. The next write reopens the store.
+     * @return True if the log was deleted.
+     */
+    public boolean delete() {
+	synchronized(this.ioLock) {
+	    closeChannel();
+	    this.overflowFile.delete();
+	    return this.store.delete();
+	}
+    }
+
+    /**
+     * Writes everything committed so far on the calling thread and closes
+     * the channel. Data whose write failed earlier is tried once more, the
+     * back batch and then the front one, until both are written or a
+     * write fails. Later commits are written as they are made.
+     */
+    public void close() {
+	this.lock.lock();
+	try {
+	    this.open = false;
+	} finally {
+	    this.lock.unlock();
+	}
+	synchronized(this.ioLock) {
+	    while(true) {
+		boolean unwritten;
+		this.lock.lock();
+		try {
+		    unwritten = this.back.remaining() > 0 || this.front.size() > 0;
+		} finally {
+		    this.lock.unlock();
+		}
+		if(!unwritten || !writeCommitted())
+		    break;
+	    }
+	    closeChannel();
+	}
+    }
+
+    /**
+     * Gets the number of commits made.
+     * @return The commit count.
+     */
+    public long getCommitCount() {
+	this.lock.lock();
+	try {
+	    return this.commitCount;
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the number of gathering writes made. Lower than the commit count
+     * when commits were grouped.
+     * @return The write count.
+     */
+    public long getWriteCount() {
+	this.lock.lock();
+	try {
+	    return this.writeCount;
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the total number of bytes written to the file.
+     * @return Bytes written.
+     */
+    public long getBytesWritten() {
+	this.lock.lock();
+	try {
+	    return this.bytesWritten;
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the average time between a commit and its data being written.
+     * @return Average flush latency in milliseconds.
+     */
+    public double getAverageLatencyMillis() {
+	this.lock.lock();
+	try {
+	    return this.writeCount == 0 ? 0 : this.latencyNanos / 1e6 / this.writeCount;
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the commit to written time of the most recent write.
+     * @return Last flush latency in milliseconds.
+     */
+    public double getLastLatencyMillis() {
+	this.lock.lock();
+	try {
+	    return this.lastLatencyNanos / 1e6;
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the write throughput, counting only time spent in the channel.
+     * @return Bytes written per second of write time.
+     */
+    public double getBytesPerSecond() {
+	this.lock.lock();
+	try {
+	    return this.writeNanos == 0 ? 0 : this.bytesWritten * 1e9 / this.writeNanos;
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the number of batches that went to the overflow file.
+     * @return The spill count.
+     */
+    public long getSpillCount() {
+	this.lock.lock();
+	try {
+	    return this.spillCount;
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Gets the number of bytes thrown away because the log couldn't be
+     * written and the ceiling was reached.
+     * @return Bytes dropped.
+     */
+    public long getBytesDropped() {
+	this.lock.lock();
+	try {
+	    return this.bytesDropped;
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Gets a one line summary of the flush metrics for the debug log.
+     * @return The summary.
+     */
+    public String getStatistics() {
+	this.lock.lock();
+	try {
+	    return this.store.getBase().getName() + ": " + this.commitCount + " flushes in "
+		+ this.writeCount + " writes, " + this.bytesWritten + " bytes, "
+		+ String.format("%.2f ms avg latency, %.2f ms last, %.0f bytes/s, ",
+				getAverageLatencyMillis(), getLastLatencyMillis(),
+				getBytesPerSecond())
+		+ this.spillCount + " spills (" + this.bytesSpilled + " bytes), "
+		+ this.bytesDropped + " bytes dropped, " + this.store.getSealCount() + " segments sealed";
+	} finally {
+	    this.lock.unlock();
+	}
+    }
+
+    /**
+     * Body of writeTask. Gives other commits the group commit window to
+     * join, then writes until nothing committed is left unwritten.
+     */
+    private void writeQueuedCommits() {
+	if(this.groupCommitMillis > 0) {
+	    try {
+		Thread.sleep(this.groupCommitMillis);
+	    } catch (InterruptedException e) {
+		// write now
+	    }
+	}
+
+	while(true) {
+	    writeCommitted();
+	    this.lock.lock();
+	    try {
+		if(!hasUnwritten()) {
+		    this.writeQueued = false;
+		    return;
+		}
+	    } finally {
+		this.lock.unlock();
+	    }
+	}
+    }
+
+    /**
+     * Checks if there are commits that haven't been written or failed.
+     * After a failure nothing is retried until the next commit. Caller
+     * holds lock.
+     * @return True if there is work for writeCommitted().
+     */
+    private boolean hasUnwritten() {
+	return this.committedTicket > Math.max(this.writtenTicket, this.failedTicket);
+    }
+
+    /**
+     * Swaps the batches and writes the back batch to the channel.
+     * @return True if the write succeeded.
+     */
+    private boolean writeCommitted() {
+	synchronized(this.ioLock) {
+	    long ticket;
+	    long commitNanos;
+	    this.lock.lock();
+	    try {
+		// a failed write leaves data in back, retry it before swapping
+		if(this.back.remaining() == 0) {
+		    this.back.clear();
+		    Batch filled = this.front;
+		    this.front = this.back;
+		    this.back = filled;
+		    this.back.commitNanos = this.frontCommitNanos;
+		    this.back.ticket = this.committedTicket;
+		    this.frontCommitNanos = 0;
+		}
+		ticket = this.back.ticket;
+		commitNanos = this.back.commitNanos;
+	    } finally {
+		this.lock.unlock();
+	    }
+
+	    long start = System.nanoTime();
+	    long written = 0;
+	    long spilled = 0;
+	    IOException error = null;
+	    if(this.back.remaining() > 0) {
+		long offset = -1;
+		try {
+		    this.channel = this.store.channel(!this.overflowFile.exists());
+		    offset = this.channel.size();
+		    mergeOverflow();
+		    offset = this.channel.size();
+		    written = this.back.writeTo(this.channel);
+		    if(this.forceWrites)
+			this.store.force();
+		    this.back.index(this.store, offset);
+		    this.store.activity(this.back.activity);
+		} catch (IOException e) {
+		    // the whole batch goes again, never its tail
+		    written = 0;
+		    if(offset >= 0)
+			this.store.truncate(offset);
+		    this.back.rewind();
+		    closeChannel();
+		    try {
+			spilled = spill();
+			this.spilledActivity.addAll(this.back.activity);
+		    } catch (IOException overflowError) {
+			this.back.rewind();
+			error = e;
+		    }
+		}
+	    }
+	    long end = System.nanoTime();
+
+	    this.lock.lock();
+	    try {
+		if(written > 0) {
+		    this.bytesWritten += written;
+		    this.writeNanos += end - start;
+		}
+		if(error == null) {
+		    this.back.clear();
+		    if(written + spilled > 0) {
+			this.writeCount++;
+			this.lastLatencyNanos = commitNanos == 0 ? 0 : end - commitNanos;
+			this.latencyNanos += this.lastLatencyNanos;
+		    }
+		    if(spilled > 0) {
+			this.spillCount++;
+			this.bytesSpilled += spilled;
+		    }
+		    this.writtenTicket = Math.max(this.writtenTicket, ticket);
+		} else {
+		    // everything committed so far is stuck behind this batch
+		    this.lastError = error;
+		    this.failedTicket = this.committedTicket;
+
+		    // hold no more than the ceiling, oldest data goes first
+		    if(this.back.remaining() + this.front.size() > this.ceilingBytes) {
+			this.bytesDropped += this.back.remaining();
+			this.back.clear();
+		    }
+		}
+		this.writtenCondition.signalAll();
+	    } finally {
+		this.lock.unlock();
+	    }
+	    return error == null;
+	}
+    }
+
+    /**
+     * Writes the back batch to the overflow file. A write that fails part
+     * way is cut back off it. Caller holds ioLock.
+     * @return Bytes written.
+     * @throws IOException Thrown if the overflow file can't be written
+     * either.
+     */
+    private long spill() throws IOException {
+	FileOutputStream out = new FileOutputStream(this.overflowFile, true);
+	try {
+	    FileChannel channel = out.getChannel();
+	    long offset = channel.size();
+	    try {
+		return this.back.writeTo(channel);
+	    } catch (IOException e) {
+		try {
+		    channel.truncate(offset);
+		} catch (IOException truncateError) {
+		    // the next write merges the torn frame, readers skip it
+		}
+		throw e;
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * Moves anything spilled to the overflow file into the log, ahead of
+     * the batch being written. Caller holds ioLock with the channel open.
+     * @throws IOException Thrown if the log can't be written.
+     */
+    private void mergeOverflow() throws IOException {
+	if(!this.overflowFile.exists())
+	    return;
+	FileInputStream in = new FileInputStream(this.overflowFile);
+	try {
+	    FileChannel source = in.getChannel();
+	    long size = source.size();
+	    long position = 0;
+	    while(position < size)
+		position += source.transferTo(position, size - position, this.channel);
+	} finally {
+	    in.close();
+	}
+	this.overflowFile.delete();
+	this.store.activity(this.spilledActivity);
+	this.spilledActivity.clear();
+    }
+
+    /**
+     * Closes the store's active segment. Caller holds ioLock.
+     */
+    private void closeChannel() {
+	this.store.close();
+	this.channel = null;
+    }
+
+    /**
+     * A list of fixed size buffers that grows a buffer at a time and keeps
+     * its buffers when cleared.
+     */
+    private static class Batch {
+	/** The buffers. Only the first used ones hold data. */
+	private ByteBuffer[] chunks;
+	/** Number of buffers holding data. */
+	private int used;
+	/** Bytes held. */
+	private long size;
+	/** Bytes already written by writeTo(). */
+	private long written;
+	/** Time of the oldest commit in this batch. */
+	private long commitNanos;
+	/** Highest commit ticket whose data is in this batch. */
+	private long ticket;
+	/** Times of the base tags marked in this batch. */
+	private long[] markTimes;
+	/** Batch offsets of the base tags marked in this batch. */
+	private long[] markOffsets;
+	/** Number of marks in use. */
+	private int marks;
+	/** Events of the commits in this batch. */
+	private final ActivityRollup activity;
+
+	/**
+	 * Creates a batch with the initial buffers allocated.
+	 */
+	public Batch() {
+	    this.chunks = new ByteBuffer[INITIAL_CHUNKS];
+	    for(int i = 0; i < this.chunks.length; i++)
+		this.chunks[i] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+	    this.used = 1;
+	    this.size = 0;
+	    this.markTimes = new long[8];
+	    this.markOffsets = new long[8];
+	    this.activity = new ActivityRollup();
+	}
+
+	/**
+	 * Gets the number of bytes held.
+	 * @return Size in bytes.
+	 */
+	public long size() {
+	    return this.size;
+	}
+
+	/**
+	 * Gets the number of bytes not yet written by writeTo().
+	 * @return Unwritten bytes.
+	 */
+	public long remaining() {
+	    return this.size - this.written;
+	}
+
+	/**
+	 * Appends a byte.
+	 * @param b The byte.
+	 */
+	public void put(byte b) {
+	    current(1).put(b);
+	    this.size++;
+	}
+
+	/**
+	 * Appends bytes.
+	 * @param b Source array.
+	 * @param off Offset of the first byte.
+	 * @param len Number of bytes.
+	 */
+	public void put(byte[] b, int off, int len) {
+	    while(len > 0) {
+		ByteBuffer chunk = current(1);
+		int n = Math.min(len, chunk.remaining());
+		chunk.put(b, off, n);
+		off += n;
+		len -= n;
+		this.size += n;
+	    }
+	}
+
+	/**
+	 * Marks a base tag in the batch as an index candidate.
+	 * @param time Time of the tag.
+	 * @param offset Batch offset of the tag.
+	 */
+	public void mark(long time, long offset) {
+	    if(this.marks == this.markTimes.length) {
+		this.markTimes = Arrays.copyOf(this.markTimes, this.marks * 2);
+		this.markOffsets = Arrays.copyOf(this.markOffsets, this.marks * 2);
+	    }
+	    this.markTimes[this.marks] = time;
+	    this.markOffsets[this.marks] = offset;
+	    this.marks++;
+	}
+
+	/**
+	 * Hands the marks to the store's index once the batch is written.
+	 * @param store The store the batch was written to.
+	 * @param offset Segment offset the batch was written at.
+	 */
+	public void index(LogStore store, long offset) {
+	    for(int i = 0; i < this.marks; i++)
+		store.index(this.markTimes[i], offset + this.markOffsets[i]);
+	}
+
+	/**
+	 * Drops the oldest bytes of an unwritten batch, with their marks and
+	 * activity, keeping the rest.
+	 * @param bytes Number of bytes to drop, the start of a frame.
+	 */
+	public void discard(long bytes) {
+	    byte[] kept = new byte[(int)(this.size - bytes)];
+	    for(int n = 0; n < kept.length; ) {
+		long offset = bytes + n;
+		ByteBuffer chunk = this.chunks[(int)(offset / CHUNK_SIZE)].duplicate();
+		chunk.flip();
+		chunk.position((int)(offset % CHUNK_SIZE));
+		int length = Math.min(chunk.remaining(), kept.length - n);
+		chunk.get(kept, n, length);
+		n += length;
+	    }
+	    int marks = 0;
+	    for(int i = 0; i < this.marks; i++) {
+		if(this.markOffsets[i] >= bytes) {
+		    this.markTimes[marks] = this.markTimes[i];
+		    this.markOffsets[marks++] = this.markOffsets[i] - bytes;
+		}
+	    }
+	    clear();
+	    put(kept, 0, kept.length);
+	    this.marks = marks;
+	}
+
+	/**
+	 * Starts the batch over, so the next writeTo() writes all of it.
+	 * Used when a write failed part way and was cut off its file.
+	 */
+	public void rewind() {
+	    this.written = 0;
+	}
+
+	/**
+	 * Writes every byte not yet written to the channel with gathering
+	 * writes. If the write fails part way, the next call carries on from
+	 * where this one stopped, unless the batch is rewound.
+	 * @param channel The destination.
+	 * @return Number of bytes written by this call.
+	 * @throws IOException Thrown if the channel can't be written.
+	 */
+	public long writeTo(FileChannel channel) throws IOException {
+	    ByteBuffer[] views = new ByteBuffer[this.used];
+	    long skip = this.written;
+	    for(int i = 0; i < this.used; i++) {
+		views[i] = this.chunks[i].duplicate();
+		views[i].flip();
+		int n = (int)Math.min(skip, views[i].remaining());
+		views[i].position(n);
+		skip -= n;
+	    }
+	    long start = this.written;
+	    while(this.written < this.size)
+		this.written += channel.write(views, 0, this.used);
+	    return this.written - start;
+	}
+
+	/**
+	 * Empties the batch, keeping its buffers for reuse.
+	 */
+	public void clear() {
+	    for(int i = 0; i < this.used; i++)
+		this.chunks[i].clear();
+	    this.used = 1;
+	    this.size = 0;
+	    this.written = 0;
+	    this.commitNanos = 0;
+	    this.marks = 0;
+	    this.activity.clear();
+	}
+
+	/**
+	 * Gets a buffer with room for at least the given bytes, moving on to
+	 * the next buffer, or growing, when the current one is full.
+	 * @param needed Bytes needed, at most CHUNK_SIZE.
+	 * @return The buffer to put into.
+	 */
+	private ByteBuffer current(int needed) {
+	    ByteBuffer chunk = this.chunks[this.used - 1];
+	    if(chunk.remaining() >= needed)
+		return chunk;
+	    if(this.used == this.chunks.length) {
+		ByteBuffer[] more = new ByteBuffer[this.chunks.length * 2];
+		System.arraycopy(this.chunks, 0, more, 0, this.chunks.length);
+		for(int i = this.chunks.length; i < more.length; i++)
+		    more[i] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		this.chunks = more;
+	    }
+	    return this.chunks[this.used++];
+	}
+    }
+}
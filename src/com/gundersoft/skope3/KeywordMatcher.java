@@ -0,0 +1,991 @@
+package com.gundersoft.skope3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Matches a list of keyword patterns in typed text, one char at a time.
+ * The patterns are compiled together into one DFA that finds them
+ * anywhere in the text, so a step is a lookup of the char's class and a
+ * lookup of the next state, however many patterns there are. A state
+ * knows the pattern that ends at it, so a match is seen on the char that
+ * completes it. For a list of plain keywords this is the Aho-Corasick
+ * automaton of the list.
+ * <p>
+ * A keyword is plain text, except that "*" matches any run of chars,
+ * "?" any one char, and "\" in front of "*", "?" or "\" makes that char
+ * plain. Any other "\" is plain itself, so "c:\windows" is. A keyword
+ * between slashes, "/card\d{16}/", is a pattern in a small subset of
+ * regular expressions: chars, ".", classes like "[a-f0-9]" and
+ * "[^ ]", "\d", "\w", "\s" and their upper case negations, each
+ * optionally repeated with "*", "+", "?", "{n}", "{n,}" or "{n,m}".
+ * There are no groups, alternatives or anchors; listing several
+ * keywords does the work of alternatives.
+ * <p>
+ * A DFA can need exponentially many states, so the matcher is bounded.
+ * A pattern that doesn't parse, can match nothing but the empty string,
+ * repeats more than MAX_REPEAT times or needs more than
+ * MAX_PATTERN_STATES states on its own is rejected. If the whole list
+ * needs more than MAX_STATES, keywords are dropped from the end of the
+ * list until it fits. getRejected() tells which and why; rejected
+ * keywords never match. Both limits are lowered when the keywords tell
+ * apart so many chars that the table would have more than MAX_CELLS
+ * entries.
+ * <p>
+ * Chars are mapped to classes of chars no pattern tells apart, and the
+ * table has a row of classes for each state. Matching ignores case: each
+ * char is folded with Character.toLowerCase() when the class map is
+ * built, so a step doesn't fold anything.
+ * <p>
+ * A matcher doesn't change once it is built, so it can be built on one
+ * thread and stepped on another. The caller keeps the current state,
+ * starting from START, or lets a Stream keep it.
+ * @param <T> What the keywords stand for.
+ * @author Christian Gunderman
+ */
+public class KeywordMatcher<T> {
+    /** The state nothing has been matched in. */
+    public static final int START = 0;
+    /** Most states a matcher has. */
+    public static final int MAX_STATES = 65536;
+    /** Most states a pattern can need on its own. */
+    public static final int MAX_PATTERN_STATES = 4096;
+    /** Most entries the table has, states times classes. */
+    public static final int MAX_CELLS = 1 << 22;
+    /** Largest count in a repeat. */
+    public static final int MAX_REPEAT = 64;
+    /** Number of chars there are classes for. */
+    private static final int CHARS = Character.MAX_VALUE + 1;
+    /** Element kind: the atom once. */
+    private static final int KIND_ONE = 0;
+    /** Element kind: the atom once or not at all. */
+    private static final int KIND_OPTIONAL = 1;
+    /** Element kind: the atom any number of times. */
+    private static final int KIND_ANY_NUMBER = 2;
+    /** Bits of an element holding its kind. */
+    private static final int KIND_BITS = 2;
+    /** Folded chars matched by "." and "?". */
+    private static final BitSet ANY = new BitSet(CHARS);
+    /** Folded chars matched by "\d". */
+    private static final BitSet DIGITS = new BitSet(CHARS);
+    /** Folded chars matched by "\w". */
+    private static final BitSet WORD = new BitSet(CHARS);
+    /** Folded chars matched by "\s". */
+    private static final BitSet SPACE = new BitSet(CHARS);
+
+    static {
+	ANY.set(0, CHARS);
+	DIGITS.set('0', '9' + 1);
+	for(int c = 0; c < CHARS; c++) {
+	    if(Character.isLetterOrDigit(c) || c == '_')
+		WORD.set(Character.toLowerCase(c));
+	    if(Character.isWhitespace(c))
+		SPACE.set(c);
+	}
+    }
+
+    /** Class of each char. */
+    private final char[] classes;
+    /** Number of classes, the length of a row of the table. */
+    private final int width;
+    /** Next state for each state and class, a row per state. */
+    private final int[] next;
+    /** Index of the first keyword in the list ending at each state, or -1. */
+    private final int[] output;
+    /** What each keyword stands for, in list order. */
+    private final Object[] values;
+    /** Number of states. */
+    private final int states;
+    /** Most chars a match can span. */
+    private final int longest;
+    /** Each rejected keyword and why. */
+    private final String[] rejected;
+
+    /**
+     * Compiles the keywords.
+     * @param keywords The keywords. Where several end on the same char,
+     * the first in the list is the match.
+     * @param values What each keyword stands for, in the same order.
+     * @throws IllegalArgumentException Thrown if the arrays' lengths
+     * differ or the keywords hold more distinct chars than there are classes.
+     */
+    public KeywordMatcher(String[] keywords, T[] values) {
+	if(keywords.length != values.length)
+	    throw new IllegalArgumentException("Every keyword needs a value.");
+	this.values = values.clone();
+
+	// parse each keyword into elements, each an atom and a kind
+	Atoms atoms = new Atoms();
+	int[][] patterns = new int[keywords.length][];
+	String[] reasons = new String[keywords.length];
+	for(int k = 0; k < keywords.length; k++) {
+	    try {
+		patterns[k] = parse(keywords[k], atoms);
+	    } catch (IllegalArgumentException e) {
+		reasons[k] = e.getMessage();
+	    }
+	}
+
+	// a class for each set of chars no atom tells apart
+	int[] classOf = new int[CHARS];
+	int count = 1;
+	int[] stamp = new int[16];
+	int[] splitTo = new int[16];
+	for(int a = 0; a < atoms.size(); a++) {
+	    BitSet set = atoms.get(a);
+	    for(int c = set.nextSetBit(0); c >= 0; c = set.nextSetBit(c + 1)) {
+		int old = classOf[c];
+		if(stamp[old] != a + 1) {
+		    if(count == stamp.length) {
+			stamp = Arrays.copyOf(stamp, count * 2);
+			splitTo = Arrays.copyOf(splitTo, count * 2);
+		    }
+		    stamp[old] = a + 1;
+		    splitTo[old] = count++;
+		}
+		classOf[c] = splitTo[old];
+	    }
+	}
+	int[] compact = new int[count];
+	Arrays.fill(compact, -1);
+	int width = 0;
+	this.classes = new char[CHARS];
+	for(int c = 0; c < CHARS; c++) {
+	    int folded = classOf[Character.toLowerCase((char)c)];
+	    if(compact[folded] < 0) {
+		if(width == Character.MAX_VALUE)
+		    throw new IllegalArgumentException("Keywords tell apart too many chars.");
+		compact[folded] = width++;
+	    }
+	    this.classes[c] = (char)compact[folded];
+	}
+	this.width = width;
+	BitSet[] atomClasses = new BitSet[atoms.size()];
+	for(int a = 0; a < atoms.size(); a++) {
+	    BitSet set = atoms.get(a);
+	    atomClasses[a] = new BitSet(width);
+	    for(int c = set.nextSetBit(0); c >= 0; c = set.nextSetBit(c + 1)) {
+		if(compact[classOf[c]] >= 0)
+		    atomClasses[a].set(compact[classOf[c]]);
+	    }
+	}
+
+	// as many rows as fit in MAX_CELLS, a row is a state
+	int stateLimit = Math.min(MAX_STATES, MAX_CELLS / width);
+	int patternLimit = Math.min(MAX_PATTERN_STATES, stateLimit);
+
+	// wildcards that blow up on their own
+	boolean[] included = new boolean[keywords.length];
+	for(int k = 0; k < keywords.length; k++) {
+	    if(patterns[k] == null || isPlain(patterns[k], atoms))
+		continue;
+	    included[k] = true;
+	    if(build(patterns, included, atomClasses, patternLimit) == null)
+		reasons[k] = "needs more than " + patternLimit + " states";
+	    included[k] = false;
+	}
+
+	// then all of them, dropping from the end until they fit
+	int last = -1;
+	for(int k = 0; k < keywords.length; k++) {
+	    included[k] = reasons[k] == null;
+	    if(included[k])
+		last = k;
+	}
+	Table table;
+	while((table = build(patterns, included, atomClasses, stateLimit)) == null) {
+	    included[last] = false;
+	    reasons[last] = "doesn't fit in " + stateLimit + " states with the keywords before it";
+	    while(last >= 0 && !included[last])
+		last--;
+	}
+	this.next = table.next;
+	this.output = table.output;
+	this.states = table.states;
+
+	int longest = 0;
+	List<String> rejected = new ArrayList<String>();
+	for(int k = 0; k < keywords.length; k++) {
+	    if(reasons[k] != null)
+		rejected.add("\"" + keywords[k] + "\" " + reasons[k]);
+	    else
+		longest = Math.max(longest, getLongestMatch(patterns[k]));
+	}
+	this.longest = longest;
+	this.rejected = rejected.toArray(new String[rejected.size()]);
+    }
+
+    /**
+     * Steps the automaton.
+     * @param state The current state.
+     * @param c The char typed.
+     * @return The next state.
+     */
+    public int next(int state, char c) {
+	return this.next[state * this.width + this.classes[c]];
+    }
+
+    /**
+     * Gets the keyword matched on the char that led to a state.
+     * @param state A state.
+     * @return What the keyword stands for, or null if no keyword ends
+     * here.
+     */
+    @SuppressWarnings("unchecked")
+    public T getMatch(int state) {
+	int k = this.output[state];
+	return k < 0 ? null : (T)this.values[k];
+    }
+
+    /**
+     * Gets the number of states.
+     * @return Number of states, one more than the number of distinct
+     * plain keyword prefixes for a list of plain keywords.
+     */
+    public int getStateCount() {
+	return this.states;
+    }
+
+    /**
+     * Gets the number of keywords the matcher was built from.
+     * @return Number of keywords, rejected ones included.
+     */
+    public int getKeywordCount() {
+	return this.values.length;
+    }
+
+    /**
+     * Gets the most chars a match can span.
+     * @return The length of the longest match, or Integer.MAX_VALUE if a
+     * keyword has a wildcard with no bound.
+     */
+    public int getLongestMatch() {
+	return this.longest;
+    }
+
+    /**
+     * Gets the keywords that were rejected.
+     * @return A message for each, naming the keyword and why.
+     */
+    public String[] getRejected() {
+	return this.rejected.clone();
+    }
+
+    /**
+     * Parses a keyword into its elements.
+     * @param keyword The keyword.
+     * @param atoms Where the char sets of the elements are kept.
+     * @return The elements, each an atom shifted up by KIND_BITS and its kind.
+     * @throws IllegalArgumentException Thrown if the keyword can't be
+     * matched, the message says why.
+     */
+    private static int[] parse(String keyword, Atoms atoms) {
+	int length = keyword.length();
+	boolean regex = length > 2 && keyword.charAt(0) == '/' && keyword.charAt(length - 1) == '/';
+	String body = regex ? keyword.substring(1, length - 1) : keyword;
+	length = body.length();
+	int[] elements = new int[16];
+	int count = 0;
+	boolean matchesSomething = false;
+	int i = 0;
+	while(i < length) {
+	    char c = body.charAt(i++);
+	    BitSet set;
+	    if(regex && c == '\\') {
+		if(i == length)
+		    throw new IllegalArgumentException("ends in \\");
+		set = escape(body.charAt(i++));
+	    } else if(!regex && c == '\\' && i < length && "*?\\".indexOf(body.charAt(i)) >= 0) {
+		set = new BitSet();
+		set.set(body.charAt(i++));
+	    } else if(!regex && c == '*') {
+		elements = add(elements, count++, atoms.intern(ANY), KIND_ANY_NUMBER);
+		continue;
+	    } else if(!regex && c == '?' || regex && c == '.')
+		set = ANY;
+	    else if(regex && c == '[')
+		i = parseClass(body, i, set = new BitSet());
+	    else if(regex && (c == '*' || c == '+' || c == '?' || c == '{'))
+		throw new IllegalArgumentException("has nothing to repeat at " + (i - 1));
+	    else if(regex && (c == '(' || c == ')' || c == '|' || c == '^' || c == '$'))
+		throw new IllegalArgumentException("has a group, alternative or anchor at " + (i - 1));
+	    else {
+		set = new BitSet();
+		set.set(Character.toLowerCase(c));
+	    }
+	    int atom = atoms.intern(set);
+
+	    // how many times
+	    int min = 1, max = 1;
+	    if(regex && i < length) {
+		switch(body.charAt(i)) {
+		case '*':
+		    min = 0;
+		    max = Integer.MAX_VALUE;
+		    i++;
+		    break;
+		case '+':
+		    max = Integer.MAX_VALUE;
+		    i++;
+		    break;
+		case '?':
+		    min = 0;
+		    i++;
+		    break;
+		case '{':
+		    int close = body.indexOf('}', i);
+		    if(close < 0)
+			throw new IllegalArgumentException("has an unclosed { at " + i);
+		    String repeat = body.substring(i + 1, close);
+		    int comma = repeat.indexOf(',');
+		    try {
+			min = Integer.parseInt(comma < 0 ? repeat : repeat.substring(0, comma));
+			max = comma < 0 ? min : comma == repeat.length() - 1 ? Integer.MAX_VALUE
+			    : Integer.parseInt(repeat.substring(comma + 1));
+		    } catch (NumberFormatException e) {
+			throw new IllegalArgumentException("has a bad repeat at " + i);
+		    }
+		    if(min < 0 || max < min)
+			throw new IllegalArgumentException("has a bad repeat at " + i);
+		    if(min > MAX_REPEAT || max != Integer.MAX_VALUE && max > MAX_REPEAT)
+			throw new IllegalArgumentException("repeats more than " + MAX_REPEAT + " times");
+		    i = close + 1;
+		    break;
+		}
+	    }
+	    for(int n = 0; n < min; n++)
+		elements = add(elements, count++, atom, KIND_ONE);
+	    if(max == Integer.MAX_VALUE)
+		elements = add(elements, count++, atom, KIND_ANY_NUMBER);
+	    else {
+		for(int n = min; n < max; n++)
+		    elements = add(elements, count++, atom, KIND_OPTIONAL);
+	    }
+	    matchesSomething |= min > 0;
+	}
+	if(!matchesSomething)
+	    throw new IllegalArgumentException("matches the empty string");
+	return Arrays.copyOf(elements, count);
+    }
+
+    /**
+     * Parses a class, "[...]", folding the chars in it.
+     * @param body The pattern.
+     * @param i Index just after the "[".
+     * @param set Gets the folded chars in the class.
+     * @return Index just after the "]".
+     * @throws IllegalArgumentException Thrown if the class is unclosed.
+     */
+    private static int parseClass(String body, int i, BitSet set) {
+	int open = i - 1;
+	boolean negated = i < body.length() && body.charAt(i) == '^';
+	if(negated)
+	    i++;
+	boolean first = true;
+	while(true) {
+	    if(i == body.length())
+		throw new IllegalArgumentException("has an unclosed [ at " + open);
+	    char c = body.charAt(i++);
+	    if(c == ']' && !first)
+		break;
+	    first = false;
+	    if(c == '\\') {
+		if(i == body.length())
+		    throw new IllegalArgumentException("has an unclosed [ at " + open);
+		BitSet escaped = escape(body.charAt(i++));
+		if(escaped.cardinality() != 1) {
+		    set.or(escaped);
+		    continue;
+		}
+		c = (char)escaped.nextSetBit(0);
+	    }
+	    char to = c;
+	    if(i + 1 < body.length() && body.charAt(i) == '-' && body.charAt(i + 1) != ']') {
+		to = body.charAt(i + 1);
+		i += 2;
+		if(to == '\\' && i < body.length())
+		    to = body.charAt(i++);
+		if(to < c)
+		    throw new IllegalArgumentException("has a backwards range at " + (i - 3));
+	    }
+	    for(int r = c; r <= to; r++)
+		set.set(Character.toLowerCase((char)r));
+	}
+	if(negated)
+	    set.flip(0, CHARS);
+	return i;
+    }
+
+    /**
+     * Gets the folded chars an escape matches.
+     * @param c The char after the "\".
+     * @return The chars. The caller may change them.
+     */
+    private static BitSet escape(char c) {
+	BitSet set;
+	switch(c) {
+	case 'd':
+	case 'D':
+	    set = (BitSet)DIGITS.clone();
+	    break;
+	case 'w':
+	case 'W':
+	    set = (BitSet)WORD.clone();
+	    break;
+	case 's':
+	case 'S':
+	    set = (BitSet)SPACE.clone();
+	    break;
+	default:
+	    set = new BitSet();
+	    set.set(Character.toLowerCase(c));
+	    return set;
+	}
+	if(Character.isUpperCase(c))
+	    set.flip(0, CHARS);
+	return set;
+    }
+
+    /**
+     * Appends an element.
+     * @param elements The elements, grown if full.
+     * @param count Number of elements in it.
+     * @param atom The atom.
+     * @param kind How many times it is matched.
+     * @return The elements.
+     */
+    private static int[] add(int[] elements, int count, int atom, int kind) {
+	if(count == elements.length)
+	    elements = Arrays.copyOf(elements, count * 2);
+	elements[count] = atom << KIND_BITS | kind;
+	return elements;
+    }
+
+    /**
+     * Checks if a keyword is plain text, with no wildcards.
+     * @param elements The keyword's elements.
+     * @param atoms The atoms.
+     * @return True if every element is one char once.
+     */
+    private static boolean isPlain(int[] elements, Atoms atoms) {
+	for(int e : elements) {
+	    if((e & ((1 << KIND_BITS) - 1)) != KIND_ONE
+	       || atoms.get(e >>> KIND_BITS).cardinality() != 1)
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Gets the most chars a keyword can match.
+     * @param elements The keyword's elements.
+     * @return The length of its longest match, or Integer.MAX_VALUE.
+     */
+    private static int getLongestMatch(int[] elements) {
+	for(int e : elements) {
+	    if((e & ((1 << KIND_BITS) - 1)) == KIND_ANY_NUMBER)
+		return Integer.MAX_VALUE;
+	}
+	return elements.length;
+    }
+
+    /**
+     * Compiles some of the keywords into a table. They are first put in
+     * a trie of their elements, an NFA where the atom any number of times
+     * loops on its node, and the DFA is built from sets of its nodes.
+     * Every set holds the root and what it reaches without a char, so a
+     * match can start on any char.
+     * @param patterns The elements of each keyword, null if rejected.
+     * @param included Which keywords to compile.
+     * @param atomClasses The classes of the chars of each atom.
+     * @param limit Most states the table can have.
+     * @return The table, or null if it needs more states than the limit.
+     */
+    private Table build(int[][] patterns, boolean[] included, BitSet[] atomClasses, int limit) {
+
+	// the trie, with its edges and empty edges in lists by node
+	Graph graph = new Graph();
+	HashMap<Long, Integer> children = new HashMap<Long, Integer>();
+	for(int k = 0; k < patterns.length; k++) {
+	    if(!included[k])
+		continue;
+	    int node = 0;
+	    for(int e : patterns[k]) {
+		Long key = Long.valueOf((long)node << 32 | e);
+		Integer child = children.get(key);
+		if(child == null) {
+		    int atom = e >>> KIND_BITS;
+		    int created = graph.addNode();
+		    switch(e & ((1 << KIND_BITS) - 1)) {
+		    case KIND_ONE:
+			graph.addEdge(node, atom, created);
+			break;
+		    case KIND_OPTIONAL:
+			graph.addEdge(node, atom, created);
+			graph.addEmptyEdge(node, created);
+			break;
+		    case KIND_ANY_NUMBER:
+			graph.addEmptyEdge(node, created);
+			graph.addEdge(created, atom, created);
+			break;
+		    }
+		    child = Integer.valueOf(created);
+		    children.put(key, child);
+		}
+		node = child.intValue();
+	    }
+	    if(graph.accepts.get(node) < 0)
+		graph.accepts.set(node, k);
+	}
+
+	// the DFA, a state for each set of nodes reached
+	int[] marks = new int[graph.size()];
+	int[] stack = new int[graph.size()];
+	int[] root = graph.closure(new int[] { 0 }, 1, marks, 1, stack);
+	List<int[]> sets = new ArrayList<int[]>();
+	HashMap<NodeSet, Integer> ids = new HashMap<NodeSet, Integer>();
+	sets.add(root);
+	ids.put(new NodeSet(root), Integer.valueOf(START));
+	IntList next = new IntList(this.width * 16);
+	IntList output = new IntList(16);
+	int[][] buckets = new int[this.width][];
+	int[] filled = new int[this.width];
+	int round = 1;
+	for(int s = 0; s < sets.size(); s++) {
+	    int[] set = sets.get(s);
+	    Arrays.fill(filled, 0);
+	    int accept = -1;
+	    for(int node : set) {
+		int k = graph.accepts.get(node);
+		if(k >= 0 && (accept < 0 || k < accept))
+		    accept = k;
+		for(int edge = graph.firstEdge.get(node); edge >= 0; edge = graph.edgeNext.get(edge)) {
+		    BitSet classes = atomClasses[graph.edgeAtom.get(edge)];
+		    int target = graph.edgeTarget.get(edge);
+		    for(int c = classes.nextSetBit(0); c >= 0; c = classes.nextSetBit(c + 1)) {
+			if(buckets[c] == null)
+			    buckets[c] = new int[8];
+			else if(filled[c] == buckets[c].length - 1)
+			    buckets[c] = Arrays.copyOf(buckets[c], buckets[c].length * 2);
+			buckets[c][filled[c]++] = target;
+		    }
+		}
+	    }
+	    output.add(accept);
+	    for(int c = 0; c < this.width; c++) {
+		if(filled[c] == 0) {
+		    next.add(START);
+		    continue;
+		}
+		buckets[c][filled[c]++] = 0;
+		int[] reached = graph.closure(buckets[c], filled[c], marks, ++round, stack);
+		NodeSet key = new NodeSet(reached);
+		Integer id = ids.get(key);
+		if(id == null) {
+		    if(sets.size() == limit)
+			return null;
+		    id = Integer.valueOf(sets.size());
+		    sets.add(reached);
+		    ids.put(key, id);
+		}
+		next.add(id.intValue());
+	    }
+	}
+
+	Table table = new Table();
+	table.next = next.toArray();
+	table.output = output.toArray();
+	table.states = sets.size();
+	return table;
+    }
+
+    /**
+     * A compiled transition table.
+     */
+    private static class Table {
+	/** Next state for each state and class. */
+	private int[] next;
+	/** First keyword ending at each state, or -1. */
+	private int[] output;
+	/** Number of states. */
+	private int states;
+    }
+
+    /**
+     * The distinct char sets of the keywords' elements, numbered in the
+     * order they were first seen.
+     */
+    private static class Atoms {
+	/** The sets, by number. */
+	private final List<BitSet> sets = new ArrayList<BitSet>();
+	/** Number of each set. */
+	private final HashMap<BitSet, Integer> numbers = new HashMap<BitSet, Integer>();
+
+	/**
+	 * Gets the number of a set, numbering it if it is new.
+	 * @param set The folded chars. Mustn't be changed afterwards.
+	 * @return Its number.
+	 */
+	public int intern(BitSet set) {
+	    Integer number = this.numbers.get(set);
+	    if(number == null) {
+		number = Integer.valueOf(this.sets.size());
+		this.sets.add(set);
+		this.numbers.put(set, number);
+	    }
+	    return number.intValue();
+	}
+
+	/**
+	 * Gets a set.
+	 * @param number Its number.
+	 * @return The folded chars.
+	 */
+	public BitSet get(int number) {
+	    return this.sets.get(number);
+	}
+
+	/**
+	 * Gets the number of sets.
+	 * @return Number of distinct sets.
+	 */
+	public int size() {
+	    return this.sets.size();
+	}
+    }
+
+    /**
+     * The NFA of the keywords: nodes, edges on atoms between them, and
+     * edges taken without a char. Edges are in linked lists by node.
+     */
+    private static class Graph {
+	/** First keyword accepted at each node, or -1. */
+	private final IntList accepts = new IntList(64);
+	/** First edge of each node, or -1. */
+	private final IntList firstEdge = new IntList(64);
+	/** First empty edge of each node, or -1. */
+	private final IntList firstEmpty = new IntList(64);
+	/** Atom of each edge. */
+	private final IntList edgeAtom = new IntList(64);
+	/** Node each edge leads to. */
+	private final IntList edgeTarget = new IntList(64);
+	/** Next edge of the same node, or -1. */
+	private final IntList edgeNext = new IntList(64);
+	/** Node each empty edge leads to. */
+	private final IntList emptyTarget = new IntList(16);
+	/** Next empty edge of the same node, or -1. */
+	private final IntList emptyNext = new IntList(16);
+
+	/**
+	 * Creates the graph with its root.
+	 */
+	public Graph() {
+	    addNode();
+	}
+
+	/**
+	 * Adds a node.
+	 * @return Its number.
+	 */
+	public int addNode() {
+	    this.accepts.add(-1);
+	    this.firstEdge.add(-1);
+	    this.firstEmpty.add(-1);
+	    return this.accepts.size() - 1;
+	}
+
+	/**
+	 * Gets the number of nodes.
+	 * @return Number of nodes.
+	 */
+	public int size() {
+	    return this.accepts.size();
+	}
+
+	/**
+	 * Adds an edge taken on a char of an atom.
+	 * @param from Node it leaves.
+	 * @param atom The atom.
+	 * @param to Node it leads to.
+	 */
+	public void addEdge(int from, int atom, int to) {
+	    this.edgeAtom.add(atom);
+	    this.edgeTarget.add(to);
+	    this.edgeNext.add(this.firstEdge.get(from));
+	    this.firstEdge.set(from, this.edgeAtom.size() - 1);
+	}
+
+	/**
+	 * Adds an edge taken without a char.
+	 * @param from Node it leaves.
+	 * @param to Node it leads to.
+	 */
+	public void addEmptyEdge(int from, int to) {
+	    this.emptyTarget.add(to);
+	    this.emptyNext.add(this.firstEmpty.get(from));
+	    this.firstEmpty.set(from, this.emptyTarget.size() - 1);
+	}
+
+	/**
+	 * Gets the nodes reached from some nodes without a char.
+	 * @param nodes The nodes, may repeat.
+	 * @param count Number of nodes.
+	 * @param marks A mark for each node, left holding round for the
+	 * nodes reached.
+	 * @param round A number no node is marked with yet.
+	 * @param stack Room for every node.
+	 * @return The nodes reached, the ones given included, in order.
+	 */
+	public int[] closure(int[] nodes, int count, int[] marks, int round, int[] stack) {
+	    int top = 0;
+	    for(int i = 0; i < count; i++) {
+		if(marks[nodes[i]] != round) {
+		    marks[nodes[i]] = round;
+		    stack[top++] = nodes[i];
+		}
+	    }
+	    int reached = top;
+	    int[] result = Arrays.copyOf(stack, top);
+	    while(top > 0) {
+		int node = stack[--top];
+		for(int edge = this.firstEmpty.get(node); edge >= 0; edge = this.emptyNext.get(edge)) {
+		    int to = this.emptyTarget.get(edge);
+		    if(marks[to] != round) {
+			marks[to] = round;
+			stack[top++] = to;
+			if(reached == result.length)
+			    result = Arrays.copyOf(result, reached * 2 + 1);
+			result[reached++] = to;
+		    }
+		}
+	    }
+	    result = Arrays.copyOf(result, reached);
+	    Arrays.sort(result);
+	    return result;
+	}
+    }
+
+    /**
+     * A sorted set of nodes, as a key.
+     */
+    private static class NodeSet {
+	/** The nodes. */
+	private final int[] nodes;
+	/** Hash of the nodes. */
+	private final int hash;
+
+	/**
+	 * Wraps a set.
+	 * @param nodes The sorted nodes.
+	 */
+	public NodeSet(int[] nodes) {
+	    this.nodes = nodes;
+	    this.hash = Arrays.hashCode(nodes);
+	}
+
+	@Override
+	public int hashCode() {
+	    return this.hash;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+	    return other instanceof NodeSet && Arrays.equals(this.nodes, ((NodeSet)other).nodes);
+	}
+    }
+
+    /**
+     * A growable list of ints.
+     */
+    private static class IntList {
+	/** The ints. */
+	private int[] data;
+	/** Number of ints. */
+	private int size;
+
+	/**
+	 * Creates an empty list.
+	 * @param capacity Ints it holds before growing.
+	 */
+	public IntList(int capacity) {
+	    this.data = new int[Math.max(capacity, 1)];
+	}
+
+	/**
+	 * Appends an int.
+	 * @param value The int.
+	 */
+	public void add(int value) {
+	    if(this.size == this.data.length)
+		this.data = Arrays.copyOf(this.data, this.size * 2);
+	    this.data[this.size++] = value;
+	}
+
+	/**
+	 * Gets an int.
+	 * @param index Its index.
+	 * @return The int.
+	 */
+	public int get(int index) {
+	    return this.data[index];
+	}
+
+	/**
+	 * Replaces an int.
+	 * @param index Its index.
+	 * @param value The new int.
+	 */
+	public void set(int index, int value) {
+	    this.data[index] = value;
+	}
+
+	/**
+	 * Gets the number of ints.
+	 * @return The size.
+	 */
+	public int size() {
+	    return this.size;
+	}
+
+	/**
+	 * Copies the ints out.
+	 * @return The ints.
+	 */
+	public int[] toArray() {
+	    return Arrays.copyOf(this.data, this.size);
+	}
+    }
+
+    /**
+     * Matches keywords in an endless stream of chars, one char at a time.
+     * Keeps the state between chars, the position of the last match and
+     * the last few chars fed, enough to hold the longest match, or
+     * MAX_HISTORY_CHARS if a keyword's matches have no bound.
+     * <p>
+     * A char takes part in one match at most: once a keyword is matched
+     * the stream starts over after it, as if nothing had been fed. So a
+     * keyword fires once each time it is typed, and a keyword that is
+     * a part of another doesn't fire again on the same chars.
+     * <p>
+     * A new matcher picks up where the old one left off: the chars
+     * fed since the last match, as many as the history holds, are run
+     * through it, so a keyword already being typed is still found.
+     * A stream belongs to one thread.
+     * @param <T> What the keywords stand for.
+     */
+    public static class Stream<T> {
+	/** Most chars kept in the history. */
+	public static final int MAX_HISTORY_CHARS = 4096;
+	/** Least chars kept in the history. */
+	private static final int HISTORY_CHARS = 64;
+
+	/** The matcher being stepped. */
+	private KeywordMatcher<T> matcher;
+	/** The matcher's state after the last char. */
+	private int state;
+	/** Number of chars fed, the position of the next one. */
+	private long position;
+	/** Position after the last match or start, nothing before it matches again. */
+	private long matchEnd;
+	/** The last chars fed, char n at n modulo its length. */
+	private char[] history;
+
+	/**
+	 * Creates a stream at position 0.
+	 * @param matcher The matcher to step.
+	 */
+	public Stream(KeywordMatcher<T> matcher) {
+	    this.history = new char[HISTORY_CHARS];
+	    setMatcher(matcher);
+	}
+
+	/**
+	 * Feeds the next char.
+	 * @param c The char.
+	 * @return What the keyword ending on this char stands for, or null.
+	 */
+	public T next(char c) {
+	    this.history[(int)(this.position++ % this.history.length)] = c;
+	    this.state = this.matcher.next(this.state, c);
+	    T match = this.matcher.getMatch(this.state);
+	    if(match != null) {
+		this.state = START;
+		this.matchEnd = this.position;
+	    }
+	    return match;
+	}
+
+	/**
+	 * Switches to another matcher and runs the chars fed since the last
+	 * match through it.
+	 * @param matcher The new matcher.
+	 * @return The first keyword found in those chars, or null.
+	 */
+	public T setMatcher(KeywordMatcher<T> matcher) {
+	    long kept = Math.min(this.position, this.history.length);
+	    int wanted = Math.min(matcher.getLongestMatch(), MAX_HISTORY_CHARS);
+	    if(wanted > this.history.length) {
+		char[] history = new char[Math.min(Math.max(wanted, this.history.length * 2),
+						   MAX_HISTORY_CHARS)];
+		for(long p = this.position - kept; p < this.position; p++)
+		    history[(int)(p % history.length)] = this.history[(int)(p % this.history.length)];
+		this.history = history;
+	    }
+	    this.matcher = matcher;
+	    this.state = START;
+
+	    // replay what the history holds since the last match
+	    long from = Math.max(this.matchEnd, this.position - kept);
+	    long to = this.position;
+	    T first = null;
+	    for(long p = from; p < to; p++) {
+		this.state = matcher.next(this.state, this.history[(int)(p % this.history.length)]);
+		T match = matcher.getMatch(this.state);
+		if(match != null) {
+		    this.state = START;
+		    this.matchEnd = p + 1;
+		    if(first == null)
+			first = match;
+		}
+	    }
+	    return first;
+	}
+
+	/**
+	 * Forgets the chars fed so far, so a keyword can't start in them.
+	 * Use when chars went by that weren't fed.
+	 */
+	public void reset() {
+	    this.state = START;
+	    this.matchEnd = this.position;
+	}
+
+	/**
+	 * Gets the matcher being stepped.
+	 * @return The matcher.
+	 */
+	public KeywordMatcher<T> getMatcher() {
+	    return this.matcher;
+	}
+
+	/**
+	 * Gets the number of chars fed.
+	 * @return The position of the next char.
+	 */
+	public long getPosition() {
+	    return this.position;
+	}
+
+	/**
+	 * Gets where the last match ended.
+	 * @return The position after the last char of the last match, or
+	 * of the last reset.
+	 */
+	public long getMatchEnd() {
+	    return this.matchEnd;
+	}
+    }
+}
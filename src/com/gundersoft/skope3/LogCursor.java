@@ -0,0 +1,849 @@
+package com.gundersoft.skope3;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Walks the snippets of a key log, every segment of it, one at a time.
+ * Only the segment and region being read are held, so a log of any size
+ * can be read in constant memory.
+ * <p>
+ * Reads both the per event delta tags written by EventLog and the
+ * decimal '\1'millis'\2' tags of older logs. Each snippet is the text
+ * between one tag and the next.
+ * <p>
+ * Segments are memory mapped a region at a time and scanned for tags
+ * eight bytes at a time. Tags are plain ASCII and can't occur inside a
+ * UTF-8 sequence, so the scan never has to decode. Compressed segments
+ * are inflated instead, a run of blocks at a time starting with the block
+ * the time index points into, into regions on the heap.
+ * <p>
+ * Use advance() and the getters to read snippets without allocating, or
+ * iterate for Entry objects, each holding its snippet rendered in the
+ * view the cursor was created with. Like java.util.Scanner, the iterator ends
+ * early if a segment can't be read and ioException() returns the cause.
+ * <p>
+ * Every region is checked against the frame trailers in it, see LogStore,
+ * before it is scanned. A region ends after its last good frame, a
+ * damaged frame is skipped, and a torn tail is left out, so neither
+ * advance() nor a parser walking the regions ever sees a damaged frame.
+ * <p>
+ * LogParser can also walk the regions without scanning them, and scan
+ * pieces of a region in parallel with cursors of their own. Such a cursor
+ * doesn't know the time it starts at; it counts from 0 until it reads a
+ * base tag, and isBased() tells its snippets apart.
+ * @author Christian Gunderman
+ */
+public class LogCursor implements Iterator<LogCursor.Entry> {
+    /** Largest part of a segment mapped at once. */
+    private static final long MAX_REGION_BYTES = 1L << 30;
+    /** Least part of a compressed segment inflated at once. */
+    private static final int INFLATE_REGION_BYTES = 1 << 20;
+    /** Bytes of a mapped region copied at a time for the CRC. */
+    private static final int CHECK_CHUNK_BYTES = 65536;
+    /** A byte of 0x01 in every byte of a long. */
+    private static final long ONES = 0x0101010101010101L;
+    /** The top bit of every byte of a long. */
+    private static final long HIGHS = 0x8080808080808080L;
+
+    /** Segments of the log, oldest first. */
+    private final File[] segments;
+    /** Time of the oldest snippet to return. */
+    private final long from;
+    /** Time of the newest snippet to return. */
+    private final long to;
+    /** Number of the next segment to open. */
+    private int segment;
+    /** Index of the next segment to open. */
+    private long[] index;
+    /** True if the times in index are in order. */
+    private boolean indexSorted;
+    /** The open segment, null if there is none. */
+    private RandomAccessFile file;
+    /** Length of the open segment. */
+    private long fileLength;
+    /** Offset in the open segment after the mapped region. */
+    private long filePosition;
+    /** Offset in the segment to start at, -1 to seek by time. */
+    private final long startOffset;
+    /** Offset in the segment to stop at. */
+    private final long endOffset;
+    /** Offset in the open segment of the region's first byte. */
+    private long regionOffset;
+    /** Block index of the open segment, null if it isn't compressed. */
+    private long[] blocks;
+    /** Inflates compressed segments, created when first needed. */
+    private Inflater inflater;
+    /** The mapped region, null if there is none. */
+    private ByteBuffer region;
+    /** Offset in the region to stop scanning at. */
+    private int end;
+    /** Offset in the region to scan from next. */
+    private int position;
+    /** Time of the last tag read in the open segment. */
+    private long time;
+    /** True once the open segment's first base tag was read. */
+    private boolean bodyReached;
+    /** True once a base tag was read by this cursor. */
+    private boolean baseRead;
+    /** True if the region was the first mapped of its segment. */
+    private boolean regionFirst;
+    /** True once a snippet newer than the range was found. */
+    private boolean done;
+    /** Time of the current snippet. */
+    private long snippetTime;
+    /** Offset of the current snippet's text in the region. */
+    private int snippetStart;
+    /** Length of the current snippet's text in bytes. */
+    private int snippetLength;
+    /** True if the current snippet came after a base tag. */
+    private boolean snippetBased;
+    /** Every byte of the current snippet ORed together. */
+    private long scanned;
+    /** True if advance() was called for the next Entry already. */
+    private boolean peeked;
+    /** Result of the peeked advance(). */
+    private boolean hasNext;
+    /** Error that ended the iteration, if any. */
+    private IOException error;
+    /** Least part of a compressed segment to inflate next. */
+    private int inflateBytes = INFLATE_REGION_BYTES;
+    /** True once a good frame was read in the open segment. */
+    private boolean framed;
+    /** Checks frames, created when first needed. */
+    private CRC32 crc;
+    /** Copies mapped data for the CRC, created when first needed. */
+    private byte[] crcChunk;
+    /** Bytes of damaged frames and torn tails skipped. */
+    private long skippedBytes;
+    /** Offset of the torn tail of the last segment read, -1 if none. */
+    private long tornOffset = -1;
+    /** Key name table for the pressed keys view, loaded when first needed. */
+    private KeyNames names;
+    /** EventLog view the iterator's entries are rendered in. */
+    private final int view;
+
+    /**
+     * Creates a cursor over every segment of the given log.
+     * @param logFile The log file name.
+     * @throws IOException Thrown if unable to find the given log file name.
+     */
+    public LogCursor(String logFile) throws IOException {
+	this(logFile, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a cursor over every segment of the given event log, whose
+     * entries are rendered in a view.
+     * @param logFile The log file name.
+     * @param view EventLog.VIEW_TEXT or VIEW_KEYS for an event log,
+     * VIEW_RAW for a log of text.
+     * @throws IOException Thrown if unable to find the given log file name.
+     */
+    public LogCursor(String logFile, int view) throws IOException {
+	this(logFile, Long.MIN_VALUE, Long.MAX_VALUE, view);
+    }
+
+    /**
+     * Creates a cursor over the part of the given log within a time
+     * range. Segments that end before the range are skipped using the
+     * next segment's start time, and each segment's sparse index is used
+     * to seek close to the start of the range, so only the data near the
+     * range is read.
+     * @param logFile The log file name.
+     * @param from Time of the oldest snippet to return.
+     * @param to Time of the newest snippet to return.
+     * @throws IOException Thrown if unable to find the given log file name.
+     */
+    public LogCursor(String logFile, long from, long to) throws IOException {
+	this(logFile, from, to, EventLog.VIEW_RAW);
+    }
+
+    /**
+     * Creates a cursor over the part of the given log within a time
+     * range, as LogCursor(String, long, long), whose entries are rendered
+     * in a view.
+     * @param logFile The log file name.
+     * @param from Time of the oldest snippet to return.
+     * @param to Time of the newest snippet to return.
+     * @param view EventLog.VIEW_TEXT or VIEW_KEYS for an event log,
+     * VIEW_RAW for a log of text.
+     * @throws IOException Thrown if unable to find the given log file name.
+     */
+    public LogCursor(String logFile, long from, long to, int view) throws IOException {
+	this.view = view;
+	this.segments = new LogStore(new File(logFile)).getSegments();
+	if(this.segments.length == 0)
+	    throw new FileNotFoundException(logFile);
+	this.from = from;
+	this.to = to;
+	this.index = LogStore.readIndex(this.segments[0]);
+	this.indexSorted = LogStore.isSorted(this.index);
+	this.startOffset = -1;
+	this.endOffset = Long.MAX_VALUE;
+    }
+
+    /**
+     * Creates a cursor over part of a single segment, by offset into its
+     * uncompressed data.
+     * @param segment A file from LogStore.getSegments().
+     * @param start Offset to start at, 0 or an offset from the segment's
+     * time index.
+     * @param end Offset to stop at, at a tag or past the end.
+     */
+    LogCursor(File segment, long start, long end) {
+	this.segments = new File[] { segment };
+	this.index = new long[0];
+	this.indexSorted = true;
+	this.from = Long.MIN_VALUE;
+	this.to = Long.MAX_VALUE;
+	this.startOffset = start;
+	this.endOffset = end;
+	this.view = EventLog.VIEW_RAW;
+    }
+
+    /**
+     * Creates a cursor over a piece of a mapped region. Times count from
+     * 0 until a base tag is read.
+     * @param region The region.
+     * @param start Offset of the piece, at a tag.
+     * @param end Offset after the piece, at a tag or the region's end.
+     */
+    LogCursor(ByteBuffer region, int start, int end) {
+	this.segments = new File[0];
+	this.index = new long[0];
+	this.indexSorted = true;
+	this.from = Long.MIN_VALUE;
+	this.to = Long.MAX_VALUE;
+	this.startOffset = -1;
+	this.endOffset = Long.MAX_VALUE;
+	this.region = region;
+	this.position = start;
+	this.end = end;
+	this.bodyReached = true;
+	this.view = EventLog.VIEW_RAW;
+    }
+
+    /**
+     * Moves to the next snippet in the range.
+     * @return False if there are no more.
+     * @throws IOException Thrown if a segment can't be read.
+     */
+    public boolean advance() throws IOException {
+	while(!this.done) {
+	    if(this.region == null || this.position >= this.end) {
+		if(!nextRegion())
+		    break;
+		continue;
+	    }
+
+	    // the text up to the next tag is a snippet
+	    int start = this.position;
+	    int tag = nextTag(start);
+	    boolean found = false;
+	    if(this.bodyReached && tag > start) {
+		if(this.time > this.to) {
+		    this.done = true;
+		    break;
+		}
+		if(this.time >= this.from) {
+		    this.snippetTime = this.time;
+		    this.snippetBased = this.baseRead;
+		    this.snippetStart = start;
+		    this.snippetLength = tag - start;
+		    found = true;
+		}
+	    }
+	    this.position = tag;
+	    if(tag < this.end)
+		readTag();
+	    if(found)
+		return true;
+	}
+	close();
+	return false;
+    }
+
+    /**
+     * Gets the time of the current snippet.
+     * @return Time the snippet was taken in milliseconds.
+     */
+    public long getTime() {
+	return this.snippetTime;
+    }
+
+    /**
+     * Checks if the current snippet's time is a real time.
+     * @return False if this cursor started inside a region and the
+     * snippet came before any base tag, so its time counts from the
+     * unknown time the cursor started at.
+     */
+    boolean isBased() {
+	return this.snippetBased;
+    }
+
+    /**
+     * Gets the time of the last tag read.
+     * @return The time, counted as for getTime().
+     */
+    long getTagTime() {
+	return this.time;
+    }
+
+    /**
+     * Checks if a base tag was read by this cursor.
+     * @return True if one was.
+     */
+    boolean hasReadBase() {
+	return this.baseRead;
+    }
+
+    /**
+     * Gets where the current snippet starts in its segment.
+     * @return Offset of its text in the segment's uncompressed data.
+     */
+    long getOffset() {
+	return this.regionOffset + this.snippetStart;
+    }
+
+    /**
+     * Gets the mapped region holding the current snippet. The region
+     * stays valid after the cursor moves on.
+     * @return The region.
+     */
+    public ByteBuffer getRegion() {
+	return this.region;
+    }
+
+    /**
+     * Gets where the current snippet's text starts.
+     * @return Its offset in getRegion().
+     */
+    public int getStart() {
+	return this.snippetStart;
+    }
+
+    /**
+     * Gets the length of the current snippet's text.
+     * @return Its length in bytes.
+     */
+    public int getLength() {
+	return this.snippetLength;
+    }
+
+    /**
+     * Checks if the current snippet needs no decoding.
+     * @return True if its text is all ASCII, one char per byte.
+     */
+    public boolean isAscii() {
+	return (this.scanned & HIGHS) == 0;
+    }
+
+    /**
+     * Decodes the current snippet.
+     * @return Its text.
+     */
+    public String getText() {
+	int length = this.snippetLength;
+	if(isAscii()) {
+	    char[] text = new char[length];
+	    for(int i = 0; i < length; i++)
+		text[i] = (char)this.region.get(this.snippetStart + i);
+	    return new String(text);
+	}
+
+	byte[] bytes = new byte[length];
+	for(int i = 0; i < length; i++)
+	    bytes[i] = this.region.get(this.snippetStart + i);
+	return new String(bytes, KeyNames.CHARSET);
+    }
+
+    /**
+     * Renders the current snippet, an event, as one of the views of an
+     * event log.
+     * @param view EventLog.VIEW_TEXT or VIEW_KEYS, or VIEW_RAW for the
+     * snippet as it is.
+     * @return Its text in the view, empty if the event isn't in it.
+     */
+    public String getText(int view) {
+	if(view == EventLog.VIEW_RAW)
+	    return getText();
+	if(this.names == null)
+	    this.names = KeyNames.getInstance();
+	StringBuilder text = new StringBuilder();
+	EventLog.appendView(text, this.region, this.snippetStart, this.snippetLength,
+			    view, this.names);
+	return text.toString();
+    }
+
+    @Override
+    public boolean hasNext() {
+	if(!this.peeked) {
+	    try {
+		this.hasNext = advance();
+	    } catch (IOException e) {
+		this.error = e;
+		this.hasNext = false;
+		close();
+	    }
+	    this.peeked = true;
+	}
+	return this.hasNext;
+    }
+
+    @Override
+    public Entry next() {
+	if(!hasNext())
+	    throw new NoSuchElementException();
+	this.peeked = false;
+	return new Entry(getTime(), getText(this.view));
+    }
+
+    @Override
+    public void remove() {
+	throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Gets the error that ended the iteration early.
+     * @return The error, null if there was none.
+     */
+    public IOException ioException() {
+	return this.error;
+    }
+
+    /**
+     * Closes the open segment and ends the walk. Regions already handed
+     * out stay valid until they are collected.
+     */
+    public void close() {
+	this.done = true;
+	this.region = null;
+	closeFile();
+	if(this.inflater != null) {
+	    this.inflater.end();
+	    this.inflater = null;
+	}
+    }
+
+    /**
+     * Gets the number of bytes skipped because their frame was damaged
+     * or torn.
+     * @return Bytes skipped so far.
+     */
+    public long getSkippedBytes() {
+	return this.skippedBytes;
+    }
+
+    /**
+     * Gets where the torn tail of the last segment read starts.
+     * @return Offset in the segment's uncompressed data, -1 if it has no
+     * torn tail.
+     */
+    long getTornOffset() {
+	return this.tornOffset;
+    }
+
+    /**
+     * Gets where scanning of the current region starts.
+     * @return Offset in the region, at a tag or the region's start.
+     */
+    int getRegionStart() {
+	return this.position;
+    }
+
+    /**
+     * Gets where scanning of the current region stops.
+     * @return Offset after the region's last byte to scan, at a tag or
+     * the region's end.
+     */
+    int getRegionEnd() {
+	return this.end;
+    }
+
+    /**
+     * Checks if the current region starts its segment, or the part of it
+     * in the range.
+     * @return True if it does, and starts before the first base tag.
+     */
+    boolean isSegmentStart() {
+	return this.regionFirst;
+    }
+
+    /**
+     * Maps the next region of the open segment, opening the next segment
+     * in the range if the open one is used up. Used by advance(), or on
+     * its own to walk the regions without scanning them.
+     * @return False if there are no more.
+     * @throws IOException Thrown if a segment can't be read.
+     */
+    boolean nextRegion() throws IOException {
+	this.region = null;
+	this.regionFirst = false;
+	while(this.file == null || this.filePosition >= this.fileLength) {
+	    closeFile();
+	    if(!nextSegment())
+		return false;
+	    this.regionFirst = true;
+	}
+	if(this.blocks != null) {
+	    // grow the region until a frame fits
+	    while(!inflateRegion())
+		this.inflateBytes *= 2;
+	    this.inflateBytes = INFLATE_REGION_BYTES;
+	    return true;
+	}
+
+	long mapped = Math.min(this.fileLength - this.filePosition, MAX_REGION_BYTES);
+	ByteBuffer region = this.file.getChannel()
+	    .map(FileChannel.MapMode.READ_ONLY, this.filePosition, mapped);
+
+	// end all but the last region on a tag so no snippet is split
+	int end = (int)mapped;
+	if(this.filePosition + mapped < this.fileLength) {
+	    int tag = end - 1;
+	    while(tag > 0 && region.get(tag) != EventLog.TAG_START)
+		tag--;
+	    if(tag > 0)
+		end = tag;
+	}
+	this.region = region;
+	this.end = end;
+	this.position = 0;
+	this.regionOffset = this.filePosition;
+	this.filePosition += end;
+	checkFrames(this.filePosition >= this.fileLength, true);
+	return true;
+    }
+
+    /**
+     * Inflates the blocks of the open compressed segment from the one
+     * holding filePosition on, up to inflateBytes, into a new region.
+     * Blocks start on tags, so the region ends on one.
+     * @return False if no whole frame fit, and the region must grow.
+     * @throws IOException Thrown if the segment can't be read or a block
+     * is corrupt.
+     */
+    private boolean inflateRegion() throws IOException {
+	long[] blocks = this.blocks;
+	int count = blocks.length / 2 - 1;
+	int first = 0;
+	while(first + 1 < count && blocks[(first + 1) * 2] <= this.filePosition)
+	    first++;
+	int last = first + 1;
+	while(last < count && blocks[last * 2] - blocks[first * 2] < this.inflateBytes)
+	    last++;
+
+	long regionStart = blocks[first * 2];
+	byte[] plain = new byte[(int)(blocks[last * 2] - regionStart)];
+	byte[] packed = new byte[(int)(blocks[last * 2 + 1] - blocks[first * 2 + 1])];
+	this.file.seek(blocks[first * 2 + 1]);
+	this.file.readFully(packed);
+
+	if(this.inflater == null)
+	    this.inflater = new Inflater();
+	try {
+	    int in = 0;
+	    for(int b = first; b < last; b++) {
+		int packedLength = (int)(blocks[b * 2 + 3] - blocks[b * 2 + 1]);
+		int out = (int)(blocks[b * 2] - regionStart);
+		int plainLength = (int)(blocks[b * 2 + 2] - blocks[b * 2]);
+		if(!LogStore.inflateBlock(this.inflater, packed, in, packedLength, plain, out, plainLength))
+		    throw new IOException("Truncated block in " + this.segments[this.segment - 1]);
+		in += packedLength;
+	    }
+	} catch (DataFormatException e) {
+	    throw new IOException("Corrupt block in " + this.segments[this.segment - 1]);
+	}
+
+	this.region = ByteBuffer.wrap(plain);
+	this.end = (int)Math.min(plain.length, this.fileLength - regionStart);
+	this.position = (int)(Math.max(this.filePosition, regionStart) - regionStart);
+	this.regionOffset = regionStart;
+	this.filePosition = blocks[last * 2];
+	return checkFrames(this.filePosition >= this.fileLength, false);
+    }
+
+    /**
+     * Checks the frames of a new region. Damaged frames at the start of
+     * the region are skipped; the region ends before any later damage, or
+     * before a frame it only holds part of, and the next region starts
+     * there.
+     * @param last True if the region holds the end of the segment.
+     * @param keepPartial True to keep a region that holds no whole frame
+     * unchecked rather than give it up.
+     * @return False if the region holds no whole frame and was given up.
+     */
+    private boolean checkFrames(boolean last, boolean keepPartial) {
+	ByteBuffer region = this.region;
+	int end = this.end;
+	int good = this.position;
+	for(int t = nextTrailer(good); t < end; t = nextTrailer(t + 1)) {
+	    long trailer = LogStore.readTrailer(region, t, end);
+	    if(trailer < 0)
+		continue;
+	    int frameStart = t - (int)Math.min(t, trailer >>> 32);
+	    boolean sound = frameStart >= good && checksum(frameStart, t) == (trailer & 0xFFFFFFFFL);
+	    int next = t + LogStore.FRAME_BYTES;
+	    if(sound && (frameStart == good || !this.framed)) {
+		// a good frame, or one after data from before frames
+		this.framed = true;
+		good = next;
+		continue;
+	    }
+	    if(good > this.position) {
+		// end the region at the damage, the next one skips it
+		this.end = good;
+		this.filePosition = this.regionOffset + good;
+		return true;
+	    }
+	    int skipTo = sound ? frameStart : next;
+	    this.skippedBytes += skipTo - good;
+	    this.position = skipTo;
+	    good = sound ? next : skipTo;
+	}
+
+	if(good == end)
+	    return true;
+	if(last) {
+	    if(this.framed) {
+		this.skippedBytes += end - good;
+		this.tornOffset = this.regionOffset + good;
+		this.end = good;
+	    }
+	    return true;
+	}
+	if(good == this.position && !keepPartial) {
+	    this.filePosition = this.regionOffset + good;
+	    return false;
+	}
+	if(good > this.position) {
+	    this.end = good;
+	    this.filePosition = this.regionOffset + good;
+	}
+	return true;
+    }
+
+    /**
+     * Computes the CRC32 of part of the region.
+     * @param from Offset of the first byte.
+     * @param to Offset after the last byte.
+     * @return The CRC.
+     */
+    private long checksum(int from, int to) {
+	if(this.crc == null)
+	    this.crc = new CRC32();
+	CRC32 crc = this.crc;
+	crc.reset();
+	if(this.region.hasArray()) {
+	    crc.update(this.region.array(), this.region.arrayOffset() + from, to - from);
+	    return crc.getValue();
+	}
+
+	if(this.crcChunk == null)
+	    this.crcChunk = new byte[CHECK_CHUNK_BYTES];
+	ByteBuffer data = this.region.duplicate();
+	data.limit(to);
+	data.position(from);
+	while(data.hasRemaining()) {
+	    int n = Math.min(data.remaining(), this.crcChunk.length);
+	    data.get(this.crcChunk, 0, n);
+	    crc.update(this.crcChunk, 0, n);
+	}
+	return crc.getValue();
+    }
+
+    /**
+     * Finds the next frame trailer. FRAME_MARK can be typed, but only
+     * follows TAG_START in a trailer.
+     * @param p Offset to start at.
+     * @return Offset of the trailer's TAG_START, end if there is none.
+     */
+    private int nextTrailer(int p) {
+	ByteBuffer region = this.region;
+	int end = this.end;
+	for(p = Math.max(p + 1, 1); p + 8 <= end; p += 8) {
+	    long x = region.getLong(p) ^ (ONES * LogStore.FRAME_MARK);
+	    if(((x - ONES) & ~x & HIGHS) != 0)
+		break;
+	}
+	for(; p < end; p++) {
+	    if(region.get(p) == LogStore.FRAME_MARK && region.get(p - 1) == EventLog.TAG_START)
+		return p - 1;
+	}
+	return end;
+    }
+
+    /**
+     * Opens the next segment that may hold snippets in the range.
+     * @return False if no later segment needs to be read.
+     * @throws IOException Thrown if the segment can't be opened.
+     */
+    private boolean nextSegment() throws IOException {
+	while(this.segment < this.segments.length) {
+	    int i = this.segment++;
+	    long[] index = this.index;
+	    boolean sorted = this.indexSorted;
+	    this.index = i + 1 < this.segments.length
+		? LogStore.readIndex(this.segments[i + 1]) : new long[0];
+	    this.indexSorted = LogStore.isSorted(this.index);
+
+	    // everything in this segment is older than the next one's start
+	    long nextStart = LogStore.firstTime(this.index);
+	    if(nextStart >= 0 && nextStart < this.from)
+		continue;
+	    if(LogStore.firstTime(index) > this.to)
+		return false;
+
+	    // compressed since it was listed
+	    File file = this.segments[i];
+	    if(!file.exists() && !LogStore.isCompressed(file))
+		file = LogStore.compressedFile(file);
+
+	    this.blocks = LogStore.isCompressed(file) ? LogStore.readBlocks(file) : null;
+	    this.file = new RandomAccessFile(file, "r");
+	    this.fileLength = Math.min(this.endOffset, this.blocks != null
+				       ? this.blocks[this.blocks.length - 2] : this.file.length());
+	    this.filePosition = this.startOffset >= 0
+		? this.startOffset : LogStore.seek(index, this.from, sorted);
+	    this.bodyReached = false;
+	    this.framed = false;
+	    this.tornOffset = -1;
+	    this.time = 0;
+	    return true;
+	}
+	return false;
+    }
+
+    /**
+     * Reads the tag at the current position and moves past it.
+     */
+    private void readTag() {
+	ByteBuffer region = this.region;
+	int end = this.end;
+	int p = this.position + 1;
+	int b = p < end ? region.get(p) : -1;
+	if(b == LogStore.FRAME_MARK) {
+	    // frame trailer, already checked
+	    p = Math.min(end, this.position + LogStore.FRAME_BYTES);
+	} else if(b >= '0' && b <= '9') {
+	    // absolute time, in decimal
+	    long millis = 0;
+	    while(b >= '0' && b <= '9') {
+		millis = millis * 10 + (b - '0');
+		b = ++p < end ? region.get(p) : -1;
+	    }
+	    if(b == EventLog.TAG_END) {
+		this.time = millis;
+		this.bodyReached = true;
+		this.baseRead = true;
+		p++;
+	    }
+	} else if(this.bodyReached) {
+	    // delta from the previous tag, as a varint
+	    long delta = 0;
+	    int shift = 0;
+	    while(b >= EventLog.DELTA_MORE
+		  && b < EventLog.DELTA_MORE + (1 << EventLog.DELTA_BITS)) {
+		delta |= (long)(b - EventLog.DELTA_MORE) << shift;
+		shift += EventLog.DELTA_BITS;
+		b = ++p < end ? region.get(p) : -1;
+	    }
+	    if(b >= EventLog.DELTA_LAST
+	       && b < EventLog.DELTA_LAST + (1 << EventLog.DELTA_BITS)) {
+		delta |= (long)(b - EventLog.DELTA_LAST) << shift;
+		this.time += delta;
+		p++;
+	    }
+	}
+	this.position = p;
+    }
+
+    /**
+     * Finds the next tag. Tests eight bytes at a time for a TAG_START
+     * byte, and ORs the bytes passed over into scanned so isAscii() can
+     * tell if they were all ASCII.
+     * @param p Offset to start at.
+     * @return Offset of the next TAG_START byte, end if there is none.
+     */
+    private int nextTag(int p) {
+	ByteBuffer region = this.region;
+	int end = this.end;
+	long seen = 0;
+	while(p + 8 <= end) {
+	    long word = region.getLong(p);
+	    long x = word ^ (ONES * EventLog.TAG_START);
+	    if(((x - ONES) & ~x & HIGHS) != 0)
+		break;
+	    seen |= word;
+	    p += 8;
+	}
+	for(; p < end; p++) {
+	    byte b = region.get(p);
+	    if(b == EventLog.TAG_START)
+		break;
+	    seen |= b & 0xFF;
+	}
+	this.scanned = seen;
+	return p;
+    }
+
+    /**
+     * Closes the open segment, if any.
+     */
+    private void closeFile() {
+	if(this.file == null)
+	    return;
+	try {
+	    this.file.close();
+	} catch (IOException e) {
+	    // nothing was written, nothing is lost
+	}
+	this.file = null;
+	this.blocks = null;
+    }
+
+    /**
+     * A snippet of the log and the time it was taken.
+     */
+    public static class Entry {
+	/** The time in milliseconds at which the snippet was taken. */
+	private final long time;
+	/** The text of the snippet in the cursor's view. */
+	private final String text;
+
+	/**
+	 * Constructs a log entry.
+	 * @param time The time in milliseconds at which the snippet was taken.
+	 * @param text The Snippet Text.
+	 */
+	public Entry(long time, String text) {
+	    this.time = time;
+	    this.text = text;
+	}
+
+	/**
+	 * @return The time in milliseconds at which the snippet was taken.
+	 */
+	public long getTime() {
+	    return this.time;
+	}
+
+	/**
+	 * @return The text of the snippet in the cursor's view, empty if
+	 * the event isn't in it.
+	 */
+	public String getText() {
+	    return this.text;
+	}
+    }
+}
@@ -0,0 +1,592 @@
+package com.gundersoft.skope3;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streams part of a log out as JSON Lines or CSV, one row per event, in
+ * constant memory. Rows are encoded straight into a few fixed buffers
+ * that are written to a channel as they fill, so an export of any size
+ * holds no more than PIPELINE_BUFFERS of them.
+ * <p>
+ * Every row has the event's time in milliseconds, the same time in UTC
+ * as ISO 8601, the name and native code of the key pressed, its
+ * modifiers, and the text it typed as the typed text view reads it:
+ * <pre>
+ *  {"time":1400000000000,"date":"2014-05-13T16:53:20.000Z","key":"A","code":30,"modifiers":1,"text":"A"}
+ *  time,date,key,code,modifiers,text
+ * </pre>
+ * Fields an event doesn't have are null in JSON and empty in CSV. A log
+ * of text from before event logs has a row per snippet with only the
+ * times and the text.
+ * <p>
+ * With gzip on, compression is a second stage, run as a task on a
+ * Scheduler pool: the exporting thread fills a buffer, hands it over and
+ * goes on filling the next while the first is deflated and written.
+ * <p>
+ * Run as a program it exports a log to a file:
+ * <pre>
+ *  java com.gundersoft.skope3.LogExporter log|- out|- [jsonl|csv] [gzip] [from] [to]
+ * </pre>
+ * A log of "-" exports a synthetic log of about 1 GB and reports the rate.
+ * Times are milliseconds or local "yyyy-MM-dd[ HH:mm[:ss]]".
+ * @author Christian Gunderman
+ */
+public class LogExporter {
+    /** One JSON object per line. */
+    public static final int FORMAT_JSON_LINES = 0;
+    /** Comma separated values with a header row. */
+    public static final int FORMAT_CSV = 1;
+    /** Bytes of each buffer rows are encoded into. */
+    private static final int BUFFER_BYTES = 262144;
+    /** Buffers shared by the two stages of a gzip export. */
+    private static final int PIPELINE_BUFFERS = 4;
+    /** Most bytes a single char is encoded to, a JSON escape. */
+    private static final int MAX_CHAR_BYTES = 6;
+    /** Deflater level, the fastest, so the second stage keeps up. */
+    private static final int GZIP_LEVEL = Deflater.BEST_SPEED;
+    /** Header of a gzip member: deflate, no name, no time, unknown OS. */
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff };
+    /** Header row of a CSV export. */
+    private static final String CSV_HEADER = "time,date,key,code,modifiers,text\n";
+    /** Handed to the second stage to end the export. */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    /** Hex digits, for JSON escapes. */
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    /** The log file name. */
+    private final String logFile;
+    /** FORMAT_JSON_LINES or FORMAT_CSV. */
+    private final int format;
+    /** Gzip the export in a second stage. */
+    private final boolean gzip;
+    /** Pool the second stage runs on. */
+    private final Scheduler.Pool pool;
+    /** Key name table, for the key column. */
+    private final KeyNames names;
+    /** Buffer rows are being encoded into. */
+    private ByteBuffer buffer;
+    /** Where buffers go when they fill. */
+    private WritableByteChannel out;
+    /** Second stage of a gzip export, or null. */
+    private GzipStage stage;
+    /** Text of the field being encoded. */
+    private final StringBuilder field;
+    /** Minute the cached date prefix is for, -1 for none. */
+    private long prefixMinute;
+    /** "yyyy-MM-ddTHH:mm:" of prefixMinute, in UTC. */
+    private final byte[] prefix;
+    /** Turns a minute into its date prefix. */
+    private final Calendar calendar;
+    /** Bytes handed to the channel or the second stage. */
+    private long bytesExported;
+
+    /**
+     * Creates an exporter for a log.
+     * @param logFile The log file name.
+     * @param format FORMAT_JSON_LINES or FORMAT_CSV.
+     * @param gzip True to gzip the export.
+     * @param pool Pool the gzip stage runs on, taking a thread for as
+     * long as each export lasts. Unused without gzip.
+     */
+    public LogExporter(String logFile, int format, boolean gzip, Scheduler.Pool pool) {
+	this.logFile = logFile;
+	this.format = format;
+	this.gzip = gzip;
+	this.pool = pool;
+	this.names = KeyNames.getInstance();
+	this.field = new StringBuilder();
+	this.prefix = new byte[17];
+	this.calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Exports the events within a time range.
+     * @param from Time of the oldest event to export.
+     * @param to Time of the newest event to export.
+     * @param channel Receives the export. Left open.
+     * @return Number of rows exported.
+     * @throws IOException Thrown if the log can't be read or the channel
+     * can't be written.
+     */
+    public long export(long from, long to, WritableByteChannel channel) throws IOException {
+	this.out = channel;
+	this.bytesExported = 0;
+	this.prefixMinute = -1;
+	this.buffer = ByteBuffer.allocate(BUFFER_BYTES);
+	LogCursor cursor = new LogCursor(this.logFile, from, to);
+	if(this.gzip) {
+	    this.stage = new GzipStage(channel);
+	    if(!this.pool.execute(this.stage)) {
+		this.stage = null;
+		cursor.close();
+		throw new IOException("No thread free to gzip the export");
+	    }
+	}
+
+	long rows = 0;
+	boolean finished = false;
+	IOException stageError = null;
+	try {
+	    if(this.format == FORMAT_CSV)
+		putAscii(CSV_HEADER);
+	    int view = -1;
+	    while(cursor.advance()) {
+		ByteBuffer region = cursor.getRegion();
+		int start = cursor.getStart();
+		int length = cursor.getLength();
+		// a log is all events or all text, the first snippet tells
+		if(view < 0)
+		    view = EventLog.isEvent(region, start, length) ? EventLog.VIEW_TEXT
+			: EventLog.VIEW_RAW;
+
+		int code = -1;
+		int modifiers = -1;
+		this.field.setLength(0);
+		if(view == EventLog.VIEW_RAW) {
+		    this.field.append(cursor.getText());
+		} else {
+		    code = EventLog.getKeyCode(region, start, length);
+		    modifiers = EventLog.getModifiers(region, start, length);
+		    EventLog.appendView(this.field, region, start, length, EventLog.VIEW_TEXT,
+					this.names);
+		}
+		putRow(cursor.getTime(), code, modifiers);
+		rows++;
+	    }
+	    flush();
+	    finished = true;
+	} finally {
+	    cursor.close();
+	    if(this.stage != null) {
+		this.stage.finish(finished);
+		try {
+		    this.stage.done.await();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+		stageError = this.stage.error;
+	    }
+	    this.stage = null;
+	    this.buffer = null;
+	    this.out = null;
+	}
+	if(stageError != null)
+	    throw stageError;
+	return rows;
+    }
+
+    /**
+     * Gets the number of bytes the last export produced, before gzip.
+     * @return Bytes exported.
+     */
+    public long getBytesExported() {
+	return this.bytesExported;
+    }
+
+    /**
+     * Encodes a row. The text is in field.
+     * @param time Time of the event.
+     * @param code Key code, -1 for none.
+     * @param modifiers Modifier mask, -1 for none.
+     * @throws IOException Thrown if a full buffer can't be written.
+     */
+    private void putRow(long time, int code, int modifiers) throws IOException {
+	boolean json = this.format == FORMAT_JSON_LINES;
+	if(json)
+	    putAscii("{\"time\":");
+	putLong(time);
+	putAscii(json ? ",\"date\":\"" : ",");
+	putDate(time);
+	putAscii(json ? "\",\"key\":" : ",");
+
+	if(code >= 0) {
+	    String name = this.names.getText(code);
+	    putString(name, name.length() - KeyNames.SEPARATOR.length());
+	} else if(json) {
+	    putAscii("null");
+	}
+	putAscii(json ? ",\"code\":" : ",");
+	if(code >= 0)
+	    putLong(code);
+	else if(json)
+	    putAscii("null");
+	putAscii(json ? ",\"modifiers\":" : ",");
+	if(modifiers >= 0)
+	    putLong(modifiers);
+	else if(json)
+	    putAscii("null");
+	putAscii(json ? ",\"text\":" : ",");
+	putString(this.field, this.field.length());
+	putAscii(json ? "}\n" : "\n");
+    }
+
+    /**
+     * Encodes a string field, quoted and escaped for the format. CSV
+     * fields are only quoted if they need to be.
+     * @param text The field.
+     * @param length Number of its chars to encode.
+     * @throws IOException Thrown if a full buffer can't be written.
+     */
+    private void putString(CharSequence text, int length) throws IOException {
+	boolean json = this.format == FORMAT_JSON_LINES;
+	boolean quote = json;
+	for(int i = 0; i < length && !quote; i++) {
+	    char c = text.charAt(i);
+	    quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+	}
+	if(quote)
+	    put('"');
+	for(int i = 0; i < length; i++) {
+	    char c = text.charAt(i);
+	    if(this.buffer.remaining() < MAX_CHAR_BYTES)
+		flush();
+	    if(c == '"') {
+		this.buffer.put((byte)(json ? '\\' : '"')).put((byte)'"');
+	    } else if(json && c == '\\') {
+		this.buffer.put((byte)'\\').put((byte)'\\');
+	    } else if(json && (c < 0x20 || Character.isSurrogate(c))) {
+		// a surrogate pair is typed as two events, each half escaped
+		this.buffer.put((byte)'\\').put((byte)'u').put(HEX[c >>> 12])
+		    .put(HEX[(c >>> 8) & 0xF]).put(HEX[(c >>> 4) & 0xF]).put(HEX[c & 0xF]);
+	    } else if(c < 0x80) {
+		this.buffer.put((byte)c);
+	    } else if(c < 0x800) {
+		this.buffer.put((byte)(0xC0 | (c >>> 6))).put((byte)(0x80 | (c & 0x3F)));
+	    } else if(Character.isSurrogate(c)) {
+		this.buffer.put((byte)'?');
+	    } else {
+		this.buffer.put((byte)(0xE0 | (c >>> 12))).put((byte)(0x80 | ((c >>> 6) & 0x3F)))
+		    .put((byte)(0x80 | (c & 0x3F)));
+	    }
+	}
+	if(quote)
+	    put('"');
+    }
+
+    /**
+     * Encodes a time as ISO 8601 in UTC. The part up to the minute is
+     * cached, since most rows fall in the same minute as the one before.
+     * @param time The time in milliseconds.
+     * @throws IOException Thrown if a full buffer can't be written.
+     */
+    private void putDate(long time) throws IOException {
+	long minute = time >= 0 ? time / 60000 : (time - 59999) / 60000;
+	if(minute != this.prefixMinute) {
+	    this.calendar.setTimeInMillis(minute * 60000);
+	    int year = this.calendar.get(Calendar.YEAR);
+	    byte[] p = this.prefix;
+	    digits(p, 0, year, 4);
+	    p[4] = '-';
+	    digits(p, 5, this.calendar.get(Calendar.MONTH) + 1, 2);
+	    p[7] = '-';
+	    digits(p, 8, this.calendar.get(Calendar.DAY_OF_MONTH), 2);
+	    p[10] = 'T';
+	    digits(p, 11, this.calendar.get(Calendar.HOUR_OF_DAY), 2);
+	    p[13] = ':';
+	    digits(p, 14, this.calendar.get(Calendar.MINUTE), 2);
+	    p[16] = ':';
+	    this.prefixMinute = minute;
+	}
+	if(this.buffer.remaining() < this.prefix.length + 7)
+	    flush();
+	int millis = (int)(time - minute * 60000);
+	this.buffer.put(this.prefix);
+	this.buffer.put((byte)('0' + millis / 10000)).put((byte)('0' + millis / 1000 % 10))
+	    .put((byte)'.').put((byte)('0' + millis / 100 % 10))
+	    .put((byte)('0' + millis / 10 % 10)).put((byte)('0' + millis % 10)).put((byte)'Z');
+    }
+
+    /**
+     * Writes a number as a fixed count of decimal digits.
+     * @param to Receives the digits.
+     * @param at Where the first digit goes.
+     * @param value The number.
+     * @param count Number of digits.
+     */
+    private static void digits(byte[] to, int at, int value, int count) {
+	for(int i = at + count - 1; i >= at; i--) {
+	    to[i] = (byte)('0' + value % 10);
+	    value /= 10;
+	}
+    }
+
+    /**
+     * Encodes a number in decimal.
+     * @param value The number.
+     * @throws IOException Thrown if a full buffer can't be written.
+     */
+    private void putLong(long value) throws IOException {
+	if(this.buffer.remaining() < 20)
+	    flush();
+	if(value < 0) {
+	    this.buffer.put((byte)'-');
+	    value = -value;
+	}
+	int digits = 1;
+	for(long v = value; v >= 10; v /= 10)
+	    digits++;
+	int end = this.buffer.position() + digits;
+	for(int i = end - 1; i >= end - digits; i--) {
+	    this.buffer.put(i, (byte)('0' + value % 10));
+	    value /= 10;
+	}
+	this.buffer.position(end);
+    }
+
+    /**
+     * Encodes ASCII text as is.
+     * @param text The text.
+     * @throws IOException Thrown if a full buffer can't be written.
+     */
+    private void putAscii(String text) throws IOException {
+	if(this.buffer.remaining() < text.length())
+	    flush();
+	for(int i = 0; i < text.length(); i++)
+	    this.buffer.put((byte)text.charAt(i));
+    }
+
+    /**
+     * Encodes an ASCII char.
+     * @param c The char.
+     * @throws IOException Thrown if a full buffer can't be written.
+     */
+    private void put(char c) throws IOException {
+	if(!this.buffer.hasRemaining())
+	    flush();
+	this.buffer.put((byte)c);
+    }
+
+    /**
+     * Sends the buffer on, to the channel or the second stage, and starts
+     * a new one.
+     * @throws IOException Thrown if the channel can't be written or the
+     * second stage failed.
+     */
+    private void flush() throws IOException {
+	this.buffer.flip();
+	this.bytesExported += this.buffer.remaining();
+	if(this.stage != null) {
+	    this.buffer = this.stage.exchange(this.buffer);
+	} else {
+	    while(this.buffer.hasRemaining())
+		this.out.write(this.buffer);
+	}
+	this.buffer.clear();
+    }
+
+    /**
+     * Second stage of a gzip export. Takes filled buffers from the first
+     * stage, deflates them to the channel as one gzip member, and hands
+     * them back empty.
+     */
+    private static class GzipStage implements Runnable {
+	/** Filled buffers waiting to be deflated, END last. */
+	private final BlockingQueue<ByteBuffer> filled;
+	/** Buffers handed back for filling. */
+	private final BlockingQueue<ByteBuffer> empty;
+	/** The export's channel. */
+	private final WritableByteChannel out;
+	/** Set to stop without writing the gzip trailer. */
+	private volatile boolean aborted;
+	/** Error that stopped the stage, or null. */
+	private volatile IOException error;
+	/** Counted down when the stage has stopped. */
+	private final CountDownLatch done;
+
+	/**
+	 * Creates the stage with its spare buffers. The first stage owns
+	 * one more.
+	 * @param out The export's channel.
+	 */
+	public GzipStage(WritableByteChannel out) {
+	    this.out = out;
+	    this.done = new CountDownLatch(1);
+	    this.filled = new ArrayBlockingQueue<ByteBuffer>(PIPELINE_BUFFERS);
+	    this.empty = new ArrayBlockingQueue<ByteBuffer>(PIPELINE_BUFFERS);
+	    for(int i = 1; i < PIPELINE_BUFFERS; i++)
+		this.empty.add(ByteBuffer.allocate(BUFFER_BYTES));
+	}
+
+	/**
+	 * Hands over a filled buffer and takes an empty one.
+	 * @param buffer The filled buffer, flipped.
+	 * @return A buffer to fill.
+	 * @throws IOException Thrown if the stage failed, or the thread was
+	 * interrupted.
+	 */
+	public ByteBuffer exchange(ByteBuffer buffer) throws IOException {
+	    try {
+		if(this.error != null)
+		    throw this.error;
+		this.filled.put(buffer);
+		ByteBuffer next;
+		while((next = this.empty.poll(100, TimeUnit.MILLISECONDS)) == null) {
+		    if(this.error != null)
+			throw this.error;
+		}
+		return next;
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException("Export interrupted");
+	    }
+	}
+
+	/**
+	 * Ends the stage once it has written what it was handed.
+	 * @param complete False to stop without the gzip trailer, after a
+	 * failed export.
+	 */
+	public void finish(boolean complete) {
+	    if(!complete) {
+		this.aborted = true;
+		this.filled.clear();
+	    }
+	    // never full, there are only PIPELINE_BUFFERS buffers
+	    this.filled.offer(END);
+	}
+
+	@Override
+	public void run() {
+	    Deflater deflater = new Deflater(GZIP_LEVEL, true);
+	    CRC32 crc = new CRC32();
+	    ByteBuffer packed = ByteBuffer.allocate(BUFFER_BYTES);
+	    long length = 0;
+	    try {
+		write(ByteBuffer.wrap(GZIP_HEADER));
+		while(true) {
+		    ByteBuffer buffer = this.filled.take();
+		    if(buffer == END)
+			break;
+		    if(this.aborted)
+			return;
+		    crc.update(buffer.array(), buffer.position(), buffer.remaining());
+		    length += buffer.remaining();
+		    deflater.setInput(buffer.array(), buffer.position(), buffer.remaining());
+		    while(!deflater.needsInput())
+			drain(deflater, packed);
+		    buffer.clear();
+		    this.empty.put(buffer);
+		}
+		if(this.aborted)
+		    return;
+		deflater.finish();
+		while(!deflater.finished())
+		    drain(deflater, packed);
+		ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		trailer.putInt((int)crc.getValue()).putInt((int)length).flip();
+		write(trailer);
+	    } catch (IOException e) {
+		this.error = e;
+	    } catch (InterruptedException e) {
+		this.error = new InterruptedIOException("Export interrupted");
+	    } finally {
+		deflater.end();
+		this.done.countDown();
+	    }
+	}
+
+	/**
+	 * Deflates what the deflater holds into a buffer and writes it.
+	 * @param deflater The deflater.
+	 * @param packed Buffer for the deflated bytes.
+	 * @throws IOException Thrown if the channel can't be written.
+	 */
+	private void drain(Deflater deflater, ByteBuffer packed) throws IOException {
+	    int n = deflater.deflate(packed.array(), 0, packed.capacity());
+	    packed.clear().limit(n);
+	    write(packed);
+	}
+
+	/**
+	 * Writes all of a buffer to the channel.
+	 * @param data The buffer.
+	 * @throws IOException Thrown if the channel can't be written.
+	 */
+	private void write(ByteBuffer data) throws IOException {
+	    while(data.hasRemaining())
+		this.out.write(data);
+	}
+    }
+
+    /**
+     * Parses a time given on the command line.
+     * @param text Milliseconds, or a local "yyyy-MM-dd[ HH:mm[:ss]]".
+     * @return The time in milliseconds.
+     * @throws ParseException Thrown if the time can't be read.
+     */
+    private static long parseTime(String text) throws ParseException {
+	if(text.matches("-?\\d+"))
+	    return Long.parseLong(text);
+	String[] patterns = { "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd" };
+	for(String pattern : patterns) {
+	    if(text.length() == pattern.length())
+		return new SimpleDateFormat(pattern).parse(text).getTime();
+	}
+	throw new ParseException("Unknown time: " + text, 0);
+    }
+
+    /**
+     * Exports a log to a file.
+     * @param args log|- out|- [jsonl|csv] [gzip] [from] [to]
+     * @throws Exception Thrown if the log can't be read or the export
+     * can't be written.
+     */
+    public static void main(String[] args) throws Exception {
+	if(args.length < 2) {
+	    System.err.println("Usage: LogExporter log|- out|- [jsonl|csv] [gzip] [from] [to]");
+	    return;
+	}
+	String source = args[0];
+	int format = args.length > 2 && args[2].equals("csv") ? FORMAT_CSV : FORMAT_JSON_LINES;
+	boolean gzip = args.length > 3 && args[3].equals("gzip");
+	long from = args.length > 4 ? parseTime(args[4]) : Long.MIN_VALUE;
+	long to = args.length > 5 ? parseTime(args[5]) : Long.MAX_VALUE;
+
+	File file = new File(source);
+	if(source.equals("-")) {
+	    file = File.createTempFile("skope-export", ".dat");
+	    file.deleteOnExit();
+	    LogParser.writeSynthetic(file, 1L << 30);
+	}
+
+	FileOutputStream stream = args[1].equals("-") ? null : new FileOutputStream(args[1]);
+	WritableByteChannel out = stream != null ? stream.getChannel() : Channels.newChannel(System.out);
+	Scheduler scheduler = new Scheduler();
+	LogExporter exporter = new LogExporter(file.getPath(), format, gzip,
+					       scheduler.createPool("export-gzip", 1, 1));
+	long start = System.nanoTime();
+	long rows;
+	try {
+	    rows = exporter.export(from, to, out);
+	} finally {
+	    scheduler.shutdown(5000);
+	    if(stream != null)
+		stream.close();
+	}
+	double seconds = (System.nanoTime() - start) / 1e9;
+	double mb = exporter.getBytesExported() / 1048576.0;
+	long written = stream != null ? new File(args[1]).length() : 0;
+	System.err.println(String.format("%d rows, %.0f MB%s in %.3f s, %.0f MB/s, %.2f M rows/s",
+					 rows, mb, gzip ? String.format(" (%.0f MB gzipped)", written / 1048576.0) : "",
+					 seconds, mb / seconds, rows / seconds / 1e6));
+	if(source.equals("-"))
+	    file.delete();
+    }
+}
@@ -0,0 +1,760 @@
+package com.gundersoft.skope3;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/**
+ * Loads a key log, every segment of it, and splits it into snippets taken
+ * at specific times. Use methods of this object to get the log in its
+ * entirety, or just significant pieces of it.
+ * <p>
+ * Reads both the per event delta tags written by EventLog and the
+ * decimal '\1'millis'\2' tags of older logs. Each snippet is the text
+ * between one tag and the next.
+ * <p>
+ * The snippets are found by a LogCursor. Only the time, place and length
+ * of each snippet is kept, in primitive arrays; text is decoded from the
+ * mapping when it is asked for. The mappings are held until close() is
+ * called, and let go of the files once they are collected. To read a log
+ * once, front to back, use a LogCursor or LogReader instead, which hold
+ * nothing per snippet.
+ * <p>
+ * Times are kept sorted, as they are written, so time lookups are binary
+ * searches, and each snippet's offset in the text of the whole log is
+ * kept so a time range maps straight to a span of that text. If the clock
+ * went back while logging, lookups fall back to a scan.
+ * <p>
+ * An event log is read in one of its views, see EventLog. Only the
+ * chars each event takes up in the view are counted, so setView() moves
+ * to the other view without reading the log again.
+ * <p>
+ * Given a ForkJoinPool, each mapped region is split in halves on tag
+ * boundaries until the pieces are small, and the pieces are scanned in
+ * parallel. A piece doesn't know the time it starts at, so times up to
+ * its first base tag are counted from 0 and fixed up when the pieces are
+ * merged, in order, into one index.
+ * <p>
+ * Run as a program it is a benchmark:
+ * <pre>
+ *  java com.gundersoft.skope3.LogParser [log file|-] [megabytes] [max threads]
+ * </pre>
+ * "-" writes a synthetic event log of the given size first. The log is
+ * parsed in its typed text view with 1, 2, 4... threads up to the
+ * maximum.
+ * @author Christian Gunderman
+ */
+public class LogParser {
+    /** Snippets to make room for up front. */
+    private static final int INITIAL_CAPACITY = 1024;
+    /** Pieces of a region at most this long are not split further. */
+    private static final int SPLIT_BYTES = 1 << 20;
+
+    /** Mapped parts of the segments, each starting on a tag. */
+    private ByteBuffer[] regions;
+    /** Number of regions in use. */
+    private int regionCount;
+    /** Time of each snippet. */
+    private long[] times;
+    /** Region each snippet is in. */
+    private int[] regionOf;
+    /** Offset of each snippet's text in its region. */
+    private int[] starts;
+    /** Length of each snippet's text in bytes. */
+    private int[] lengths;
+    /** Offset of each snippet's text in the text of the whole log. */
+    private long[] offsets;
+    /** Number of snippets. */
+    private int size;
+    /** Length of the text of the whole log in chars. */
+    private long charCount;
+    /** False if a snippet is older than the one before it. */
+    private boolean sorted;
+    /** While merging, true once a base tag was seen in the segment. */
+    private boolean mergeBased;
+    /** While merging, time of the last tag merged. */
+    private long mergeTime;
+    /** EventLog view the text is read in. */
+    private int view;
+    /** Key name table, null unless the log is an event log. */
+    private KeyNames names;
+
+    /**
+     * Creates the LogParser object from every segment of the given log.
+     * @param logFile The log file name.
+     * @throws IOException Thrown if unable to find/open the
+     * given log file name.
+     */
+    public LogParser(String logFile) throws IOException {
+	this(logFile, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates the LogParser object from the part of the given log within
+     * a time range. Segments that end before the range are skipped using
+     * the next segment's start time, and each segment's sparse index is
+     * used to seek close to the start of the range, so only the data near
+     * the range is read.
+     * @param logFile The log file name.
+     * @param from Time of the oldest snippet to keep.
+     * @param to Time of the newest snippet to keep.
+     * @throws IOException Thrown if unable to find/open the
+     * given log file name.
+     */
+    public LogParser(String logFile, long from, long to) throws IOException {
+	this(logFile, from, to, null);
+    }
+
+    /**
+     * Creates the LogParser object from the part of the given log within
+     * a time range, parsing each region in parallel.
+     * @param logFile The log file name.
+     * @param from Time of the oldest snippet to keep.
+     * @param to Time of the newest snippet to keep.
+     * @param pool Pool to parse on, null to parse on this thread.
+     * @throws IOException Thrown if unable to find/open the
+     * given log file name.
+     */
+    public LogParser(String logFile, long from, long to, ForkJoinPool pool) throws IOException {
+	this(logFile, from, to, pool, EventLog.VIEW_RAW);
+    }
+
+    /**
+     * Creates the LogParser object from the part of the given log within
+     * a time range, in a view of its events.
+     * @param logFile The log file name.
+     * @param from Time of the oldest snippet to keep.
+     * @param to Time of the newest snippet to keep.
+     * @param pool Pool to parse on, null to parse on this thread.
+     * @param view EventLog.VIEW_TEXT or VIEW_KEYS for an event log,
+     * VIEW_RAW for a log of text.
+     * @throws IOException Thrown if unable to find/open the
+     * given log file name.
+     */
+    public LogParser(String logFile, long from, long to, ForkJoinPool pool, int view)
+	throws IOException {
+	this.view = view;
+	if(view != EventLog.VIEW_RAW)
+	    this.names = KeyNames.getInstance();
+	this.regions = new ByteBuffer[4];
+	this.times = new long[INITIAL_CAPACITY];
+	this.regionOf = new int[INITIAL_CAPACITY];
+	this.starts = new int[INITIAL_CAPACITY];
+	this.lengths = new int[INITIAL_CAPACITY];
+	this.offsets = new long[INITIAL_CAPACITY];
+	this.sorted = true;
+
+	LogCursor cursor = new LogCursor(logFile, from, to);
+	try {
+	    if(pool != null) {
+		parse(cursor, from, to, pool);
+		return;
+	    }
+
+	    ByteBuffer region = null;
+	    int r = -1;
+	    while(cursor.advance()) {
+		if(cursor.getRegion() != region) {
+		    region = cursor.getRegion();
+		    r = addRegion(region);
+		}
+		add(r, cursor.getTime(), cursor.getStart(), cursor.getLength(),
+		    countChars(cursor, view, this.names));
+	    }
+	} finally {
+	    cursor.close();
+	}
+    }
+
+    /**
+     * Gets the number of snippets.
+     * @return The snippet count.
+     */
+    public int size() {
+	return this.size;
+    }
+
+    /**
+     * Switches an event log to another view. The snippets stay as they
+     * are; only the text offsets are counted again.
+     * @param view EventLog.VIEW_TEXT or VIEW_KEYS.
+     */
+    public void setView(int view) {
+	if(view == this.view)
+	    return;
+	if(this.names == null)
+	    this.names = KeyNames.getInstance();
+	this.view = view;
+	this.charCount = 0;
+	for(int i = 0; i < this.size; i++) {
+	    this.offsets[i] = this.charCount;
+	    this.charCount += countChars(this.regions[this.regionOf[i]], this.starts[i],
+					 this.lengths[i], view, this.names);
+	}
+    }
+
+    /**
+     * Gets the view the text is read in.
+     * @return The EventLog view.
+     */
+    public int getView() {
+	return this.view;
+    }
+
+    /**
+     * Gets the time of a snippet.
+     * @param i Index of the snippet, 0 is the oldest.
+     * @return Time the snippet was taken in milliseconds.
+     */
+    public long getTime(int i) {
+	return this.times[i];
+    }
+
+    /**
+     * Gets where a snippet starts in the text of the whole log.
+     * @param i Index of the snippet, size() for the end of the text.
+     * @return Offset in chars.
+     */
+    public long getOffset(int i) {
+	return i < this.size ? this.offsets[i] : this.charCount;
+    }
+
+    /**
+     * Finds the first snippet taken at or after a time.
+     * @param time Time in milliseconds.
+     * @return Index of the snippet, size() if there is none.
+     */
+    public int indexOf(long time) {
+	if(!this.sorted) {
+	    for(int i = 0; i < this.size; i++) {
+		if(this.times[i] >= time)
+		    return i;
+	    }
+	    return this.size;
+	}
+
+	int low = 0;
+	int high = this.size;
+	while(low < high) {
+	    int middle = (low + high) >>> 1;
+	    if(this.times[middle] < time)
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
+    /**
+     * Finds the run of snippets taken within a time range.
+     * @param from Time of the oldest snippet in the run.
+     * @param to Time after the newest snippet in the run.
+     * @return Index of the first snippet and index after the last, equal
+     * if there are none.
+     */
+    public int[] find(long from, long to) {
+	if(this.sorted) {
+	    int first = indexOf(from);
+	    return new int[] { first, Math.max(first, indexOf(to)) };
+	}
+
+	// out of order, take the first to the last match
+	int first = -1;
+	int last = -1;
+	for(int i = 0; i < this.size; i++) {
+	    if(this.times[i] >= from && this.times[i] < to) {
+		if(first < 0)
+		    first = i;
+		last = i + 1;
+	    }
+	}
+	return first < 0 ? new int[] { 0, 0 } : new int[] { first, last };
+    }
+
+    /**
+     * Decodes a run of snippets.
+     * @param first Index of the first snippet.
+     * @param last Index after the last snippet.
+     * @return Their text.
+     */
+    public String getText(int first, int last) {
+	long length = getOffset(last) - getOffset(first);
+	StringBuilder buffer = new StringBuilder((int)Math.min(Integer.MAX_VALUE - 8, length));
+	byte[] bytes = new byte[64];
+	for(int i = first; i < last; i++)
+	    bytes = appendText(buffer, i, bytes);
+	return buffer.toString();
+    }
+
+    /**
+     * Get the log in its entirety in plain String form.
+     * @return The current log file.
+     */
+    public String getEntireLog() {
+	return getText(0, this.size);
+    }
+
+    /**
+     * Gets all log snippets within the given time window of the specified
+     * date.
+     * @param A Calendar object representing a time to search for relevant
+     * snippets from.
+     * @param timeWindowMillis Time window in milliseconds within which a
+     * snippet must have been taken to be considered relevant.
+     * @return The text from this snippet.
+     */
+    public String getRelevantLog(Calendar date, int timeWindowMillis) {
+	int[] run = findRelevant(date, timeWindowMillis);
+	String text = getText(run[0], run[1]);
+	if(text.length() > 0)
+	    return text;
+	else
+	    return null;
+    }
+
+    /**
+     * Gets the date of the first snippet in the given file.
+     * This SHOULD be the oldest snippet if the file was not
+     * hand modified.
+     * @return The Date of the oldest file.
+     */
+    public Calendar getFirstDate() {
+	if(this.size > 0)
+	    return toCalendar(this.times[0]);
+	else
+	    return null;
+    }
+
+    /**
+     * Gets the date of the last snippet in the given file.
+     * This SHOULD be the newest snippet if the file was not
+     * hand modified.
+     * @return The Date of the newest snippet.
+     */
+    public Calendar getLastDate() {
+	if(this.size > 0)
+	    return toCalendar(this.times[this.size - 1]);
+	else
+	    return null;
+    }
+
+    /**
+     * Gets the span of the text of the whole log, as returned by
+     * getEntireLog(), taken up by the log snippets within the provided
+     * time window of the given date.
+     * @param date A Calendar object representing a time to search for
+     * relevant snippets from.
+     * @param timeWindowMillis Time window in milliseconds within which a
+     * snippet must have been taken to be considered relevant.
+     * @return Index of the first char and index after the last, or null
+     * if no snippet is relevant.
+     */
+    public int[] getRelevantLogRange(Calendar date, int timeWindowMillis) {
+	int[] run = findRelevant(date, timeWindowMillis);
+	if(run[0] == run[1])
+	    return null;
+	return new int[] { (int)getOffset(run[0]), (int)getOffset(run[1]) };
+    }
+
+    /**
+     * Lets go of the mapped segments. Text can't be read afterwards.
+     */
+    public void close() {
+	this.regions = new ByteBuffer[0];
+	this.regionCount = 0;
+	this.size = 0;
+	this.charCount = 0;
+    }
+
+    /**
+     * Finds the run of snippets taken within a time window.
+     * @param date Middle of the window.
+     * @param timeWindowMillis Width of the window.
+     * @return Index of the first snippet and index after the last.
+     */
+    private int[] findRelevant(Calendar date, int timeWindowMillis) {
+	long middle = date.getTimeInMillis();
+	long half = timeWindowMillis / 2;
+	if(half <= 0)
+	    return new int[] { 0, 0 };
+	return find(middle - half + 1, middle + half);
+    }
+
+    /**
+     * Parses every region of a cursor in parallel.
+     * @param cursor Cursor at the start of the log.
+     * @param from Time of the oldest snippet to keep.
+     * @param to Time of the newest snippet to keep.
+     * @param pool Pool to parse on.
+     * @throws IOException Thrown if a segment can't be read.
+     */
+    private void parse(LogCursor cursor, long from, long to, ForkJoinPool pool) throws IOException {
+	while(cursor.nextRegion()) {
+	    if(cursor.isSegmentStart()) {
+		this.mergeBased = false;
+		this.mergeTime = 0;
+	    }
+	    ByteBuffer region = cursor.getRegion();
+	    Piece piece = new Piece(region, cursor.getRegionStart(), cursor.getRegionEnd(),
+				    this.view, this.names);
+	    pool.invoke(piece);
+	    if(!merge(piece, addRegion(region), from, to))
+		return;
+	}
+    }
+
+    /**
+     * Adds the snippets of a parsed piece within a time range, fixing up
+     * the times of those before its first base tag.
+     * @param piece The piece.
+     * @param r Number of its region.
+     * @param from Time of the oldest snippet to keep.
+     * @param to Time of the newest snippet to keep.
+     * @return False if a snippet newer than the range was found.
+     */
+    private boolean merge(Piece piece, int r, long from, long to) {
+	if(piece.left != null)
+	    return merge(piece.left, r, from, to) && merge(piece.right, r, from, to);
+
+	for(int i = 0; i < piece.size; i++) {
+	    long time = piece.times[i];
+	    if(i < piece.unbased) {
+		// text before the segment's first base tag is left out
+		if(!this.mergeBased)
+		    continue;
+		time += this.mergeTime;
+	    }
+	    if(time > to)
+		return false;
+	    if(time >= from)
+		add(r, time, piece.starts[i], piece.lengths[i], piece.chars[i]);
+	}
+
+	piece.times = null;
+	piece.starts = null;
+	piece.lengths = null;
+	piece.chars = null;
+	if(piece.based) {
+	    this.mergeBased = true;
+	    this.mergeTime = piece.endTime;
+	} else {
+	    this.mergeTime += piece.endTime;
+	}
+	return true;
+    }
+
+    /**
+     * Adds a snippet.
+     * @param r Number of the region.
+     * @param time Time of the snippet.
+     * @param start Offset of its text in the region.
+     * @param length Length of its text in bytes.
+     * @param count Length of its text in chars.
+     */
+    private void add(int r, long time, int start, int length, int count) {
+	if(this.size == this.times.length) {
+	    int capacity = this.size * 2;
+	    this.times = Arrays.copyOf(this.times, capacity);
+	    this.regionOf = Arrays.copyOf(this.regionOf, capacity);
+	    this.starts = Arrays.copyOf(this.starts, capacity);
+	    this.lengths = Arrays.copyOf(this.lengths, capacity);
+	    this.offsets = Arrays.copyOf(this.offsets, capacity);
+	}
+
+	if(this.size > 0 && time < this.times[this.size - 1])
+	    this.sorted = false;
+	this.times[this.size] = time;
+	this.regionOf[this.size] = r;
+	this.starts[this.size] = start;
+	this.lengths[this.size] = length;
+	this.offsets[this.size] = this.charCount;
+	this.charCount += count;
+	this.size++;
+    }
+
+    /**
+     * Keeps a mapped region.
+     * @param region The region.
+     * @return Its number.
+     */
+    private int addRegion(ByteBuffer region) {
+	if(this.regionCount == this.regions.length)
+	    this.regions = Arrays.copyOf(this.regions, this.regionCount * 2);
+	this.regions[this.regionCount] = region;
+	return this.regionCount++;
+    }
+
+    /**
+     * Decodes a snippet onto a buffer.
+     * @param buffer Receives the text.
+     * @param i Index of the snippet.
+     * @param bytes Scratch space for non-ASCII text.
+     * @return The scratch space, grown if it was too small.
+     */
+    private byte[] appendText(StringBuilder buffer, int i, byte[] bytes) {
+	ByteBuffer region = this.regions[this.regionOf[i]];
+	int start = this.starts[i];
+	int length = this.lengths[i];
+	if(this.view != EventLog.VIEW_RAW) {
+	    EventLog.appendView(buffer, region, start, length, this.view, this.names);
+	    return bytes;
+	}
+	if(getOffset(i + 1) - this.offsets[i] == length) {
+	    // plain ASCII
+	    for(int p = start; p < start + length; p++)
+		buffer.append((char)region.get(p));
+	    return bytes;
+	}
+
+	if(bytes.length < length)
+	    bytes = new byte[Math.max(length, bytes.length * 2)];
+	for(int p = 0; p < length; p++)
+	    bytes[p] = region.get(start + p);
+	buffer.append(new String(bytes, 0, length, KeyNames.CHARSET));
+	return bytes;
+    }
+
+    /**
+     * Counts the chars of a cursor's current snippet.
+     * @param cursor The cursor.
+     * @param view The EventLog view.
+     * @param names The key name table, for VIEW_KEYS.
+     * @return Length of its text in chars.
+     */
+    private static int countChars(LogCursor cursor, int view, KeyNames names) {
+	if(view == EventLog.VIEW_RAW && cursor.isAscii())
+	    return cursor.getLength();
+	return countChars(cursor.getRegion(), cursor.getStart(), cursor.getLength(), view, names);
+    }
+
+    /**
+     * Counts the chars of a snippet.
+     * @param region The region holding it.
+     * @param start Offset of its text.
+     * @param length Length of its text in bytes.
+     * @param view The EventLog view.
+     * @param names The key name table, for VIEW_KEYS.
+     * @return Length of its text in chars.
+     */
+    private static int countChars(ByteBuffer region, int start, int length, int view,
+				  KeyNames names) {
+	if(view != EventLog.VIEW_RAW)
+	    return EventLog.appendView(null, region, start, length, view, names);
+
+	// one char per UTF-8 sequence, two for those beyond 16 bits
+	int count = 0;
+	for(int i = start; i < start + length; i++) {
+	    int b = region.get(i) & 0xFF;
+	    if((b & 0xC0) != 0x80)
+		count += b >= 0xF0 ? 2 : 1;
+	}
+	return count;
+    }
+
+    /**
+     * Makes a Calendar for a time stamp.
+     * @param millis The time stamp in milliseconds.
+     * @return The Calendar.
+     */
+    private static Calendar toCalendar(long millis) {
+	Calendar date = Calendar.getInstance();
+	date.setTimeInMillis(millis);
+	return date;
+    }
+
+    /**
+     * Benchmark. Parses a log with more and more threads and reports
+     * throughput and the speed up over one thread.
+     * @param args [log file|-] [megabytes] [max threads]
+     * @throws Exception Thrown if the log can't be written or read.
+     */
+    public static void main(String[] args) throws Exception {
+	String source = args.length > 0 ? args[0] : "-";
+	long megabytes = args.length > 1 ? Long.parseLong(args[1]) : 2048;
+	int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+	    : Runtime.getRuntime().availableProcessors();
+
+	File file = new File(source);
+	if(source.equals("-")) {
+	    file = File.createTempFile("skope-parse", ".dat");
+	    file.deleteOnExit();
+	    writeSynthetic(file, megabytes << 20);
+	}
+	double mb = file.length() / 1048576.0;
+	System.out.println(String.format("%.0f MB, %d cores", mb,
+					 Runtime.getRuntime().availableProcessors()));
+
+	double single = 0;
+	for(int threads = 1; threads <= maxThreads; threads *= 2) {
+	    ForkJoinPool pool = new ForkJoinPool(threads);
+	    long best = Long.MAX_VALUE;
+	    int size = 0;
+	    for(int run = 0; run < 3; run++) {
+		long start = System.nanoTime();
+		LogParser log = new LogParser(file.getPath(), Long.MIN_VALUE, Long.MAX_VALUE, pool,
+					      EventLog.VIEW_TEXT);
+		best = Math.min(best, System.nanoTime() - start);
+		size = log.size();
+		log.close();
+	    }
+	    pool.shutdown();
+
+	    double seconds = best / 1e9;
+	    if(threads == 1)
+		single = seconds;
+	    System.out.println(String.format("%d threads: %d snippets in %.3f s, %.0f MB/s, %.2fx",
+					     threads, size, seconds, mb / seconds, single / seconds));
+	}
+	if(source.equals("-"))
+	    file.delete();
+    }
+
+    /**
+     * Writes a synthetic event log of random words typed, flushed in
+     * framed batches the way the Keylogger would.
+     * @param file The file to write.
+     * @param bytes About how big to make it.
+     * @throws IOException Thrown if the file can't be written.
+     */
+    static void writeSynthetic(File file, long bytes) throws IOException {
+	String words = "the quick brown fox jumps over a lazy dog while skope keeps watch ";
+	Random random = new Random(1);
+	EventLog events = new EventLog(65536);
+	ByteArrayOutputStream batch = new ByteArrayOutputStream(1 << 18);
+	CRC32 crc = new CRC32();
+	OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+	try {
+	    long time = 1400000000000L;
+	    for(long written = 0; written < bytes; written += batch.size()) {
+		for(int i = 0; i < 65536; i++) {
+		    time += random.nextInt(400);
+		    events.addTyped(words.charAt(random.nextInt(words.length())), 0, time);
+		}
+		batch.reset();
+		events.renderEvents(batch);
+		events.clear();
+
+		crc.reset();
+		crc.update(batch.toByteArray());
+		batch.write(LogStore.frameTrailer(batch.size(), crc.getValue()));
+		batch.writeTo(out);
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * A piece of a mapped region, parsed as a fork join task. Pieces
+     * bigger than SPLIT_BYTES split in two at a tag and parse the halves,
+     * which are then merged left first. Smaller pieces scan themselves.
+     */
+    private static class Piece extends RecursiveAction {
+	/** Serialization version. */
+	private static final long serialVersionUID = 1L;
+
+	/** The region, shared with the other pieces. */
+	private final ByteBuffer region;
+	/** Offset of the piece, at a tag or the region's start. */
+	private final int start;
+	/** Offset after the piece, at a tag or the region's end. */
+	private final int end;
+	/** First half, if the piece was split. */
+	private Piece left;
+	/** Second half, if the piece was split. */
+	private Piece right;
+	/** Time of each snippet. */
+	private long[] times;
+	/** Offset of each snippet's text in the region. */
+	private int[] starts;
+	/** Length of each snippet's text in bytes. */
+	private int[] lengths;
+	/** Length of each snippet's text in chars. */
+	private int[] chars;
+	/** Number of snippets. */
+	private int size;
+	/** Number of snippets before the first base tag. */
+	private int unbased;
+	/** True if the piece has a base tag. */
+	private boolean based;
+	/** Time of the last tag, counted from 0 if there is no base tag. */
+	private long endTime;
+	/** EventLog view the chars are counted in. */
+	private final int view;
+	/** Key name table, for VIEW_KEYS. */
+	private final KeyNames names;
+
+	/**
+	 * Creates a piece.
+	 * @param region The region.
+	 * @param start Offset of the piece.
+	 * @param end Offset after the piece.
+	 * @param view EventLog view to count chars in.
+	 * @param names Key name table, for VIEW_KEYS.
+	 */
+	public Piece(ByteBuffer region, int start, int end, int view, KeyNames names) {
+	    this.region = region;
+	    this.start = start;
+	    this.end = end;
+	    this.view = view;
+	    this.names = names;
+	}
+
+	/**
+	 * Splits the piece or scans it.
+	 */
+	@Override
+	protected void compute() {
+	    if(this.end - this.start > SPLIT_BYTES) {
+		int middle = this.start + (this.end - this.start) / 2;
+		while(middle < this.end && this.region.get(middle) != EventLog.TAG_START)
+		    middle++;
+		if(middle < this.end) {
+		    this.left = new Piece(this.region, this.start, middle, this.view, this.names);
+		    this.right = new Piece(this.region, middle, this.end, this.view, this.names);
+		    invokeAll(this.left, this.right);
+		    return;
+		}
+	    }
+
+	    int capacity = INITIAL_CAPACITY;
+	    this.times = new long[capacity];
+	    this.starts = new int[capacity];
+	    this.lengths = new int[capacity];
+	    this.chars = new int[capacity];
+	    LogCursor cursor = new LogCursor(this.region.duplicate(), this.start, this.end);
+	    try {
+		while(cursor.advance()) {
+		    if(this.size == this.times.length) {
+			capacity = this.size * 2;
+			this.times = Arrays.copyOf(this.times, capacity);
+			this.starts = Arrays.copyOf(this.starts, capacity);
+			this.lengths = Arrays.copyOf(this.lengths, capacity);
+			this.chars = Arrays.copyOf(this.chars, capacity);
+		    }
+		    if(!cursor.isBased())
+			this.unbased = this.size + 1;
+		    this.times[this.size] = cursor.getTime();
+		    this.starts[this.size] = cursor.getStart();
+		    this.lengths[this.size] = cursor.getLength();
+		    this.chars[this.size] = countChars(cursor, this.view, this.names);
+		    this.size++;
+		}
+	    } catch (IOException e) {
+		// a piece has no segments of its own to read
+	    }
+	    this.based = cursor.hasReadBase();
+	    this.endTime = cursor.getTagTime();
+	}
+    }
+}
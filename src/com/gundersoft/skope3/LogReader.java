@@ -0,0 +1,170 @@
+package com.gundersoft.skope3;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads the text of a key log, tags left out, straight from its mapped
+ * segments. Nothing but a small char buffer is held, so a log larger than
+ * the heap can be copied, mailed or exported in constant memory. An event
+ * log is read in one of its views, each event rendered as it comes.
+ * @author Christian Gunderman
+ */
+public class LogReader extends Reader {
+    /** Chars decoded ahead of the caller. */
+    private static final int BUFFER_CHARS = 8192;
+
+    /** The snippets being read. */
+    private final LogCursor cursor;
+    /** Decodes non-ASCII snippets. */
+    private final CharsetDecoder decoder;
+    /** Decoded text not yet read. */
+    private final CharBuffer buffer;
+    /** Rest of the current snippet's bytes. */
+    private ByteBuffer snippet;
+    /** True once the cursor is used up. */
+    private boolean done;
+    /** EventLog view the log is read in. */
+    private final int view;
+    /** Key name table, null unless the log is an event log. */
+    private final KeyNames names;
+    /** The current event rendered in the view. */
+    private final StringBuilder event;
+    /** Chars of the current event already read. */
+    private int eventPosition;
+
+    /**
+     * Creates a reader over every segment of the given log.
+     * @param logFile The log file name.
+     * @throws IOException Thrown if unable to find the given log file name.
+     */
+    public LogReader(String logFile) throws IOException {
+	this(new LogCursor(logFile));
+    }
+
+    /**
+     * Creates a reader over every segment of the given event log.
+     * @param logFile The log file name.
+     * @param view EventLog.VIEW_TEXT or VIEW_KEYS.
+     * @throws IOException Thrown if unable to find the given log file name.
+     */
+    public LogReader(String logFile, int view) throws IOException {
+	this(new LogCursor(logFile), view);
+    }
+
+    /**
+     * Creates a reader over the snippets of a cursor.
+     * @param cursor The cursor, read from its next snippet on.
+     */
+    public LogReader(LogCursor cursor) {
+	this(cursor, EventLog.VIEW_RAW);
+    }
+
+    /**
+     * Creates a reader over the snippets of a cursor in a view.
+     * @param cursor The cursor, read from its next snippet on.
+     * @param view EventLog.VIEW_TEXT or VIEW_KEYS for an event log,
+     * VIEW_RAW for a log of text.
+     */
+    public LogReader(LogCursor cursor, int view) {
+	this.cursor = cursor;
+	this.view = view;
+	this.names = view != EventLog.VIEW_RAW ? KeyNames.getInstance() : null;
+	this.event = new StringBuilder();
+	this.decoder = KeyNames.CHARSET.newDecoder()
+	    .onMalformedInput(CodingErrorAction.REPLACE)
+	    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+	this.buffer = CharBuffer.allocate(BUFFER_CHARS);
+	this.buffer.flip();
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException {
+	if(length == 0)
+	    return 0;
+	if(!this.buffer.hasRemaining() && !fill())
+	    return -1;
+
+	int read = Math.min(length, this.buffer.remaining());
+	this.buffer.get(chars, offset, read);
+	return read;
+    }
+
+    @Override
+    public void close() {
+	this.cursor.close();
+	this.snippet = null;
+	this.done = true;
+    }
+
+    /**
+     * Decodes more text into the buffer.
+     * @return False if the log has no more text.
+     * @throws IOException Thrown if a segment can't be read.
+     */
+    private boolean fill() throws IOException {
+	this.buffer.clear();
+	if(this.view != EventLog.VIEW_RAW)
+	    fillView();
+	else
+	    fillRaw();
+	this.buffer.flip();
+	return this.buffer.hasRemaining();
+    }
+
+    /**
+     * Renders events into the buffer until it is full.
+     * @throws IOException Thrown if a segment can't be read.
+     */
+    private void fillView() throws IOException {
+	while(this.buffer.hasRemaining() && !this.done) {
+	    if(this.eventPosition == this.event.length()) {
+		if(!this.cursor.advance()) {
+		    this.done = true;
+		    break;
+		}
+		this.event.setLength(0);
+		this.eventPosition = 0;
+		EventLog.appendView(this.event, this.cursor.getRegion(), this.cursor.getStart(),
+				    this.cursor.getLength(), this.view, this.names);
+		continue;
+	    }
+	    int copied = Math.min(this.buffer.remaining(), this.event.length() - this.eventPosition);
+	    this.buffer.append(this.event, this.eventPosition, this.eventPosition + copied);
+	    this.eventPosition += copied;
+	}
+    }
+
+    /**
+     * Decodes snippets into the buffer until it is full.
+     * @throws IOException Thrown if a segment can't be read.
+     */
+    private void fillRaw() throws IOException {
+	while(this.buffer.hasRemaining() && !this.done) {
+	    if(this.snippet == null || !this.snippet.hasRemaining()) {
+		if(!this.cursor.advance()) {
+		    this.done = true;
+		    break;
+		}
+		ByteBuffer snippet = this.cursor.getRegion().duplicate();
+		snippet.limit(this.cursor.getStart() + this.cursor.getLength());
+		snippet.position(this.cursor.getStart());
+		this.snippet = snippet;
+		if(!this.cursor.isAscii())
+		    this.decoder.reset();
+	    }
+
+	    if(this.cursor.isAscii()) {
+		while(this.snippet.hasRemaining() && this.buffer.hasRemaining())
+		    this.buffer.put((char)this.snippet.get());
+	    } else if(this.decoder.decode(this.snippet, this.buffer, true).isOverflow()) {
+		// a surrogate pair doesn't fit, pick it up on the next fill
+		break;
+	    }
+	}
+    }
+}
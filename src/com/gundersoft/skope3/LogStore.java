@@ -0,0 +1,1315 @@
+package com.gundersoft.skope3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A key log kept as a series of append-only segment files instead of a
+ * single ever-growing file. Only the newest, active, segment is written
+ * to; it is sealed and a new one started once it reaches the size limit
+ * or the age limit. Segment n of log "eventlog.dat" is "eventlog.dat.00000n".
+ * A log file from before segments existed is kept and read as the oldest
+ * segment.
+ * <p>
+ * Every segment has a sidecar index, "eventlog.dat.00000n.idx", of
+ * (time, offset) pairs, each a pair of big endian longs. An offset always
+ * points at a base tag in the segment, and the time is the time of that
+ * tag. The index is sparse, roughly one entry every INDEX_INTERVAL_BYTES,
+ * so a reader looking for a time seeks to the last entry before it and
+ * parses forward from there. The index is only a hint: entries may be
+ * missing, for instance for data that went through the overflow file.
+ * A sealed segment may also have search indexes, "eventlog.dat.00000n.tri"
+ * and ".keys.tri", written by TrigramIndex. Every segment also has an
+ * activity rollup, "eventlog.dat.00000n.act", appended to by activity()
+ * and folded down when the segment is sealed; see ActivityRollup. These
+ * go wherever the segment goes.
+ * <p>
+ * Each batch FlushWriter commits is a frame, closed by a frame trailer
+ * tag: TAG_START, FRAME_MARK, the frame's length and its CRC32 as eight
+ * lowercase hex digits each, and TAG_END. A frame covers the bytes from
+ * the end of the previous trailer up to its own. LogCursor checks every
+ * frame as it reads and skips the damaged ones. Once a segment has a good
+ * frame, data after its last trailer is a write torn by a crash; open()
+ * cuts it off the active segment before appending to it. Data before a
+ * segment's first frame, written before frames existed, is read as is.
+ * <p>
+ * Given a pool to run on, sealed segments are compressed in the
+ * background into "eventlog.dat.00000n.z". The segment is cut into blocks
+ * of about BLOCK_BYTES, each starting on a tag and deflated on its own,
+ * followed by a block index of (uncompressed offset, compressed offset)
+ * pairs and a footer of the uncompressed length, the block count and
+ * BLOCK_MAGIC. A block of events is split into EventColumns before it is
+ * deflated, and is then COLUMNS_BLOCK, the columns' length and their zlib
+ * stream; any other block is a bare zlib stream, which never starts with
+ * COLUMNS_BLOCK, so older segments read as they are. The time index keeps its name and its uncompressed
+ * offsets, so a reader seeks through the time index to a block and only
+ * inflates the blocks from there on. The active segment is never
+ * compressed. The compressed file is written beside the segment and
+ * renamed into place before the segment is deleted, so a crash leaves one
+ * or the other, or both with the same data.
+ * <p>
+ * Old data is removed a whole sealed segment at a time by dropBefore(),
+ * never rewritten. compact() merges runs of small sealed segments, such
+ * as those sealed by the age limit on a quiet machine, into one. The
+ * merged segment takes the first one's number and replaces it in a
+ * single atomic move before the rest of the run is deleted; a crash in
+ * between leaves the rest of the run's data in the log twice, never
+ * loses it.
+ * <p>
+ * The writing side is used by a single FlushWriter, which serializes all
+ * calls. The reading side, getSegments() and the static index helpers,
+ * can be used by anyone.
+ * @author Christian Gunderman
+ */
+public class LogStore {
+    /** Suffix of segment index files. */
+    public static final String INDEX_SUFFIX = ".idx";
+    /** Suffix of segment search index files, see TrigramIndex. */
+    public static final String SEARCH_SUFFIX = ".tri";
+    /** Suffix of segment search index files of the pressed keys view. */
+    public static final String KEY_SEARCH_SUFFIX = ".keys.tri";
+    /** Suffix of segment activity rollups, see ActivityRollup. */
+    public static final String ACTIVITY_SUFFIX = ".act";
+    /** Bytes of an index entry. */
+    private static final int INDEX_ENTRY_BYTES = 16;
+    /** Least segment bytes between two index entries. */
+    private static final long INDEX_INTERVAL_BYTES = 4096;
+    /** Digits in a segment number. */
+    private static final int SEGMENT_DIGITS = 6;
+    /** Suffix of compressed segments. */
+    public static final String COMPRESSED_SUFFIX = ".z";
+    /** Least uncompressed bytes in a compressed block. */
+    private static final int BLOCK_BYTES = 65536;
+    /** Ends every compressed segment, "SKZ1". */
+    private static final int BLOCK_MAGIC = 0x534B5A31;
+    /** Starts a block holding EventColumns, never a zlib header byte. */
+    private static final byte COLUMNS_BLOCK = 'C';
+    /** Bytes in front of the zlib stream of a block of columns. */
+    private static final int COLUMNS_HEADER_BYTES = 5;
+    /** Bytes of a block index entry. */
+    private static final int BLOCK_ENTRY_BYTES = 16;
+    /** Bytes of the footer of a compressed segment. */
+    private static final int FOOTER_BYTES = 16;
+    /** Follows TAG_START in a frame trailer. */
+    public static final char FRAME_MARK = '\3';
+    /** Bytes of a frame trailer. */
+    public static final int FRAME_BYTES = 19;
+    /** Hex digits, for frame trailers. */
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    /** The log's file name, segment names are derived from it. */
+    private final File base;
+    /** Size at which the active segment is sealed. */
+    private final long segmentBytes;
+    /** Age at which the active segment is sealed. */
+    private final long segmentMillis;
+    /** Number of the active segment, 0 until it is opened. */
+    private int activeNumber;
+    /** The active segment file. */
+    private File activeFile;
+    /** Open channel to the active segment, or null. */
+    private FileChannel channel;
+    /** Open channel to the active segment's index, or null. */
+    private FileChannel indexChannel;
+    /** Open channel to the active segment's activity rollup, or null. */
+    private FileChannel activityChannel;
+    /** System.nanoTime() at which the active segment was started. */
+    private long openedNanos;
+    /** Offset of the active segment's last index entry, -1 if none. */
+    private long lastIndexOffset;
+    /** Number of segments sealed by this store. */
+    private long sealCount;
+    /** Pool sealed segments are compressed on, null to not compress. */
+    private final Scheduler.Pool compressPool;
+    /** Deflater level of compressed segments. */
+    private final int compressLevel;
+    /** True while a compression task is queued. */
+    private final AtomicBoolean compressPending;
+    /** Held while sealed segments are compressed, merged or dropped. */
+    private final Object sealedLock;
+    /** True if the store is only read, so no segment of it is active. */
+    private boolean readOnly;
+
+    /**
+     * Creates a store for writing. Nothing is opened until the first
+     * call to channel().
+     * @param base The log's file name.
+     * @param segmentBytes Size at which a segment is sealed.
+     * @param segmentMillis Age at which a segment is sealed, counted in
+     * wall clock time from when it was started.
+     */
+    public LogStore(File base, long segmentBytes, long segmentMillis) {
+	this(base, segmentBytes, segmentMillis, null, 0);
+    }
+
+    /**
+     * Creates a store for writing that compresses sealed segments.
+     * Nothing is opened until the first call to channel().
+     * @param base The log's file name.
+     * @param segmentBytes Size at which a segment is sealed.
+     * @param segmentMillis Age at which a segment is sealed, counted in
+     * wall clock time from when it was started.
+     * @param compressPool Pool to compress sealed segments on, null to
+     * leave them uncompressed.
+     * @param compressLevel Deflater level, 1 (fastest) to 9 (smallest).
+     * 0 leaves sealed segments uncompressed.
+     */
+    public LogStore(File base, long segmentBytes, long segmentMillis,
+		    Scheduler.Pool compressPool, int compressLevel) {
+	this.base = base;
+	this.segmentBytes = Math.max(1, segmentBytes);
+	this.segmentMillis = Math.max(1, segmentMillis);
+	this.lastIndexOffset = -1;
+	this.compressPool = compressLevel > 0 ? compressPool : null;
+	this.compressLevel = Math.min(Deflater.BEST_COMPRESSION, compressLevel);
+	this.compressPending = new AtomicBoolean();
+	this.sealedLock = new Object();
+    }
+
+    /**
+     * Creates a store for reading only. Its newest segment is sealed like
+     * the rest, so retention can drop all of it.
+     * @param base The log's file name.
+     */
+    public LogStore(File base) {
+	this(base, Long.MAX_VALUE, Long.MAX_VALUE);
+	this.readOnly = true;
+    }
+
+    /**
+     * Gets the log's file name.
+     * @return The base file.
+     */
+    public File getBase() {
+	return this.base;
+    }
+
+    /**
+     * Gets every file of the log that holds data, oldest first: the
+     * pre-segment log file, if there is one, then the segments. A
+     * segment that is being compressed is given uncompressed.
+     * @return The segment files, empty if the log has none.
+     */
+    public File[] getSegments() {
+	int[] numbers = segmentNumbers();
+	boolean legacy = this.base.isFile();
+	File[] segments = new File[numbers.length + (legacy ? 1 : 0)];
+	int n = 0;
+	if(legacy)
+	    segments[n++] = this.base;
+	for(int number : numbers) {
+	    File segment = segmentFile(number);
+	    segments[n++] = segment.isFile() ? segment : compressedFile(segment);
+	}
+	return segments;
+    }
+
+    /**
+     * Gets the channel the next batch is appended to. Seals the active
+     * segment first if it is full or too old, but only between batches,
+     * so a segment always starts with a base tag.
+     * @param batchStart False if the data about to be written continues a
+     * batch already partly written to the active segment.
+     * @return The active segment's channel.
+     * @throws IOException Thrown if the segment can't be opened.
+     */
+    public FileChannel channel(boolean batchStart) throws IOException {
+	if(this.channel != null && !this.activeFile.exists())
+	    close();
+	if(this.channel != null && batchStart && isDue())
+	    seal();
+	if(this.channel == null)
+	    open();
+	return this.channel;
+    }
+
+    /**
+     * Records that a base tag with the given time starts at the given
+     * offset of the active segment. Entries closer than
+     * INDEX_INTERVAL_BYTES to the previous one are left out. A failed
+     * index write is ignored, the index is only a hint.
+     * @param time Time of the base tag.
+     * @param offset Offset of the base tag in the active segment.
+     */
+    public void index(long time, long offset) {
+	if(this.indexChannel == null)
+	    return;
+	if(this.lastIndexOffset >= 0 && offset - this.lastIndexOffset < INDEX_INTERVAL_BYTES)
+	    return;
+
+	ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+	entry.putLong(time).putLong(offset).flip();
+	try {
+	    while(entry.hasRemaining())
+		this.indexChannel.write(entry);
+	} catch (IOException e) {
+	    return;
+	}
+	this.lastIndexOffset = offset;
+    }
+
+    /**
+     * Adds the events of a written batch to the active segment's activity
+     * rollup. A failed write is ignored, the rollup is only a hint.
+     * @param activity The batch's events.
+     */
+    public void activity(ActivityRollup activity) {
+	if(this.activityChannel == null || activity.isEmpty())
+	    return;
+	try {
+	    activity.write(this.activityChannel);
+	} catch (IOException e) {
+	    // the counts come up short
+	}
+    }
+
+    /**
+     * Cuts the active segment back to a length, dropping a batch whose
+     * write failed part way. If it can't be cut, the torn frame is left
+     * for open() to cut off.
+     * @param length Size of the segment before the batch.
+     */
+    public void truncate(long length) {
+	if(this.channel == null)
+	    return;
+	try {
+	    this.channel.truncate(length);
+	} catch (IOException e) {
+	    // recover() cuts it when the segment is reopened
+	}
+    }
+
+    /**
+     * Forces the active segment and its index to the disk.
+     * @throws IOException Thrown if the segment can't be forced.
+     */
+    public void force() throws IOException {
+	if(this.channel != null)
+	    this.channel.force(false);
+	if(this.indexChannel != null)
+	    this.indexChannel.force(false);
+    }
+
+    /**
+     * Gets the number of segments sealed since the store was created.
+     * @return The seal count.
+     */
+    public long getSealCount() {
+	return this.sealCount;
+    }
+
+    /**
+     * Closes the active segment. The next channel() opens it again.
+     */
+    public void close() {
+	closeQuietly(this.channel);
+	closeQuietly(this.indexChannel);
+	closeQuietly(this.activityChannel);
+	this.channel = null;
+	this.indexChannel = null;
+	this.activityChannel = null;
+    }
+
+    /**
+     * Closes the active segment and deletes every segment, every index
+     * and the pre-segment log file. The next channel() starts over at
+     * segment 1.
+     * @return True if everything was deleted.
+     */
+    public boolean delete() {
+	close();
+	boolean deleted = true;
+	synchronized(this.sealedLock) {
+	    for(File segment : getSegments()) {
+		deleted &= segment.delete();
+		if(!isCompressed(segment))
+		    compressedFile(segment).delete();
+		indexFile(segment).delete();
+		deleteSidecars(segment);
+	    }
+	}
+	this.activeNumber = 0;
+	return deleted;
+    }
+
+    /**
+     * Reads a segment's index.
+     * @param segment A file from getSegments().
+     * @return Times and offsets, interleaved. Empty if the segment has no
+     * index. Entries with an offset outside the segment, or before the
+     * previous entry's offset, are left out.
+     */
+    public static long[] readIndex(File segment) {
+	File indexFile = indexFile(segment);
+	long length = segment.length();
+	try {
+	    if(isCompressed(segment)) {
+		long[] blocks = readBlocks(segment);
+		length = blocks[blocks.length - 2];
+	    }
+
+	    FileInputStream in = new FileInputStream(indexFile);
+	    try {
+		FileChannel source = in.getChannel();
+		// a torn last entry from a crash is ignored
+		int count = (int)Math.min(Integer.MAX_VALUE / 2, source.size() / INDEX_ENTRY_BYTES);
+		ByteBuffer entries = ByteBuffer.allocate(count * INDEX_ENTRY_BYTES);
+		while(entries.hasRemaining() && source.read(entries) >= 0);
+		entries.flip();
+
+		long[] index = new long[count * 2];
+		int n = 0;
+		long previous = -1;
+		while(entries.remaining() >= INDEX_ENTRY_BYTES) {
+		    long time = entries.getLong();
+		    long offset = entries.getLong();
+		    if(offset <= previous || offset >= length)
+			continue;
+		    index[n++] = time;
+		    index[n++] = offset;
+		    previous = offset;
+		}
+		return n == index.length ? index : Arrays.copyOf(index, n);
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException e) {
+	    return new long[0];
+	}
+    }
+
+    /**
+     * Checks if an index's times are in order. They are unless the clock
+     * was set back while the segment was written.
+     * @param index An index from readIndex().
+     * @return True if no entry is older than the one before it.
+     */
+    public static boolean isSorted(long[] index) {
+	for(int i = 2; i < index.length; i += 2) {
+	    if(index[i] < index[i - 2])
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Finds where to start parsing a segment to see everything from the
+     * given time on. Binary searches a sorted index, otherwise scans to
+     * the first entry after the time.
+     * @param index An index from readIndex().
+     * @param time The time being looked for.
+     * @param sorted True if isSorted() is true of the index.
+     * @return Offset of the last indexed base tag at or before the time,
+     * 0 if there is none.
+     */
+    public static long seek(long[] index, long time, boolean sorted) {
+	int entries = index.length / 2;
+	int low = 0;
+	if(!sorted) {
+	    while(low < entries && index[low * 2] <= time)
+		low++;
+	} else {
+	    int high = entries;
+	    while(low < high) {
+		int middle = (low + high) >>> 1;
+		if(index[middle * 2] <= time)
+		    low = middle + 1;
+		else
+		    high = middle;
+	    }
+	}
+	return low > 0 ? index[low * 2 - 1] : 0;
+    }
+
+    /**
+     * Gets the time a segment starts at.
+     * @param index An index from readIndex().
+     * @return The time of the first entry, -1 if the index is empty.
+     */
+    public static long firstTime(long[] index) {
+	return index.length > 0 ? index[0] : -1;
+    }
+
+    /**
+     * Gets the sealed segments, oldest first, with the time each one ends
+     * and its size on disk. The newest segment is the active one, or will
+     * be once it is reopened, and is left out unless the store is read
+     * only.
+     * @return The end time and size of each, interleaved. The end time is
+     * the start of the next segment, or the time the segment was last
+     * written if the next one has no index.
+     */
+    public long[] getSealedSegments() {
+	File[] segments = getSegments();
+	int count = Math.max(0, segments.length - (this.readOnly ? 0 : 1));
+	long[] sealed = new long[count * 2];
+	for(int i = 0; i < count; i++) {
+	    sealed[i * 2] = endTime(segments, i);
+	    sealed[i * 2 + 1] = segments[i].length();
+	}
+	return sealed;
+    }
+
+    /**
+     * Deletes the oldest sealed segments, whole, up to the first one that
+     * ends after a time.
+     * @param cutoff Segments ending at or before this time are deleted.
+     * @return Bytes of disk space freed.
+     */
+    public long dropBefore(long cutoff) {
+	long freed = 0;
+	synchronized(this.sealedLock) {
+	    File[] segments = getSegments();
+	    int sealed = segments.length - (this.readOnly ? 0 : 1);
+	    for(int i = 0; i < sealed && endTime(segments, i) <= cutoff; i++) {
+		File segment = segments[i];
+		long length = segment.length();
+		if(!segment.delete())
+		    break;
+		freed += length;
+		if(!isCompressed(segment))
+		    compressedFile(segment).delete();
+		File index = indexFile(segment);
+		freed += index.length();
+		index.delete();
+		freed += deleteSidecars(segment);
+	    }
+	}
+	return freed;
+    }
+
+    /**
+     * Merges each run of adjacent sealed segments smaller than a size
+     * into one segment no bigger than the segment size limit. The
+     * pre-segment log file is left alone. Merged segments are compressed
+     * again afterwards if the store compresses.
+     * @param smallBytes Segments with less uncompressed data than this
+     * are merged.
+     * @return Number of segments merged away.
+     * @throws IOException Thrown if a merged segment can't be written.
+     */
+    public int compact(long smallBytes) throws IOException {
+	int merged = 0;
+	synchronized(this.sealedLock) {
+	    File[] segments = getSegments();
+	    int first = segments.length > 0 && segments[0].equals(this.base) ? 1 : 0;
+	    for(int i = first; i < segments.length - 1; ) {
+		long total = uncompressedLength(segments[i]);
+		int j = i + 1;
+		if(total < smallBytes) {
+		    while(j < segments.length - 1) {
+			long length = uncompressedLength(segments[j]);
+			if(length >= smallBytes || total + length > this.segmentBytes)
+			    break;
+			total += length;
+			j++;
+		    }
+		}
+		if(j - i > 1) {
+		    merge(Arrays.copyOfRange(segments, i, j));
+		    merged += j - i - 1;
+		}
+		i = j;
+	    }
+	}
+	if(merged > 0)
+	    requestCompression();
+	return merged;
+    }
+
+    /**
+     * Cuts the torn tail, if any, off a segment and its index, so new
+     * frames can be appended after the last good one. Reads the segment
+     * once, front to back.
+     * @param segment An uncompressed segment.
+     * @return Bytes cut off.
+     * @throws IOException Thrown if the segment can't be read or cut.
+     */
+    public static long recover(File segment) throws IOException {
+	LogCursor cursor = new LogCursor(segment, 0, Long.MAX_VALUE);
+	long torn;
+	try {
+	    while(cursor.nextRegion())
+		;
+	    torn = cursor.getTornOffset();
+	} finally {
+	    cursor.close();
+	}
+	if(torn < 0)
+	    return 0;
+
+	// index entries are appended in offset order
+	File indexFile = indexFile(segment);
+	long entries = 0;
+	if(indexFile.isFile()) {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(
+							 new FileInputStream(indexFile)));
+	    try {
+		for(long count = indexFile.length() / INDEX_ENTRY_BYTES; entries < count; entries++) {
+		    in.readLong();
+		    if(in.readLong() >= torn)
+			break;
+		}
+	    } finally {
+		in.close();
+	    }
+	    truncate(indexFile, entries * INDEX_ENTRY_BYTES);
+	}
+
+	long length = segment.length();
+	truncate(segment, torn);
+	return length - torn;
+    }
+
+    /**
+     * Benchmark. Tears the last frame of a log segment the way a crash
+     * would, then times recover() cutting it off.
+     * @param args [segment file|-] [megabytes]
+     * @throws Exception Thrown if the segment can't be written or read.
+     */
+    public static void main(String[] args) throws Exception {
+	String source = args.length > 0 ? args[0] : "-";
+	long megabytes = args.length > 1 ? Long.parseLong(args[1]) : 1024;
+
+	File file = new File(source);
+	if(source.equals("-")) {
+	    file = File.createTempFile("skope-recover", ".dat");
+	    file.deleteOnExit();
+	    LogParser.writeSynthetic(file, megabytes << 20);
+	}
+
+	// half a frame, as if the power went out during the write
+	byte[] torn = new byte[4096];
+	Arrays.fill(torn, (byte)'x');
+	torn[0] = EventLog.TAG_START;
+	FileOutputStream out = new FileOutputStream(file, true);
+	try {
+	    out.write(torn);
+	} finally {
+	    out.close();
+	}
+
+	double mb = file.length() / 1048576.0;
+	long start = System.nanoTime();
+	long cut = recover(file);
+	double seconds = (System.nanoTime() - start) / 1e9;
+	System.out.println(String.format("%.0f MB, %d bytes cut in %.3f s, %.0f MB/s",
+					 mb, cut, seconds, mb / seconds));
+	if(source.equals("-"))
+	    file.delete();
+    }
+
+    /**
+     * Makes a frame trailer.
+     * @param length Bytes in the frame.
+     * @param crc CRC32 of the frame.
+     * @return The trailer, FRAME_BYTES long.
+     */
+    public static byte[] frameTrailer(long length, long crc) {
+	byte[] trailer = new byte[FRAME_BYTES];
+	trailer[0] = EventLog.TAG_START;
+	trailer[1] = FRAME_MARK;
+	for(int i = 0; i < 8; i++) {
+	    trailer[9 - i] = HEX[(int)(length >>> (i * 4)) & 0xF];
+	    trailer[17 - i] = HEX[(int)(crc >>> (i * 4)) & 0xF];
+	}
+	trailer[18] = EventLog.TAG_END;
+	return trailer;
+    }
+
+    /**
+     * Reads the frame length and CRC of a frame trailer.
+     * @param data Holds the trailer.
+     * @param p Offset of the trailer's TAG_START.
+     * @param end Offset after the last byte that may be read.
+     * @return The length in the high 32 bits and the CRC in the low 32, or
+     * -1 if there isn't a whole, well formed trailer at p.
+     */
+    static long readTrailer(ByteBuffer data, int p, int end) {
+	if(end - p < FRAME_BYTES || data.get(p) != EventLog.TAG_START
+	   || data.get(p + 1) != FRAME_MARK || data.get(p + 18) != EventLog.TAG_END)
+	    return -1;
+	long value = 0;
+	for(int i = p + 2; i < p + 18; i++) {
+	    int b = data.get(i);
+	    int digit = b >= '0' && b <= '9' ? b - '0' : b >= 'a' && b <= 'f' ? b - 'a' + 10 : -1;
+	    if(digit < 0)
+		return -1;
+	    value = (value << 4) | digit;
+	}
+	return value;
+    }
+
+    /**
+     * Checks if a segment is compressed.
+     * @param segment A file from getSegments().
+     * @return True if it is a compressed segment.
+     */
+    public static boolean isCompressed(File segment) {
+	return segment.getName().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * Gets the file a segment is compressed to.
+     * @param segment An uncompressed segment.
+     * @return The compressed segment file.
+     */
+    public static File compressedFile(File segment) {
+	return new File(segment.getPath() + COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * Gets the time index file of a segment, the same whether or not the
+     * segment is compressed.
+     * @param segment A file from getSegments().
+     * @return The index file.
+     */
+    public static File indexFile(File segment) {
+	return sidecarFile(segment, INDEX_SUFFIX);
+    }
+
+    /**
+     * Gets a file kept beside a segment, the same whether or not the
+     * segment is compressed.
+     * @param segment A file from getSegments().
+     * @param suffix Suffix of the file, such as INDEX_SUFFIX.
+     * @return The file.
+     */
+    public static File sidecarFile(File segment, String suffix) {
+	String path = segment.getPath();
+	if(isCompressed(segment))
+	    path = path.substring(0, path.length() - COMPRESSED_SUFFIX.length());
+	return new File(path + suffix);
+    }
+
+    /**
+     * Reads the block index of a compressed segment.
+     * @param segment A compressed segment.
+     * @return Uncompressed and compressed offsets of each block,
+     * interleaved, followed by the uncompressed length and the offset of
+     * the block index, so block i spans entries i and i + 1.
+     * @throws IOException Thrown if the segment can't be read or isn't a
+     * compressed segment.
+     */
+    public static long[] readBlocks(File segment) throws IOException {
+	RandomAccessFile file = new RandomAccessFile(segment, "r");
+	try {
+	    FileChannel channel = file.getChannel();
+	    long length = channel.size();
+	    ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+	    if(length < FOOTER_BYTES)
+		throw new IOException("Not a compressed segment: " + segment);
+	    readFully(channel, footer, length - FOOTER_BYTES);
+	    long uncompressed = footer.getLong();
+	    int count = footer.getInt();
+	    long indexStart = length - FOOTER_BYTES - (long)count * BLOCK_ENTRY_BYTES;
+	    if(footer.getInt() != BLOCK_MAGIC || count < 0 || indexStart < 0)
+		throw new IOException("Not a compressed segment: " + segment);
+
+	    ByteBuffer entries = ByteBuffer.allocate(count * BLOCK_ENTRY_BYTES);
+	    readFully(channel, entries, indexStart);
+	    long[] blocks = new long[count * 2 + 2];
+	    for(int i = 0; i < count * 2; i++)
+		blocks[i] = entries.getLong();
+	    blocks[count * 2] = uncompressed;
+	    blocks[count * 2 + 1] = indexStart;
+	    return blocks;
+	} finally {
+	    file.close();
+	}
+    }
+
+    /**
+     * Compresses a segment into its compressed file. The segment is left
+     * alone.
+     * @param segment The sealed, uncompressed segment.
+     * @param level Deflater level.
+     * @return False if the segment is too big to compress or the
+     * compressed file couldn't be renamed into place.
+     * @throws IOException Thrown if the segment can't be read or the
+     * compressed file can't be written.
+     */
+    public static boolean compress(File segment, int level) throws IOException {
+	File compressed = compressedFile(segment);
+	File temp = new File(compressed.getPath() + ".tmp");
+	RandomAccessFile in = new RandomAccessFile(segment, "r");
+	FileOutputStream stream = new FileOutputStream(temp);
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BLOCK_BYTES));
+	Deflater deflater = new Deflater(level);
+	boolean written = false;
+	try {
+	    long length = in.length();
+	    if(length > Integer.MAX_VALUE)
+		return false;
+	    // read, not mapped, so the segment can be deleted as soon as this returns
+	    FileChannel channel = in.getChannel();
+	    ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES * 2);
+
+	    long[] blocks = new long[16];
+	    int count = 0;
+	    byte[] packed = new byte[BLOCK_BYTES];
+	    for(int start = 0; start < length; ) {
+		block = readBlock(channel, length, start, block);
+		byte[] plain = block.array();
+		int end = start + block.limit();
+
+		if(count * 2 == blocks.length)
+		    blocks = Arrays.copyOf(blocks, blocks.length * 2);
+		blocks[count * 2] = start;
+		blocks[count * 2 + 1] = out.size();
+		count++;
+
+		byte[] input = plain;
+		int inputLength = end - start;
+		byte[] columns = EventColumns.encode(plain, 0, end - start);
+		if(columns != null) {
+		    out.writeByte(COLUMNS_BLOCK);
+		    out.writeInt(columns.length);
+		    input = columns;
+		    inputLength = columns.length;
+		}
+		deflater.reset();
+		deflater.setInput(input, 0, inputLength);
+		deflater.finish();
+		while(!deflater.finished())
+		    out.write(packed, 0, deflater.deflate(packed));
+		start = end;
+	    }
+
+	    for(int i = 0; i < count * 2; i++)
+		out.writeLong(blocks[i]);
+	    out.writeLong(length);
+	    out.writeInt(count);
+	    out.writeInt(BLOCK_MAGIC);
+	    out.flush();
+	    stream.getFD().sync();
+	    written = true;
+	} finally {
+	    deflater.end();
+	    out.close();
+	    in.close();
+	    if(!written)
+		temp.delete();
+	}
+
+	// a leftover from a crash is replaced
+	compressed.delete();
+	if(!temp.renameTo(compressed)) {
+	    temp.delete();
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * Reads the block that starts at the given offset of a segment. It
+     * ends at the last tag before BLOCK_BYTES, or the first tag after if
+     * there is no tag before, or the end of the segment.
+     * @param channel The segment.
+     * @param length Length of the segment.
+     * @param start Offset the block starts at.
+     * @param buffer Buffer to read into, more than BLOCK_BYTES long.
+     * @return The block from 0 to its limit, in buffer or in a bigger
+     * buffer if it didn't fit.
+     * @throws IOException Thrown if the segment can't be read.
+     */
+    private static ByteBuffer readBlock(FileChannel channel, long length, int start,
+					ByteBuffer buffer) throws IOException {
+	long left = length - start;
+	buffer.clear();
+	buffer.limit((int)Math.min(left, BLOCK_BYTES + 1));
+	readFully(channel, buffer, start);
+	if(left <= BLOCK_BYTES)
+	    return buffer;
+	for(int end = BLOCK_BYTES; end > 0; end--) {
+	    if(buffer.get(end) == EventLog.TAG_START) {
+		buffer.limit(end);
+		return buffer;
+	    }
+	}
+
+	// no tag before BLOCK_BYTES, read on to the first one after
+	for(int end = BLOCK_BYTES + 1; end < left; end++) {
+	    if(end == buffer.limit()) {
+		if(end == buffer.capacity()) {
+		    ByteBuffer bigger = ByteBuffer.allocate(
+			(int)Math.min(Integer.MAX_VALUE - 8, buffer.capacity() * 2L));
+		    bigger.put(buffer);
+		    buffer = bigger;
+		} else {
+		    buffer.position(end);
+		}
+		buffer.limit((int)Math.min(left, buffer.capacity()));
+		readFully(channel, buffer, start + end);
+	    }
+	    if(buffer.get(end) == EventLog.TAG_START) {
+		buffer.limit(end);
+		return buffer;
+	    }
+	}
+	return buffer;
+    }
+
+    /**
+     * Queues compression of the sealed segments, unless it is already
+     * queued.
+     */
+    private void requestCompression() {
+	if(this.compressPool == null || this.compressPending.getAndSet(true))
+	    return;
+	boolean queued = this.compressPool.execute(new Runnable() {
+		@Override
+		public void run() {
+		    LogStore.this.compressPending.set(false);
+		    compressSealed();
+		}
+	    });
+	// the next seal tries again
+	if(!queued)
+	    this.compressPending.set(false);
+    }
+
+    /**
+     * Compresses every uncompressed segment but the newest, which is the
+     * active one, and deletes the uncompressed copies. A segment that
+     * fails to compress is left as it is.
+     */
+    private void compressSealed() {
+	synchronized(this.sealedLock) {
+	    int[] numbers = segmentNumbers();
+	    for(int i = 0; i < numbers.length - 1; i++) {
+		File segment = segmentFile(numbers[i]);
+		if(!segment.isFile())
+		    continue;
+		try {
+		    if(!compressedFile(segment).isFile() && !compress(segment, this.compressLevel))
+			continue;
+		} catch (IOException e) {
+		    continue;
+		}
+		// a reader still has it open on some systems, keep one copy
+		// rather than two and compress it again next time
+		if(!segment.delete())
+		    compressedFile(segment).delete();
+	    }
+	}
+    }
+
+    /**
+     * Merges a run of segments into the first one's place, then deletes
+     * the others.
+     * @param run The segments, oldest first.
+     * @throws IOException Thrown if the merged segment can't be written.
+     */
+    private void merge(File[] run) throws IOException {
+	File target = run[0];
+	if(isCompressed(target))
+	    target = new File(target.getPath().substring(0, target.getPath().length()
+							 - COMPRESSED_SUFFIX.length()));
+	File temp = new File(target.getPath() + ".tmp");
+	File indexTemp = new File(indexFile(target).getPath() + ".tmp");
+	ActivityRollup activity = new ActivityRollup();
+
+	FileOutputStream stream = new FileOutputStream(temp);
+	DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+							  new FileOutputStream(indexTemp)));
+	boolean written = false;
+	try {
+	    OutputStream out = new BufferedOutputStream(stream, BLOCK_BYTES);
+	    long offset = 0;
+	    for(File segment : run) {
+		activity.addAll(ActivityRollup.read(segment));
+		long[] entries = readIndex(segment);
+		for(int e = 0; e < entries.length; e += 2) {
+		    index.writeLong(entries[e]);
+		    index.writeLong(entries[e + 1] + offset);
+		}
+		offset += copy(segment, out);
+	    }
+	    out.flush();
+	    stream.getFD().sync();
+	    written = true;
+	} finally {
+	    stream.close();
+	    index.close();
+	    if(!written) {
+		temp.delete();
+		indexTemp.delete();
+	    }
+	}
+
+	// the first segment's old index is a prefix of the new one
+	Files.move(temp.toPath(), target.toPath(),
+		   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	Files.move(indexTemp.toPath(), indexFile(target).toPath(),
+		   StandardCopyOption.REPLACE_EXISTING);
+	compressedFile(target).delete();
+	ActivityRollup.replace(sidecarFile(target, ACTIVITY_SUFFIX), activity);
+	for(int i = 1; i < run.length; i++) {
+	    run[i].delete();
+	    if(!isCompressed(run[i]))
+		compressedFile(run[i]).delete();
+	    indexFile(run[i]).delete();
+	    deleteSidecars(run[i]);
+	}
+    }
+
+    /**
+     * Deletes the search indexes of a segment, one per view, and its
+     * activity rollup.
+     * @param segment The segment.
+     * @return Bytes freed.
+     */
+    private static long deleteSidecars(File segment) {
+	long freed = 0;
+	for(String suffix : new String[] { SEARCH_SUFFIX, KEY_SEARCH_SUFFIX, ACTIVITY_SUFFIX }) {
+	    File search = sidecarFile(segment, suffix);
+	    long length = search.length();
+	    if(search.delete())
+		freed += length;
+	}
+	return freed;
+    }
+
+    /**
+     * Writes the uncompressed data of a segment to a stream.
+     * @param segment The segment, compressed or not.
+     * @param out The stream.
+     * @return Number of bytes written.
+     * @throws IOException Thrown if the segment can't be read or a block
+     * is corrupt.
+     */
+    private static long copy(File segment, OutputStream out) throws IOException {
+	long[] blocks = isCompressed(segment) ? readBlocks(segment) : null;
+	RandomAccessFile in = new RandomAccessFile(segment, "r");
+	Inflater inflater = new Inflater();
+	try {
+	    byte[] buffer = new byte[BLOCK_BYTES];
+	    if(blocks == null) {
+		long copied = 0;
+		int read;
+		while((read = in.read(buffer)) != -1) {
+		    out.write(buffer, 0, read);
+		    copied += read;
+		}
+		return copied;
+	    }
+
+	    byte[] packed = new byte[BLOCK_BYTES];
+	    for(int b = 0; b + 2 < blocks.length; b += 2) {
+		int packedLength = (int)(blocks[b + 3] - blocks[b + 1]);
+		if(packed.length < packedLength)
+		    packed = new byte[packedLength];
+		in.seek(blocks[b + 1]);
+		in.readFully(packed, 0, packedLength);
+		int plainLength = (int)(blocks[b + 2] - blocks[b]);
+		if(buffer.length < plainLength)
+		    buffer = new byte[plainLength];
+		if(!inflateBlock(inflater, packed, 0, packedLength, buffer, 0, plainLength))
+		    throw new IOException("Truncated block in " + segment);
+		out.write(buffer, 0, plainLength);
+	    }
+	    return blocks[blocks.length - 2];
+	} catch (DataFormatException e) {
+	    throw new IOException("Corrupt block in " + segment);
+	} finally {
+	    inflater.end();
+	    in.close();
+	}
+    }
+
+    /**
+     * Inflates a block of a compressed segment, decoding its columns if
+     * it holds any.
+     * @param inflater Inflater to use, reset first.
+     * @param packed Holds the compressed block.
+     * @param start Offset of the block in packed.
+     * @param length Length of the compressed block.
+     * @param plain Receives the block's data.
+     * @param offset Where in plain to put it.
+     * @param plainLength Length of the block's data.
+     * @return False if the block was cut short.
+     * @throws DataFormatException Thrown if the block is corrupt.
+     */
+    static boolean inflateBlock(Inflater inflater, byte[] packed, int start, int length,
+				byte[] plain, int offset, int plainLength) throws DataFormatException {
+	boolean columns = length > 0 && packed[start] == COLUMNS_BLOCK;
+	byte[] target = plain;
+	int out = offset;
+	int left = plainLength;
+	if(columns) {
+	    if(length < COLUMNS_HEADER_BYTES)
+		return false;
+	    left = ByteBuffer.wrap(packed, start + 1, 4).getInt();
+	    if(left < 0 || left >= plainLength)
+		throw new DataFormatException("Corrupt columns length");
+	    target = new byte[left];
+	    out = 0;
+	    start += COLUMNS_HEADER_BYTES;
+	    length -= COLUMNS_HEADER_BYTES;
+	}
+
+	inflater.reset();
+	inflater.setInput(packed, start, length);
+	while(left > 0) {
+	    int inflated = inflater.inflate(target, out, left);
+	    if(inflated == 0 && (inflater.finished() || inflater.needsInput()))
+		return false;
+	    out += inflated;
+	    left -= inflated;
+	}
+	if(columns)
+	    EventColumns.decode(target, 0, target.length, plain, offset, plainLength);
+	return true;
+    }
+
+    /**
+     * Gets the length of a segment's data.
+     * @param segment The segment, compressed or not.
+     * @return Its uncompressed length, 0 if it can't be read.
+     */
+    public static long uncompressedLength(File segment) {
+	if(!isCompressed(segment))
+	    return segment.length();
+	try {
+	    long[] blocks = readBlocks(segment);
+	    return blocks[blocks.length - 2];
+	} catch (IOException e) {
+	    return 0;
+	}
+    }
+
+    /**
+     * Gets the time a segment ends.
+     * @param segments Segments from getSegments().
+     * @param i Index of a segment.
+     * @return Start of the next segment, or when the segment was last
+     * written if there is no next one or it has no index.
+     */
+    private static long endTime(File[] segments, int i) {
+	long next = i + 1 < segments.length ? firstTime(readIndex(segments[i + 1])) : -1;
+	return next >= 0 ? next : segments[i].lastModified();
+    }
+
+    /**
+     * Reads from a channel until a buffer is full, then flips it.
+     * @param channel The channel.
+     * @param buffer The buffer.
+     * @param position Where to read from.
+     * @throws IOException Thrown if the channel ends first.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+	throws IOException {
+	while(buffer.hasRemaining()) {
+	    int read = channel.read(buffer, position);
+	    if(read < 0)
+		throw new IOException("Unexpected end of file");
+	    position += read;
+	}
+	buffer.flip();
+    }
+
+    /**
+     * Checks if the active segment should be sealed.
+     * @return True if it is over the size or age limit.
+     * @throws IOException Thrown if the segment size can't be read.
+     */
+    private boolean isDue() throws IOException {
+	if(this.channel.size() >= this.segmentBytes)
+	    return true;
+	// not the event times, which may be replayed or from before a clock change
+	return (System.nanoTime() - this.openedNanos) / 1000000 >= this.segmentMillis;
+    }
+
+    /**
+     * Gets how long ago a segment file was created, for an active segment
+     * reopened after a restart.
+     * @param segment The segment.
+     * @return Age in milliseconds, 0 if the segment doesn't exist or the
+     * clock is now behind its creation.
+     */
+    private static long age(File segment) {
+	try {
+	    long created = Files.readAttributes(segment.toPath(), BasicFileAttributes.class)
+		.creationTime().toMillis();
+	    return Math.max(0, System.currentTimeMillis() - created);
+	} catch (IOException e) {
+	    return 0;
+	}
+    }
+
+    /**
+     * Closes the active segment and moves on to a new, empty one.
+     * @throws IOException Thrown if the new segment can't be opened.
+     */
+    private void seal() throws IOException {
+	File sealed = this.activeFile;
+	close();
+	try {
+	    ActivityRollup.compact(sealed);
+	} catch (IOException e) {
+	    // read() adds up the entries all the same
+	}
+	this.activeNumber++;
+	this.sealCount++;
+	openActive(false);
+	requestCompression();
+    }
+
+    /**
+     * Opens the newest segment, or segment 1 if there are none, and
+     * picks up where its index left off.
+     * @throws IOException Thrown if the segment can't be opened.
+     */
+    private void open() throws IOException {
+	int[] numbers = segmentNumbers();
+	this.activeNumber = numbers.length > 0 ? numbers[numbers.length - 1] : 1;
+	File active = segmentFile(this.activeNumber);
+	if(active.isFile())
+	    recover(active);
+	openActive(true);
+	requestCompression();
+    }
+
+    /**
+     * Opens the channels of segment activeNumber for appending.
+     * @param existing True if the segment may already hold data and an
+     * index.
+     * @throws IOException Thrown if the segment can't be opened.
+     */
+    private void openActive(boolean existing) throws IOException {
+	this.activeFile = segmentFile(this.activeNumber);
+	this.openedNanos = System.nanoTime();
+	this.lastIndexOffset = -1;
+	if(existing) {
+	    long[] index = readIndex(this.activeFile);
+	    if(index.length > 0)
+		this.lastIndexOffset = index[index.length - 1];
+	    this.openedNanos -= Math.min(age(this.activeFile), this.segmentMillis) * 1000000;
+	}
+
+	this.channel = new FileOutputStream(this.activeFile, true).getChannel();
+	try {
+	    this.indexChannel = new FileOutputStream(indexFile(this.activeFile),
+						      existing).getChannel();
+	} catch (IOException e) {
+	    // the segment is still usable, only unindexed
+	    this.indexChannel = null;
+	}
+	File activity = sidecarFile(this.activeFile, ACTIVITY_SUFFIX);
+	try {
+	    // a segment from before rollups is counted before it is added to
+	    if(existing && !activity.isFile() && this.activeFile.length() > 0)
+		ActivityRollup.replace(activity, ActivityRollup.scan(this.activeFile));
+	    this.activityChannel = new FileOutputStream(activity, existing).getChannel();
+	} catch (IOException e) {
+	    this.activityChannel = null;
+	}
+    }
+
+    /**
+     * Lists the numbers of the segments on disk, compressed or not.
+     * @return The numbers, in ascending order.
+     */
+    private int[] segmentNumbers() {
+	final String prefix = this.base.getName() + ".";
+	final int length = prefix.length() + SEGMENT_DIGITS;
+	File directory = this.base.getAbsoluteFile().getParentFile();
+	String[] names = directory == null ? null : directory.list(new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String name) {
+		    return (name.length() == length
+			    || (name.length() == length + COMPRESSED_SUFFIX.length()
+				&& name.endsWith(COMPRESSED_SUFFIX)))
+			&& name.startsWith(prefix) && isDigits(name, prefix.length(), length);
+		}
+	    });
+	if(names == null)
+	    return new int[0];
+
+	int[] numbers = new int[names.length];
+	for(int i = 0; i < names.length; i++)
+	    numbers[i] = Integer.parseInt(names[i].substring(prefix.length(), length));
+	Arrays.sort(numbers);
+
+	// a segment caught mid compression is listed twice
+	int n = 0;
+	for(int i = 0; i < numbers.length; i++) {
+	    if(n == 0 || numbers[n - 1] != numbers[i])
+		numbers[n++] = numbers[i];
+	}
+	return n == numbers.length ? numbers : Arrays.copyOf(numbers, n);
+    }
+
+    /**
+     * Gets the file of a segment.
+     * @param number The segment number.
+     * @return The segment file.
+     */
+    private File segmentFile(int number) {
+	return new File(this.base.getPath() + "." + String.format("%0" + SEGMENT_DIGITS + "d", number));
+    }
+
+    /**
+     * Checks that part of a name is all decimal digits.
+     * @param name The name.
+     * @param from Index of the first character to check.
+     * @param to Index after the last character to check.
+     * @return True if there are only digits.
+     */
+    private static boolean isDigits(String name, int from, int to) {
+	for(int i = from; i < to; i++) {
+	    if(name.charAt(i) < '0' || name.charAt(i) > '9')
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Cuts a file to a length.
+     * @param file The file.
+     * @param length Its new length.
+     * @throws IOException Thrown if the file can't be written.
+     */
+    private static void truncate(File file, long length) throws IOException {
+	RandomAccessFile out = new RandomAccessFile(file, "rw");
+	try {
+	    out.setLength(length);
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * Closes a channel, ignoring errors.
+     * @param channel The channel, or null.
+     */
+    private static void closeQuietly(FileChannel channel) {
+	if(channel != null) {
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		// nothing left to do with it
+	    }
+	}
+    }
+}
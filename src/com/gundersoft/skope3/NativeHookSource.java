@@ -0,0 +1,59 @@
+package com.gundersoft.skope3;
+
+import org.jnativehook.GlobalScreen;
+import org.jnativehook.NativeHookException;
+import org.jnativehook.keyboard.NativeKeyEvent;
+import org.jnativehook.keyboard.NativeKeyListener;
+
+/**
+ * Keyboard events from the desktop, through a JNativeHook low level
+ * keyboard hook.
+ * @author Christian Gunderman
+ */
+public class NativeHookSource implements InputEventSource {
+    /** Forwards hook events to the listener, null until started. */
+    private NativeKeyListener hookListener;
+
+    /**
+     * Obtains the keyboard hook from the OS.
+     * @throws NativeHookException Thrown if the OS won't give out a hook.
+     */
+    public NativeHookSource() throws NativeHookException {
+	GlobalScreen.registerNativeHook();
+    }
+
+    /**
+     * Starts forwarding hook events, on JNativeHook's dispatch thread.
+     * @param listener Receives the events.
+     */
+    @Override
+    public void start(final Listener listener) {
+	this.hookListener = new NativeKeyListener() {
+		@Override
+		public void nativeKeyPressed(NativeKeyEvent e) {
+		    listener.keyPressed(e.getKeyCode(), e.getModifiers(), System.currentTimeMillis());
+		}
+
+		@Override
+		public void nativeKeyReleased(NativeKeyEvent e) {
+				
+		}
+
+		@Override
+		public void nativeKeyTyped(NativeKeyEvent e) {
+		    listener.keyTyped(e.getKeyChar(), e.getModifiers(), System.currentTimeMillis());
+		}
+	    };
+	GlobalScreen.getInstance().addNativeKeyListener(this.hookListener);
+    }
+
+    /**
+     * Stops forwarding and releases the hook.
+     */
+    @Override
+    public void stop() {
+	if(this.hookListener != null)
+	    GlobalScreen.getInstance().removeNativeKeyListener(this.hookListener);
+	GlobalScreen.unregisterNativeHook();
+    }
+}
@@ -0,0 +1,291 @@
+package com.gundersoft.skope3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import org.jnativehook.keyboard.NativeKeyEvent;
+
+/**
+ * Keyboard events replayed from text instead of the desktop. Each
+ * character becomes a key press followed by the character being typed,
+ * fed at a fixed rate from a thread of its own the way the hook's dispatch
+ * thread would. Lets the whole pipeline, from Service through keyword
+ * matching, flushing and the log files, run headless.
+ * <p>
+ * Run as a program it is a load test:
+ * <pre>
+ *  java com.gundersoft.skope3.ReplaySource [text file|-] [events/s] [seconds] [keyword...]
+ * </pre>
+ * A text file may be a plain text file or a Skope key log. "-" replays
+ * random words. A rate of 0 replays as fast as possible.
+ * @author Christian Gunderman
+ */
+public class ReplaySource implements InputEventSource {
+    /** Longest time the replay thread sleeps between batches. */
+    private static final long BATCH_NANOS = 1000000L;
+    /** Words synthetic() builds its text from. */
+    private static final String[] WORDS = {
+	"the", "of", "and", "to", "in", "is", "you", "that", "it", "he", "was",
+	"for", "on", "are", "as", "with", "his", "they", "at", "be", "this",
+	"have", "from", "or", "one", "had", "by", "word", "but", "not", "what",
+	"all", "were", "we", "when", "your", "can", "said", "there", "use"
+    };
+
+    /** The text being replayed. */
+    private final char[] text;
+    /** Events per second, key presses and typed characters both count. */
+    private final double eventsPerSecond;
+    /** Times to replay the text, 0 for forever. */
+    private final long repeat;
+    /** The replay thread. */
+    private Thread thread;
+    /** Cleared by stop(). */
+    private volatile boolean running;
+    /** Number of events delivered so far. */
+    private volatile long delivered;
+
+    /**
+     * Creates a replay of the given text.
+     * @param text The characters to type.
+     * @param eventsPerSecond Events per second, 0 for as fast as possible.
+     * @param repeat Times to replay the text, 0 for until stop().
+     */
+    public ReplaySource(CharSequence text, double eventsPerSecond, long repeat) {
+	this.text = text.toString().toCharArray();
+	this.eventsPerSecond = eventsPerSecond;
+	this.repeat = repeat;
+    }
+
+    /**
+     * Creates a replay of a text file or a Skope key log. Key logs are
+     * recognized by their leading time stamp tag and replayed as the text
+     * they hold; an event log is replayed as its typed text view.
+     * @param fileName The file to replay.
+     * @param eventsPerSecond Events per second, 0 for as fast as possible.
+     * @param repeat Times to replay the file, 0 for until stop().
+     * @return The replay source.
+     * @throws IOException Thrown if the file can't be read.
+     */
+    public static ReplaySource fromFile(String fileName, double eventsPerSecond, long repeat)
+	throws IOException {
+	long length = new File(fileName).length();
+	String text = Tools.readFully(new InputStreamReader(new FileInputStream(fileName),
+							    KeyNames.CHARSET), length);
+	if(text.length() > 0 && text.charAt(0) == EventLog.TAG_START) {
+	    String log = Tools.readFully(new LogReader(fileName, viewOf(fileName)), length);
+	    return new ReplaySource(log.replace("[Backspace]", "\b"), eventsPerSecond, repeat);
+	}
+	return new ReplaySource(text, eventsPerSecond, repeat);
+    }
+
+    /**
+     * Tells an event log from a key log of text by its first snippet.
+     * @param fileName The log file name.
+     * @return The EventLog view to read its text in.
+     * @throws IOException Thrown if the log can't be read.
+     */
+    private static int viewOf(String fileName) throws IOException {
+	LogCursor cursor = new LogCursor(fileName);
+	try {
+	    if(cursor.advance() && EventLog.isEvent(cursor.getRegion(), cursor.getStart(),
+						    cursor.getLength()))
+		return EventLog.VIEW_TEXT;
+	    return EventLog.VIEW_RAW;
+	} finally {
+	    cursor.close();
+	}
+    }
+
+    /**
+     * Creates a replay of random words separated by spaces.
+     * @param seed Seed for the word choice, the same seed gives the same text.
+     * @param length Number of characters of text to generate.
+     * @param eventsPerSecond Events per second, 0 for as fast as possible.
+     * @param repeat Times to replay the text, 0 for until stop().
+     * @return The replay source.
+     */
+    public static ReplaySource synthetic(long seed, int length, double eventsPerSecond, long repeat) {
+	Random random = new Random(seed);
+	StringBuilder text = new StringBuilder(length + 16);
+	while(text.length() < length)
+	    text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+	text.setLength(length);
+	return new ReplaySource(text, eventsPerSecond, repeat);
+    }
+
+    /**
+     * Starts the replay thread.
+     * @param listener Receives the events.
+     */
+    @Override
+    public synchronized void start(final Listener listener) {
+	if(this.thread != null)
+	    return;
+	this.running = true;
+	this.thread = new Thread(new Runnable() {
+		@Override
+		public void run() {
+		    replay(listener);
+		}
+	    }, "Skope replay");
+	this.thread.setDaemon(true);
+	this.thread.start();
+    }
+
+    /**
+     * Stops the replay and waits for the replay thread to end.
+     */
+    @Override
+    public void stop() {
+	this.running = false;
+	Thread replayThread;
+	synchronized(this) {
+	    replayThread = this.thread;
+	}
+	if(replayThread == null)
+	    return;
+	LockSupport.unpark(replayThread);
+	try {
+	    replayThread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+     * Checks if the whole replay has been delivered.
+     * @return True if the replay thread has finished or was stopped.
+     */
+    public synchronized boolean isFinished() {
+	return this.thread != null && !this.thread.isAlive();
+    }
+
+    /**
+     * Gets the number of events delivered so far.
+     * @return The event count.
+     */
+    public long getDeliveredCount() {
+	return this.delivered;
+    }
+
+    /**
+     * Body of the replay thread. Delivers events in batches, as many as
+     * the rate allows for the time passed, and sleeps between batches.
+     * @param listener Receives the events.
+     */
+    private void replay(Listener listener) {
+	if(this.text.length == 0)
+	    return;
+
+	long start = System.nanoTime();
+	long count = 0;
+	long rounds = 0;
+	int next = 0;
+	while(this.running) {
+	    // events owed for the time passed so far
+	    long due = Long.MAX_VALUE;
+	    if(this.eventsPerSecond > 0)
+		due = (long)((System.nanoTime() - start) / 1e9 * this.eventsPerSecond);
+
+	    long when = System.currentTimeMillis();
+	    while(count < due && this.running) {
+		char c = this.text[next];
+		listener.keyPressed(keyCode(c), Character.isUpperCase(c) ? NativeKeyEvent.SHIFT_MASK : 0,
+				    when);
+		listener.keyTyped(c, 0, when);
+		count += 2;
+		this.delivered = count;
+
+		if(++next == this.text.length) {
+		    next = 0;
+		    if(++rounds == this.repeat)
+			return;
+		}
+		if(this.eventsPerSecond <= 0 && (count & 0xFFF) == 0)
+		    when = System.currentTimeMillis();
+	    }
+
+	    if(this.eventsPerSecond > 0) {
+		long wait = (long)((count + 2) / this.eventsPerSecond * 1e9) - (System.nanoTime() - start);
+		if(wait > 0)
+		    LockSupport.parkNanos(this, Math.min(wait, BATCH_NANOS));
+	    }
+	}
+    }
+
+    /**
+     * Picks the key that types a character on a US keyboard, close enough
+     * for the pressed keys log.
+     * @param c The character.
+     * @return The native key code, VK_UNDEFINED for characters without an
+     * obvious key.
+     */
+    private static int keyCode(char c) {
+	if(c >= 'a' && c <= 'z')
+	    return NativeKeyEvent.VK_A + (c - 'a');
+	if(c >= 'A' && c <= 'Z')
+	    return NativeKeyEvent.VK_A + (c - 'A');
+	if(c >= '0' && c <= '9')
+	    return NativeKeyEvent.VK_0 + (c - '0');
+	switch(c) {
+	case ' ':
+	    return NativeKeyEvent.VK_SPACE;
+	case '\n':
+	    return NativeKeyEvent.VK_ENTER;
+	case '\t':
+	    return NativeKeyEvent.VK_TAB;
+	case '\b':
+	    return NativeKeyEvent.VK_BACK_SPACE;
+	case ',':
+	    return NativeKeyEvent.VK_COMMA;
+	case '.':
+	    return NativeKeyEvent.VK_PERIOD;
+	default:
+	    return NativeKeyEvent.VK_UNDEFINED;
+	}
+    }
+
+    /**
+     * Headless load test. Runs a Service on a replay and reports
+     * throughput, dropped events and the flush and scheduler statistics.
+     * Keywords given on the command line are matched but take no shots.
+     * @param args [text file|-] [events/s] [seconds] [keyword...]
+     * @throws Exception Thrown if the test can't be set up.
+     */
+    public static void main(String[] args) throws Exception {
+	String source = args.length > 0 ? args[0] : "-";
+	double rate = args.length > 1 ? Double.parseDouble(args[1]) : 100000;
+	long seconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+
+	ReplaySource replay = source.equals("-") ? synthetic(1, 1 << 16, rate, 0)
+	    : fromFile(source, rate, 0);
+	Scheduler scheduler = new Scheduler();
+	Log log = new Log("replay.log", "[\r\n  Skope 3 Replay Log\r\n]\r\n", Log.MODE_COMPLETE);
+	Service service = new Service(0, 0, new LogStore(new File("replay-eventlog.dat"), 1048576, 86400000),
+				      new FlushPolicy(120000, 65536, 8388608, 10),
+				      null, scheduler, replay, log);
+	for(int i = 3; i < args.length; i++)
+	    service.registerKeyword(args[i], 0, 0);
+	service.setEnabled(true);
+
+	long start = System.nanoTime();
+	while(!replay.isFinished() && System.nanoTime() - start < seconds * 1000000000L)
+	    Thread.sleep(100);
+	service.setEnabled(false);
+	double elapsed = (System.nanoTime() - start) / 1e9;
+
+	Keylogger keylogger = service.getKeylogger();
+	System.out.println(String.format("%d events in %.2f s, %.0f events/s, %d dropped",
+					 replay.getDeliveredCount(), elapsed,
+					 replay.getDeliveredCount() / elapsed,
+					 keylogger.getDroppedEventCount()));
+	System.out.println(keylogger.getFlushStatistics());
+	keylogger.destroy();
+	System.out.println(scheduler.getStatistics());
+	scheduler.shutdown(5000);
+	log.close();
+    }
+}
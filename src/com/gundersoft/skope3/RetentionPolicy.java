@@ -0,0 +1,171 @@
+package com.gundersoft.skope3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the logs within an age and a total size by dropping their oldest
+ * sealed segments, and merges runs of small segments so a quiet machine
+ * doesn't collect thousands of tiny files. Every log given is pruned to
+ * the same cutoff time, so one never holds a day another has lost.
+ * Counts what each run did for the debug log.
+ * @author Christian Gunderman
+ */
+public class RetentionPolicy {
+    /** Oldest data kept, in milliseconds. Zero keeps everything. */
+    private final long maxAgeMillis;
+    /** Most bytes all logs may take together. Zero for no limit. */
+    private final long maxBytes;
+    /** Segments smaller than this are merged. Zero disables merging. */
+    private final long compactBytes;
+    /** The logs, pruned together. */
+    private final LogStore[] stores;
+    /** Number of times the policy ran. */
+    private final AtomicLong runs;
+    /** Number of segments dropped. */
+    private final AtomicLong dropped;
+    /** Bytes freed by dropping segments. */
+    private final AtomicLong reclaimed;
+    /** Number of segments merged away. */
+    private final AtomicLong merged;
+    /** Time spent merging. */
+    private final AtomicLong compactNanos;
+
+    /**
+     * Creates a retention policy.
+     * @param maxAgeMillis Drop segments that ended longer ago than this.
+     * Zero keeps everything.
+     * @param maxBytes Drop the oldest segments while all the logs together
+     * are bigger than this. Zero for no limit.
+     * @param compactBytes Merge segments smaller than this. Zero disables
+     * merging.
+     * @param stores The logs, pruned together.
+     */
+    public RetentionPolicy(long maxAgeMillis, long maxBytes, long compactBytes,
+			   LogStore... stores) {
+	this.maxAgeMillis = maxAgeMillis;
+	this.maxBytes = maxBytes;
+	this.compactBytes = compactBytes;
+	this.stores = stores;
+	this.runs = new AtomicLong();
+	this.dropped = new AtomicLong();
+	this.reclaimed = new AtomicLong();
+	this.merged = new AtomicLong();
+	this.compactNanos = new AtomicLong();
+    }
+
+    /**
+     * Drops old segments from every log, then merges small ones.
+     * @param now The current time.
+     * @return True if any segment was dropped or merged.
+     * @throws IOException Thrown if a merged segment can't be written.
+     */
+    public boolean apply(long now) throws IOException {
+	this.runs.incrementAndGet();
+	long cutoff = getCutoff(now);
+	boolean changed = false;
+
+	if(cutoff > Long.MIN_VALUE) {
+	    for(LogStore store : this.stores) {
+		int before = store.getSegments().length;
+		long freed = store.dropBefore(cutoff);
+		int count = before - store.getSegments().length;
+		if(count > 0) {
+		    this.dropped.addAndGet(count);
+		    this.reclaimed.addAndGet(freed);
+		    changed = true;
+		}
+	    }
+	}
+
+	if(this.compactBytes > 0) {
+	    long start = System.nanoTime();
+	    try {
+		for(LogStore store : this.stores) {
+		    int count = store.compact(this.compactBytes);
+		    if(count > 0) {
+			this.merged.addAndGet(count);
+			changed = true;
+		    }
+		}
+	    } finally {
+		this.compactNanos.addAndGet(System.nanoTime() - start);
+	    }
+	}
+	return changed;
+    }
+
+    /**
+     * Gets the cutoff time both limits call for. The size limit drops
+     * segments oldest first across every log, then each log is cut at the
+     * end of the newest segment that had to go.
+     * @param now The current time.
+     * @return Segments ending at or before this are dropped, or
+     * Long.MIN_VALUE if none are.
+     */
+    private long getCutoff(long now) {
+	long cutoff = this.maxAgeMillis > 0 ? now - this.maxAgeMillis : Long.MIN_VALUE;
+	if(this.maxBytes <= 0)
+	    return cutoff;
+
+	long total = 0;
+	long[][] sealed = new long[this.stores.length][];
+	int count = 0;
+	for(int s = 0; s < this.stores.length; s++) {
+	    for(File segment : this.stores[s].getSegments())
+		total += segment.length();
+	    sealed[s] = this.stores[s].getSealedSegments();
+	    count += sealed[s].length / 2;
+	}
+	if(total <= this.maxBytes)
+	    return cutoff;
+
+	// walk segment ends oldest first across every log, taking each log's
+	// segments off as the cut passes them
+	long[] ends = new long[count];
+	int e = 0;
+	for(long[] segments : sealed)
+	    for(int i = 0; i < segments.length; i += 2)
+		ends[e++] = segments[i];
+	Arrays.sort(ends);
+	int[] next = new int[sealed.length];
+	for(int i = 0; i < ends.length && total > this.maxBytes; i++) {
+	    for(int s = 0; s < sealed.length; s++) {
+		while(next[s] < sealed[s].length && sealed[s][next[s]] <= ends[i]) {
+		    total -= sealed[s][next[s] + 1];
+		    next[s] += 2;
+		}
+	    }
+	    cutoff = Math.max(cutoff, ends[i]);
+	}
+	return cutoff;
+    }
+
+    /**
+     * Gets the number of segments dropped so far.
+     * @return The count.
+     */
+    public long getDroppedCount() {
+	return this.dropped.get();
+    }
+
+    /**
+     * Gets the bytes freed by dropping segments so far.
+     * @return The byte count.
+     */
+    public long getReclaimedBytes() {
+	return this.reclaimed.get();
+    }
+
+    /**
+     * Gets what the policy has done as a single line for the debug log.
+     * @return The summary.
+     */
+    public String getStatistics() {
+	return String.format("retention: runs=%d dropped=%d reclaimed=%dB merged=%d compact=%.1fms",
+			     this.runs.get(), this.dropped.get(), this.reclaimed.get(),
+			     this.merged.get(), this.compactNanos.get() / 1e6);
+    }
+}
@@ -0,0 +1,384 @@
+package com.gundersoft.skope3;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs all of Skope's background work on a fixed set of named thread
+ * pools, so the thread count stays the same no matter how many keyword
+ * alerts or log writes are triggered. Each pool has a bounded queue;
+ * work that doesn't fit is rejected and counted instead of piling up.
+ * Delayed and repeating work waits on a single timer thread that only
+ * hands it to its pool when it is due. Work that splits itself, like
+ * parsing a large log, runs on a fork join pool with a thread per core.
+ * Owned by Main, which shuts it down on exit.
+ * @author Christian Gunderman
+ */
+public class Scheduler {
+    /** Runs the Keylogger's drain loop. */
+    public static final String POOL_HOOK_DRAIN = "hook-drain";
+    /** Runs log file writes. */
+    public static final String POOL_IO = "io";
+    /** Takes and encodes SkopeShots. */
+    public static final String POOL_CAPTURE = "capture";
+    /** Sends the email dispatches. */
+    public static final String POOL_DISPATCH = "dispatch";
+    /** Builds keyword matchers. */
+    public static final String POOL_KEYWORDS = "keywords";
+
+    /** Holds delayed and repeating work until it is due. */
+    private final ScheduledThreadPoolExecutor timer;
+    /** The pools, by name, in creation order. */
+    private final LinkedHashMap<String, Pool> pools;
+    /** Runs fork join work, such as log parsing. */
+    private final ForkJoinPool parsePool;
+
+    /**
+     * Creates the scheduler and its standard pools.
+     */
+    public Scheduler() {
+	this.timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("timer"));
+	this.timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	this.pools = new LinkedHashMap<String, Pool>();
+	createPool(POOL_HOOK_DRAIN, 1, 1);
+	createPool(POOL_IO, 2, 16);
+	createPool(POOL_CAPTURE, 1, 8);
+	createPool(POOL_DISPATCH, 1, 2);
+	createPool(POOL_KEYWORDS, 1, 1);
+	this.parsePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+					  new NamedThreadFactory("parse"), null, false);
+    }
+
+    /**
+     * Creates a named pool.
+     * @param name The pool name, also used in its thread names.
+     * @param threads Number of threads, fixed for the pool's life.
+     * @param queueCapacity Most tasks that can wait for a thread.
+     * @return The pool.
+     */
+    public synchronized Pool createPool(String name, int threads, int queueCapacity) {
+	Pool pool = new Pool(name, threads, queueCapacity);
+	this.pools.put(name, pool);
+	return pool;
+    }
+
+    /**
+     * Gets a pool by name.
+     * @param name One of the POOL_ names, or a name given to createPool().
+     * @return The pool, or null if there is no such pool.
+     */
+    public synchronized Pool getPool(String name) {
+	return this.pools.get(name);
+    }
+
+    /**
+     * Gets the fork join pool.
+     * @return The pool, with a thread per core.
+     */
+    public ForkJoinPool getParsePool() {
+	return this.parsePool;
+    }
+
+    /**
+     * Gets queue depth and task latency of every pool as a single line
+     * for the debug log.
+     * @return The summary.
+     */
+    public synchronized String getStatistics() {
+	StringBuilder stats = new StringBuilder();
+	for(Pool pool : this.pools.values()) {
+	    if(stats.length() > 0)
+		stats.append("; ");
+	    stats.append(pool.getStatistics());
+	}
+	return stats.toString();
+    }
+
+    /**
+     * Stops the timer, lets running and queued tasks finish and stops
+     * all pools.
+     * @param timeoutMillis Longest time to wait for all pools together.
+     * @return True if every pool finished in time.
+     */
+    public boolean shutdown(long timeoutMillis) {
+	Pool[] all;
+	synchronized(this) {
+	    all = this.pools.values().toArray(new Pool[this.pools.size()]);
+	}
+	this.timer.shutdownNow();
+	this.parsePool.shutdownNow();
+	for(Pool pool : all)
+	    pool.executor.shutdown();
+
+	boolean finished = true;
+	long deadline = System.currentTimeMillis() + timeoutMillis;
+	for(Pool pool : all) {
+	    try {
+		long remaining = Math.max(0, deadline - System.currentTimeMillis());
+		if(!pool.executor.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+		    pool.executor.shutdownNow();
+		    finished = false;
+		}
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		pool.executor.shutdownNow();
+		finished = false;
+	    }
+	}
+	return finished;
+    }
+
+    /**
+     * A fixed size thread pool with a bounded queue that keeps queue and
+     * run time statistics for its tasks.
+     */
+    public class Pool {
+	/** Name of the pool. */
+	private final String name;
+	/** Runs the tasks. */
+	private final ThreadPoolExecutor executor;
+	/** Number of tasks accepted. */
+	private final AtomicLong submitted;
+	/** Number of tasks finished. */
+	private final AtomicLong completed;
+	/** Number of tasks turned away because the queue was full. */
+	private final AtomicLong rejected;
+	/** Time tasks spent waiting for a thread, summed. */
+	private final AtomicLong queueNanos;
+	/** Time tasks spent running, summed. */
+	private final AtomicLong runNanos;
+	/** Most tasks seen waiting at once. */
+	private final AtomicInteger peakDepth;
+
+	/**
+	 * Creates a pool. Threads are started as tasks arrive and then kept.
+	 * @param name The pool name.
+	 * @param threads Number of threads.
+	 * @param queueCapacity Most tasks that can wait for a thread.
+	 */
+	private Pool(String name, int threads, int queueCapacity) {
+	    this.name = name;
+	    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+						   new ArrayBlockingQueue<Runnable>(queueCapacity),
+						   new NamedThreadFactory(name),
+						   new ThreadPoolExecutor.AbortPolicy());
+	    this.submitted = new AtomicLong();
+	    this.completed = new AtomicLong();
+	    this.rejected = new AtomicLong();
+	    this.queueNanos = new AtomicLong();
+	    this.runNanos = new AtomicLong();
+	    this.peakDepth = new AtomicInteger();
+	}
+
+	/**
+	 * Gets the pool name.
+	 * @return The name.
+	 */
+	public String getName() {
+	    return this.name;
+	}
+
+	/**
+	 * Runs a task on the pool as soon as a thread is free.
+	 * @param task The task.
+	 * @return False if the queue was full or the pool is shut down and
+	 * the task won't run.
+	 */
+	public boolean execute(Runnable task) {
+	    try {
+		this.executor.execute(new TimedTask(task));
+	    } catch (RejectedExecutionException e) {
+		this.rejected.incrementAndGet();
+		return false;
+	    }
+	    this.submitted.incrementAndGet();
+	    int depth = this.executor.getQueue().size();
+	    int peak = this.peakDepth.get();
+	    while(depth > peak && !this.peakDepth.compareAndSet(peak, depth))
+		peak = this.peakDepth.get();
+	    return true;
+	}
+
+	/**
+	 * Runs a task on the pool after a delay.
+	 * @param task The task.
+	 * @param delayMillis Time to wait before queueing the task.
+	 * @return Handle that can cancel the task, or null if the
+	 * scheduler is shut down.
+	 */
+	public ScheduledFuture<?> schedule(final Runnable task, long delayMillis) {
+	    try {
+		return Scheduler.this.timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+			    execute(task);
+			}
+		    }, delayMillis, TimeUnit.MILLISECONDS);
+	    } catch (RejectedExecutionException e) {
+		this.rejected.incrementAndGet();
+		return null;
+	    }
+	}
+
+	/**
+	 * Runs a task on the pool repeatedly. A run that finds the queue
+	 * full is skipped, the next one still happens.
+	 * @param task The task.
+	 * @param initialDelayMillis Time to the first run.
+	 * @param periodMillis Time between runs.
+	 * @return Handle that cancels the repeats, or null if the
+	 * scheduler is shut down.
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(final Runnable task, long initialDelayMillis,
+						      long periodMillis) {
+	    try {
+		return Scheduler.this.timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+			    execute(task);
+			}
+		    }, initialDelayMillis, periodMillis, TimeUnit.MILLISECONDS);
+	    } catch (RejectedExecutionException e) {
+		this.rejected.incrementAndGet();
+		return null;
+	    }
+	}
+
+	/**
+	 * Gets the number of tasks waiting for a thread.
+	 * @return The queue depth.
+	 */
+	public int getQueueDepth() {
+	    return this.executor.getQueue().size();
+	}
+
+	/**
+	 * Gets the number of tasks turned away.
+	 * @return The rejected count.
+	 */
+	public long getRejectedCount() {
+	    return this.rejected.get();
+	}
+
+	/**
+	 * Gets the average time a task waited for a thread.
+	 * @return Milliseconds, 0 if nothing has run.
+	 */
+	public double getAverageQueueMillis() {
+	    long started = this.completed.get();
+	    return started == 0 ? 0 : this.queueNanos.get() / 1e6 / started;
+	}
+
+	/**
+	 * Gets the average time a task ran for.
+	 * @return Milliseconds, 0 if nothing has run.
+	 */
+	public double getAverageRunMillis() {
+	    long done = this.completed.get();
+	    return done == 0 ? 0 : this.runNanos.get() / 1e6 / done;
+	}
+
+	/**
+	 * Gets the pool's numbers as a single line for the debug log.
+	 * @return The summary.
+	 */
+	public String getStatistics() {
+	    return String.format("%s: %d threads, %d queued (peak %d), %d of %d run, %d rejected, "
+				 + "%.2f ms avg wait, %.2f ms avg run",
+				 this.name, this.executor.getPoolSize(), getQueueDepth(),
+				 this.peakDepth.get(), this.completed.get(), this.submitted.get(),
+				 this.rejected.get(),
+				 getAverageQueueMillis(), getAverageRunMillis());
+	}
+
+	/**
+	 * Wraps a task to time its wait and its run.
+	 */
+	private class TimedTask implements Runnable {
+	    /** The task. */
+	    private final Runnable task;
+	    /** Time the task was queued. */
+	    private final long queuedNanos;
+
+	    /**
+	     * Wraps a task that is about to be queued.
+	     * @param task The task.
+	     */
+	    public TimedTask(Runnable task) {
+		this.task = task;
+		this.queuedNanos = System.nanoTime();
+	    }
+
+	    /**
+	     * Runs the task and records how long it waited and ran.
+	     */
+	    @Override
+	    public void run() {
+		long start = System.nanoTime();
+		try {
+		    this.task.run();
+		} finally {
+		    long end = System.nanoTime();
+		    Pool.this.queueNanos.addAndGet(start - this.queuedNanos);
+		    Pool.this.runNanos.addAndGet(end - start);
+		    Pool.this.completed.incrementAndGet();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Names pool threads "Skope <pool> <n>" and makes them daemons so
+     * they never hold the JVM open.
+     */
+    private static class NamedThreadFactory
+	implements ThreadFactory, ForkJoinPool.ForkJoinWorkerThreadFactory {
+	/** Name of the pool the threads belong to. */
+	private final String pool;
+	/** Number of the next thread. */
+	private final AtomicInteger count;
+
+	/**
+	 * Creates a factory for one pool.
+	 * @param pool The pool name.
+	 */
+	public NamedThreadFactory(String pool) {
+	    this.pool = pool;
+	    this.count = new AtomicInteger();
+	}
+
+	/**
+	 * Creates a thread.
+	 * @param task What the thread runs.
+	 * @return The unstarted thread.
+	 */
+	@Override
+	public Thread newThread(Runnable task) {
+	    Thread thread = new Thread(task, "Skope " + this.pool + " " + this.count.incrementAndGet());
+	    thread.setDaemon(true);
+	    return thread;
+	}
+
+	/**
+	 * Creates a fork join worker thread.
+	 * @param pool The fork join pool it works for.
+	 * @return The unstarted thread.
+	 */
+	@Override
+	public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+	    ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) { };
+	    thread.setName("Skope " + this.pool + " " + this.count.incrementAndGet());
+	    return thread;
+	}
+    }
+}
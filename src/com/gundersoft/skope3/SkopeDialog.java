@@ -96,9 +96,8 @@ public class SkopeDialog {
 		    // open keylog reader dialog
 		    try {
 			KeylogDialog.display(dialog, instance, 
-					     instance.getSettings().getStringValue("Skope3.Service.TextLogFile", 
-										   "textlog.dat"), instance.getSettings().
-					     getStringValue("Skope3.Service.KeyLogFile", "keylog.dat"),
+					     instance.getSettings().getStringValue("Skope3.Service.EventLogFile", 
+										   "eventlog.dat"),
 					     null);
 		    } catch (IOException err) {
 			JOptionPane.showMessageDialog(dialog, 
@@ -6,6 +6,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.Reader;
 import java.nio.channels.FileLock;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -30,6 +31,26 @@ public abstract class Tools {
 	return file.delete();
     }
 	
+    /**
+     * Reads all of a Reader's text and closes it.
+     * @param reader The reader.
+     * @param sizeHint Expected number of chars, to size the buffer.
+     * @return The text.
+     * @throws IOException Thrown if the reader fails.
+     */
+    public static String readFully(Reader reader, long sizeHint) throws IOException {
+	StringBuilder text = new StringBuilder((int)Math.min(Integer.MAX_VALUE - 8, sizeHint));
+	try {
+	    char[] buffer = new char[8192];
+	    int read;
+	    while((read = reader.read(buffer)) != -1)
+		text.append(buffer, 0, read);
+	} finally {
+	    reader.close();
+	}
+	return text.toString();
+    }
+	
     /**
      * Attempts to lock the lock file. If unable to do so, there is another 
      * instance already running.
@@ -0,0 +1,568 @@
+package com.gundersoft.skope3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Finds where a phrase was typed without reading the whole log. Each
+ * sealed segment gets a search index beside it, "eventlog.dat.00000n.tri",
+ * that maps every trigram of its text to the blocks of the segment it
+ * occurs in. An event log is searched in one of its views; the pressed
+ * keys view has its own index, ".keys.tri". A search looks up the phrase's trigrams, and only the blocks
+ * holding all of them are read and searched exactly. The active segment
+ * isn't indexed and is always searched in full.
+ * <p>
+ * Blocks are runs of the segment of at least BLOCK_BYTES, cut at entries
+ * of its time index so a cursor can start on one. A trigram belongs to
+ * the block its last char is in, so a match that starts in one block and
+ * ends in a later one is found by looking at the blocks it spans
+ * together. Matches spanning two segments aren't found.
+ * <p>
+ * Searches ignore case. Trigrams are folded into 47 bits, so two rare
+ * trigrams can share a key; that only costs a block read, since every
+ * candidate block is checked exactly.
+ * <p>
+ * update() indexes segments sealed since it last ran and segments that
+ * were merged since they were indexed. Index files are written beside the
+ * segment and renamed into place, so any number of TrigramIndex objects
+ * can share a log.
+ * @author Christian Gunderman
+ */
+public class TrigramIndex {
+    /** Marks a search index file, "SKT1". */
+    private static final int MAGIC = 0x534B5431;
+    /** Least uncompressed bytes in a block. */
+    private static final long BLOCK_BYTES = 65536;
+    /** Most blocks in a segment, so a block number fits a char. */
+    private static final int MAX_BLOCKS = 65535;
+    /** Chars of context kept on each side of a match. */
+    private static final int CONTEXT_CHARS = 40;
+
+    /** The log file name. */
+    private final String logFile;
+    /** EventLog view searched. */
+    private final int view;
+    /** Suffix of this view's index files. */
+    private final String suffix;
+    /** Loaded search indexes, by segment. */
+    private final HashMap<File, Postings> loaded;
+
+    /**
+     * Creates a search index over a log. Nothing is read until update()
+     * or search().
+     * @param logFile The log file name.
+     * @param view EventLog.VIEW_TEXT or VIEW_KEYS for an event log,
+     * VIEW_RAW for a log of text.
+     */
+    public TrigramIndex(String logFile, int view) {
+	this.logFile = logFile;
+	this.view = view;
+	this.suffix = view == EventLog.VIEW_KEYS ? LogStore.KEY_SEARCH_SUFFIX
+	    : LogStore.SEARCH_SUFFIX;
+	this.loaded = new HashMap<File, Postings>();
+    }
+
+    /**
+     * Indexes every sealed segment that has no index, or has one older
+     * than its data.
+     * @return Number of segments indexed.
+     * @throws IOException Thrown if a segment can't be read or its index
+     * can't be written.
+     */
+    public synchronized int update() throws IOException {
+	File[] segments = new LogStore(new File(this.logFile)).getSegments();
+	HashMap<File, Postings> kept = new HashMap<File, Postings>();
+	int built = 0;
+	for(int i = 0; i < segments.length - 1; i++) {
+	    File segment = segments[i];
+	    Postings postings = load(segment);
+	    if(postings == null) {
+		postings = build(segment);
+		built++;
+	    }
+	    kept.put(segment, postings);
+	}
+	this.loaded.clear();
+	this.loaded.putAll(kept);
+	return built;
+    }
+
+    /**
+     * Finds where a phrase was typed, oldest first. Updates the index
+     * first.
+     * @param phrase The phrase, in any case.
+     * @param limit Most matches to return.
+     * @return The matches.
+     * @throws IOException Thrown if a segment or its index can't be read.
+     */
+    public synchronized List<Match> search(String phrase, int limit) throws IOException {
+	List<Match> matches = new ArrayList<Match>();
+	if(phrase.length() == 0)
+	    return matches;
+	update();
+
+	String query = fold(phrase);
+	File[] segments = new LogStore(new File(this.logFile)).getSegments();
+	for(int i = 0; i < segments.length && matches.size() < limit; i++) {
+	    Postings postings = i < segments.length - 1 ? this.loaded.get(segments[i]) : null;
+	    if(postings == null || query.length() < 3) {
+		scan(segments[i], 0, Long.MAX_VALUE, query, matches, limit, this.view);
+		continue;
+	    }
+
+	    boolean[][] present = postings.find(query);
+	    if(present == null)
+		continue;
+
+	    // a match starting in block b ends by the block that gets the
+	    // rest of the query's chars past b's end
+	    int blocks = postings.starts.length;
+	    int runFirst = -1;
+	    int runLast = -1;
+	    for(int b = 0; b < blocks && matches.size() < limit; b++) {
+		int e = b;
+		long chars = 0;
+		while(e + 1 < blocks && chars < query.length() - 1)
+		    chars += postings.chars[++e];
+		if(!covers(present, b, e))
+		    continue;
+		if(runFirst >= 0 && b <= runLast + 1) {
+		    runLast = Math.max(runLast, e);
+		    continue;
+		}
+		if(runFirst >= 0)
+		    scan(segments[i], postings.start(runFirst), postings.start(runLast + 1),
+			 query, matches, limit, this.view);
+		runFirst = b;
+		runLast = e;
+	    }
+	    if(runFirst >= 0 && matches.size() < limit)
+		scan(segments[i], postings.start(runFirst), postings.start(runLast + 1),
+		     query, matches, limit, this.view);
+	}
+	return matches;
+    }
+
+    /**
+     * Finds a phrase in text, ignoring case the way searches do.
+     * @param text The text.
+     * @param phrase The phrase.
+     * @param from Index to start looking at.
+     * @return Index of the first match at or after from, -1 if there is
+     * none.
+     */
+    public static int indexOf(CharSequence text, String phrase, int from) {
+	String query = fold(phrase);
+	int last = text.length() - query.length();
+	for(int i = Math.max(0, from); i <= last; i++) {
+	    int j = 0;
+	    while(j < query.length() && fold(text.charAt(i + j)) == query.charAt(j))
+		j++;
+	    if(j == query.length())
+		return i;
+	}
+	return -1;
+    }
+
+    /**
+     * Checks if every trigram of a query occurs in a run of blocks.
+     * @param present For each trigram, the blocks it occurs in.
+     * @param first First block of the run.
+     * @param last Last block of the run.
+     * @return True if they all do.
+     */
+    private static boolean covers(boolean[][] present, int first, int last) {
+	for(boolean[] blocks : present) {
+	    int b = first;
+	    while(b <= last && !blocks[b])
+		b++;
+	    if(b > last)
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Searches part of a segment exactly.
+     * @param segment The segment.
+     * @param start Offset to start at.
+     * @param end Offset to stop at.
+     * @param query The folded query.
+     * @param matches Gets the matches.
+     * @param limit Most matches to hold.
+     * @param view The EventLog view to search.
+     * @throws IOException Thrown if the segment can't be read.
+     */
+    private static void scan(File segment, long start, long end, String query,
+			     List<Match> matches, int limit, int view) throws IOException {
+	StringBuilder text = new StringBuilder();
+	StringBuilder folded = new StringBuilder();
+	long[] times = new long[64];
+	int[] offsets = new int[64];
+	int count = 0;
+
+	LogCursor cursor = new LogCursor(segment, start, end);
+	try {
+	    while(cursor.advance()) {
+		// events that aren't in the view have no text to match
+		String snippet = cursor.getText(view);
+		if(snippet.length() == 0)
+		    continue;
+		if(count == times.length) {
+		    times = Arrays.copyOf(times, count * 2);
+		    offsets = Arrays.copyOf(offsets, count * 2);
+		}
+		times[count] = cursor.getTime();
+		offsets[count++] = text.length();
+		text.append(snippet);
+		for(int i = 0; i < snippet.length(); i++)
+		    folded.append(fold(snippet.charAt(i)));
+	    }
+	} finally {
+	    cursor.close();
+	}
+
+	for(int m = folded.indexOf(query); m >= 0 && matches.size() < limit;
+	    m = folded.indexOf(query, m + 1)) {
+	    int snippet = Arrays.binarySearch(offsets, 0, count, m);
+	    if(snippet < 0)
+		snippet = -snippet - 2;
+	    matches.add(new Match(times[snippet],
+				  text.substring(Math.max(0, m - CONTEXT_CHARS),
+						 Math.min(text.length(), m + query.length() + CONTEXT_CHARS))));
+	}
+    }
+
+    /**
+     * Reads the search index of a segment.
+     * @param segment A sealed segment.
+     * @return Its index, null if it has none or the segment changed since
+     * it was written.
+     */
+    private Postings load(File segment) {
+	long length = LogStore.uncompressedLength(current(segment));
+	Postings postings = this.loaded.get(segment);
+	if(postings != null && postings.length == length)
+	    return postings;
+
+	File file = LogStore.sidecarFile(segment, this.suffix);
+	if(!file.exists())
+	    return null;
+	try {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(
+							 new FileInputStream(file)));
+	    try {
+		if(in.readInt() != MAGIC || in.readLong() != length)
+		    return null;
+		postings = new Postings(length, new long[in.readInt()]);
+		postings.chars = new int[postings.starts.length];
+		for(int b = 0; b < postings.starts.length; b++) {
+		    postings.starts[b] = in.readLong();
+		    postings.chars[b] = in.readInt();
+		}
+		int keys = in.readInt();
+		postings.keys = new long[keys];
+		postings.ends = new int[keys];
+		for(int k = 0; k < keys; k++) {
+		    postings.keys[k] = in.readLong();
+		    postings.ends[k] = in.readInt();
+		}
+		postings.blocks = new char[keys > 0 ? postings.ends[keys - 1] : 0];
+		for(int p = 0; p < postings.blocks.length; p++)
+		    postings.blocks[p] = in.readChar();
+		return postings;
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException e) {
+	    // unreadable or cut short, so build it again
+	    return null;
+	}
+    }
+
+    /**
+     * Indexes a segment and writes its search index.
+     * @param segment A sealed segment.
+     * @return Its index.
+     * @throws IOException Thrown if the segment can't be read or the index
+     * can't be written.
+     */
+    private Postings build(File segment) throws IOException {
+	segment = current(segment);
+	long length = LogStore.uncompressedLength(segment);
+	long[] index = LogStore.readIndex(segment);
+
+	// cut blocks at time index entries
+	long[] starts = new long[16];
+	int blocks = 1;
+	for(int e = 1; e < index.length; e += 2) {
+	    if(index[e] - starts[blocks - 1] < BLOCK_BYTES || blocks == MAX_BLOCKS)
+		continue;
+	    if(blocks == starts.length)
+		starts = Arrays.copyOf(starts, blocks * 2);
+	    starts[blocks++] = index[e];
+	}
+	Postings postings = new Postings(length, Arrays.copyOf(starts, blocks));
+	postings.chars = new int[blocks];
+
+	// (key, block) pairs, each block's sorted and deduplicated as it ends
+	long[] pairs = new long[4096];
+	int count = 0;
+	int blockFrom = 0;
+	int block = 0;
+	char a = 0;
+	char b = 0;
+	int run = 0;
+	LogCursor cursor = new LogCursor(segment, 0, Long.MAX_VALUE);
+	try {
+	    while(cursor.advance()) {
+		while(block + 1 < blocks && cursor.getOffset() >= postings.starts[block + 1]) {
+		    count = blockFrom + dedupe(pairs, blockFrom, count);
+		    blockFrom = count;
+		    block++;
+		}
+		String snippet = cursor.getText(this.view);
+		postings.chars[block] += snippet.length();
+		for(int i = 0; i < snippet.length(); i++) {
+		    char c = fold(snippet.charAt(i));
+		    if(run < 2) {
+			run++;
+		    } else {
+			if(count == pairs.length)
+			    pairs = Arrays.copyOf(pairs, count * 2);
+			pairs[count++] = (key(a, b, c) << 16) | block;
+		    }
+		    a = b;
+		    b = c;
+		}
+	    }
+	} finally {
+	    cursor.close();
+	}
+	count = blockFrom + dedupe(pairs, blockFrom, count);
+	Arrays.sort(pairs, 0, count);
+
+	// group the pairs by key
+	int keys = 0;
+	for(int p = 0; p < count; p++) {
+	    if(p == 0 || pairs[p] >>> 16 != pairs[p - 1] >>> 16)
+		keys++;
+	}
+	postings.keys = new long[keys];
+	postings.ends = new int[keys];
+	postings.blocks = new char[count];
+	int k = -1;
+	for(int p = 0; p < count; p++) {
+	    if(p == 0 || pairs[p] >>> 16 != pairs[p - 1] >>> 16)
+		postings.keys[++k] = pairs[p] >>> 16;
+	    postings.blocks[p] = (char)pairs[p];
+	    postings.ends[k] = p + 1;
+	}
+
+	write(postings, LogStore.sidecarFile(segment, this.suffix));
+	return postings;
+    }
+
+    /**
+     * Writes a search index beside its segment.
+     * @param postings The index.
+     * @param file The index file.
+     * @throws IOException Thrown if the file can't be written.
+     */
+    private static void write(Postings postings, File file) throws IOException {
+	File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+	boolean written = false;
+	try {
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+							    new FileOutputStream(temp)));
+	    try {
+		out.writeInt(MAGIC);
+		out.writeLong(postings.length);
+		out.writeInt(postings.starts.length);
+		for(int b = 0; b < postings.starts.length; b++) {
+		    out.writeLong(postings.starts[b]);
+		    out.writeInt(postings.chars[b]);
+		}
+		out.writeInt(postings.keys.length);
+		for(int k = 0; k < postings.keys.length; k++) {
+		    out.writeLong(postings.keys[k]);
+		    out.writeInt(postings.ends[k]);
+		}
+		for(char block : postings.blocks)
+		    out.writeChar(block);
+	    } finally {
+		out.close();
+	    }
+	    Files.move(temp.toPath(), file.toPath(),
+		       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	    written = true;
+	} finally {
+	    if(!written)
+		temp.delete();
+	}
+    }
+
+    /**
+     * Sorts a run of pairs and drops repeats.
+     * @param pairs The pairs.
+     * @param from Start of the run.
+     * @param to End of the run.
+     * @return Length of the run left.
+     */
+    private static int dedupe(long[] pairs, int from, int to) {
+	Arrays.sort(pairs, from, to);
+	int kept = from;
+	for(int p = from; p < to; p++) {
+	    if(kept == from || pairs[p] != pairs[kept - 1])
+		pairs[kept++] = pairs[p];
+	}
+	return kept - from;
+    }
+
+    /**
+     * Gets the file a segment is in now.
+     * @param segment A file from LogStore.getSegments().
+     * @return The segment, or its compressed file if it was compressed
+     * since it was listed.
+     */
+    private static File current(File segment) {
+	if(!segment.exists() && !LogStore.isCompressed(segment))
+	    return LogStore.compressedFile(segment);
+	return segment;
+    }
+
+    /**
+     * Gets the key of a trigram.
+     * @param a First char, folded.
+     * @param b Second char, folded.
+     * @param c Third char, folded.
+     * @return The key, 47 bits.
+     */
+    private static long key(char a, char b, char c) {
+	return ((long)(a & 0x7FFF) << 32) | ((long)b << 16) | c;
+    }
+
+    /**
+     * Folds a string's case the way searches do.
+     * @param text The string.
+     * @return The folded string, the same length.
+     */
+    private static String fold(String text) {
+	char[] chars = new char[text.length()];
+	for(int i = 0; i < chars.length; i++)
+	    chars[i] = fold(text.charAt(i));
+	return new String(chars);
+    }
+
+    /**
+     * Folds a char's case the way searches do.
+     * @param c The char.
+     * @return The char in lower case.
+     */
+    private static char fold(char c) {
+	return Character.toLowerCase(c);
+    }
+
+    /**
+     * The search index of one segment.
+     */
+    private static class Postings {
+	/** Uncompressed length of the segment when it was indexed. */
+	private final long length;
+	/** Offset in the segment of each block. */
+	private final long[] starts;
+	/** Chars of text in each block. */
+	private int[] chars;
+	/** The trigram keys, sorted. */
+	private long[] keys;
+	/** End of each key's blocks in blocks. */
+	private int[] ends;
+	/** Blocks of every key, ascending for each. */
+	private char[] blocks;
+
+	/**
+	 * Creates an index with no keys yet.
+	 * @param length Uncompressed length of the segment.
+	 * @param starts Offset in the segment of each block.
+	 */
+	public Postings(long length, long[] starts) {
+	    this.length = length;
+	    this.starts = starts;
+	}
+
+	/**
+	 * Gets the offset a block starts at.
+	 * @param block The block, or the block count for the segment's end.
+	 * @return The offset.
+	 */
+	public long start(int block) {
+	    return block < this.starts.length ? this.starts[block] : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Looks up the blocks of every trigram of a query.
+	 * @param query The folded query, at least 3 chars.
+	 * @return For each trigram, which blocks it occurs in, or null if
+	 * one doesn't occur in the segment at all.
+	 */
+	public boolean[][] find(String query) {
+	    boolean[][] present = new boolean[query.length() - 2][];
+	    for(int t = 0; t < present.length; t++) {
+		int k = Arrays.binarySearch(this.keys, key(query.charAt(t), query.charAt(t + 1),
+							   query.charAt(t + 2)));
+		if(k < 0)
+		    return null;
+		present[t] = new boolean[this.starts.length];
+		for(int p = k == 0 ? 0 : this.ends[k - 1]; p < this.ends[k]; p++)
+		    present[t][this.blocks[p]] = true;
+	    }
+	    return present;
+	}
+    }
+
+    /**
+     * A place a phrase was typed.
+     */
+    public static class Match {
+	/** Time of the snippet the match starts in. */
+	private final long time;
+	/** The match and the text around it. */
+	private final String context;
+
+	/**
+	 * Creates a match.
+	 * @param time Time of the snippet the match starts in.
+	 * @param context The match and the text around it.
+	 */
+	public Match(long time, String context) {
+	    this.time = time;
+	    this.context = context;
+	}
+
+	/**
+	 * @return Time in milliseconds of the snippet the match starts in.
+	 */
+	public long getTime() {
+	    return this.time;
+	}
+
+	/**
+	 * @return The match and up to CONTEXT_CHARS of text on each side.
+	 */
+	public String getContext() {
+	    return this.context;
+	}
+    }
+}
@@ -10,12 +10,14 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import javax.imageio.ImageIO;
 import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
@@ -1584,6 +1586,124 @@ public class UIBuilder {
 		
     }
 	
+    /**
+     * Timeline that draws a bar for each of a row of bins, such as the
+     * activity in each part of a log, scaled to the busiest bin. One bin
+     * can be marked, and clicking a bin tells the listeners.
+     */
+    @SuppressWarnings("serial")
+    public class Timeline extends JPanel {
+	/** Value of each bin, null for an empty timeline. */
+	private int[] bins;
+	/** Bin marked with a line, -1 for none. */
+	private int marked;
+	/** Listeners told which bin was clicked. */
+	private ArrayList<BinClickedListener> listeners;
+
+	/**
+	 * Creates an empty timeline of specified dimensions at given
+	 * coordinates.
+	 * @param x x coordinate for location.
+	 * @param y y coordinate.
+	 * @param width Width of the timeline.
+	 * @param height Height of the timeline.
+	 */
+	public Timeline(int x, int y, int width, int height) {
+	    this.setSize(width, height);
+	    this.setLocation(x, y);
+	    this.setOpaque(false);
+	    this.setForeground(UIBuilder.this.defaultForeground);
+	    this.marked = -1;
+	    this.listeners = new ArrayList<BinClickedListener>();
+	    this.addMouseListener(new MouseAdapter() {
+		    @Override
+		    public void mouseClicked(MouseEvent e) {
+			int bin = binAt(e.getX());
+			if(bin < 0)
+			    return;
+			for(BinClickedListener listener : Timeline.this.listeners)
+			    listener.binClicked(bin);
+		    }
+		});
+	}
+
+	/**
+	 * Sets the value of each bin, one bar per bin across the width.
+	 * @param bins The values, null to draw nothing.
+	 */
+	public void setBins(int[] bins) {
+	    this.bins = bins;
+	    this.repaint();
+	}
+
+	/**
+	 * Marks a bin with a line across the timeline.
+	 * @param marked Number of the bin, -1 for none.
+	 */
+	public void setMarked(int marked) {
+	    this.marked = marked;
+	    this.repaint();
+	}
+
+	/**
+	 * Gets the bin under an x coordinate.
+	 * @param x The coordinate, relative to the timeline.
+	 * @return Number of the bin, -1 if there are no bins.
+	 */
+	public int binAt(int x) {
+	    if(this.bins == null || this.bins.length == 0)
+		return -1;
+	    int bin = (int)((long)x * this.bins.length / Math.max(1, this.getWidth()));
+	    return Math.max(0, Math.min(this.bins.length - 1, bin));
+	}
+
+	/**
+	 * Registers a listener to be told when a bin is clicked.
+	 * @param listener The listener.
+	 */
+	public void addBinClickedListener(BinClickedListener listener) {
+	    this.listeners.add(listener);
+	}
+
+	/**
+	 * Paints a bar for every bin, from the bottom up, and the mark.
+	 * @param g Graphics context.
+	 */
+	@Override
+	public void paintComponent(Graphics g) {
+	    super.paintComponent(g);
+	    if(this.bins == null || this.bins.length == 0)
+		return;
+	    int most = 1;
+	    for(int value : this.bins)
+		most = Math.max(most, value);
+
+	    int width = this.getWidth();
+	    int height = this.getHeight();
+	    g.setColor(this.getForeground());
+	    g.drawLine(0, height - 1, width, height - 1);
+	    for(int i = 0; i < this.bins.length; i++) {
+		if(this.bins[i] <= 0)
+		    continue;
+		int left = (int)((long)i * width / this.bins.length);
+		int right = (int)((long)(i + 1) * width / this.bins.length);
+		int bar = Math.max(1, (int)((long)this.bins[i] * (height - 1) / most));
+		g.fillRect(left, height - 1 - bar, Math.max(1, right - left - 1), bar);
+	    }
+	    if(this.marked >= 0 && this.marked < this.bins.length) {
+		int x = (int)(((long)this.marked * 2 + 1) * width / (this.bins.length * 2));
+		g.drawLine(x, 0, x, height - 1);
+	    }
+	}
+    }
+
+    /**
+     * Register with a Timeline to be notified every time a bin is clicked.
+     */
+    public interface BinClickedListener {
+	public void binClicked(int bin);
+    }
+
     /**
      * Register with ImageShuffler to be notified every time an icon is 
      * clicked.